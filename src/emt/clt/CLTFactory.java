@@ -43,7 +43,7 @@ public class CLTFactory {
         System.out.println("\t" + "-v, --verbose verbose mode");
         System.out.println("\t" + "-V, --version print version");
         System.out.println("Tools: excise, stitch, info, validate, equal, stats, graphs,\n" +
-                "compare-norms, row-sums, check-sparsity, bedpe-select");
+                "compare-norms, row-sums, check-sparsity, bedpe-select, mnd-to-text, digest");
         System.out.println("Type hic_emt <tool_name> for more detailed usage instructions");
     }
 
@@ -72,6 +72,10 @@ public class CLTFactory {
             return new BedpeCompare();
         } else if (cmd.startsWith("bedpe-select")) {
             return new BedpeSelect();
+        } else if (cmd.startsWith("mnd-to-text")) {
+            return new MndToText();
+        } else if (cmd.startsWith("digest")) {
+            return new Digest();
         }
         return null;
     }
@@ -24,6 +24,7 @@
 
 package emt.clt;
 
+import emt.main.mnd.MNDFormat;
 import jargs.gnu.CmdLineParser;
 import javastraw.reader.type.NormalizationHandler;
 import javastraw.reader.type.NormalizationType;
@@ -46,11 +47,26 @@ public class CommandLineParser extends CmdLineParser {
     private final Option resetOriginOption = addBooleanOption("reset-origin");
     private final Option earlyExitOption = addBooleanOption("early-exit");
     private final Option onlyIntraOption = addBooleanOption("only-intra");
+    private final Option buildHiCOption = addBooleanOption("build-hic");
+    private final Option resumeOption = addBooleanOption("resume");
+    private final Option exactOption = addBooleanOption("exact");
+    private final Option dryRunOption = addBooleanOption("dry-run");
+    private final Option sortedOption = addBooleanOption("sorted");
+    private final Option scanOption = addBooleanOption("scan");
+    private final Option digestOption = addBooleanOption("digest");
     private final Option multipleChromosomesOption = addStringOption('c', "chromosomes");
     private final Option multipleResolutionsOption = addStringOption('r', "resolution");
-    private final Option subsampleNumOption = addLongOption("subsample");
-    private final Option randomSeedOption = addLongOption("seed");
+    private final Option subsampleNumOption = addStringOption("subsample");
+    private final Option randomSeedOption = addStringOption("seed");
     private final Option normalizationTypeOption = addStringOption('k', "normalization");
+    private final Option numThreadsOption = addIntegerOption("threads");
+    private final Option writerThreadsOption = addIntegerOption("writer-threads");
+    private final Option prefetchOption = addIntegerOption("prefetch");
+    private final Option blocksOption = addIntegerOption("blocks");
+    private final Option mndFormatOption = addStringOption("mnd-format");
+    private final Option boundingBoxesOption = addStringOption("boxes");
+    private final Option weightsOption = addStringOption("weights");
+    private final Option pipeOption = addStringOption("pipe");
 
     public CommandLineParser() {
     }
@@ -64,9 +80,9 @@ public class CommandLineParser extends CmdLineParser {
         return opt != null && (Boolean) opt;
     }
 
-    private long optionToLong(Option option) {
+    private int optionToInt(Option option) {
         Object opt = getOptionValue(option);
-        return opt == null ? 0L : ((Number) opt).longValue();
+        return opt == null ? 0 : ((Number) opt).intValue();
     }
 
     private List<String> optionToStringList(Option option) {
@@ -74,6 +90,36 @@ public class CommandLineParser extends CmdLineParser {
         return opt == null ? null : new ArrayList<>(Arrays.asList(opt.toString().split(",")));
     }
 
+    private List<Long> optionToLongList(Option option) {
+        Object opt = getOptionValue(option);
+        if (opt == null) return null;
+        List<Long> longList = new ArrayList<>();
+        for (String temp : opt.toString().split(",", -1)) {
+            try {
+                longList.add(Long.parseLong(temp.trim()));
+            } catch (NumberFormatException error) {
+                System.err.println("Invalid value \"" + temp + "\" for --" + option.longForm());
+                System.exit(41);
+            }
+        }
+        return longList;
+    }
+
+    private List<Double> optionToDoubleList(Option option) {
+        Object opt = getOptionValue(option);
+        if (opt == null) return null;
+        List<Double> doubleList = new ArrayList<>();
+        for (String temp : opt.toString().split(",", -1)) {
+            try {
+                doubleList.add(Double.parseDouble(temp.trim()));
+            } catch (NumberFormatException error) {
+                System.err.println("Invalid value \"" + temp + "\" for --" + option.longForm());
+                System.exit(41);
+            }
+        }
+        return doubleList;
+    }
+
     private List<Integer> optionToIntegerList(Option option) {
         Object opt = getOptionValue(option);
         if (opt == null) return null;
@@ -122,12 +168,94 @@ public class CommandLineParser extends CmdLineParser {
         return optionToBoolean(onlyIntraOption);
     }
 
-    public long getSubsamplingOption() {
-        return optionToLong(subsampleNumOption);
+    public boolean getBuildHiCOption() {
+        return optionToBoolean(buildHiCOption);
+    }
+
+    public boolean getResumeOption() {
+        return optionToBoolean(resumeOption);
+    }
+
+    public boolean getExactOption() {
+        return optionToBoolean(exactOption);
+    }
+
+    public boolean getDryRunOption() {
+        return optionToBoolean(dryRunOption);
+    }
+
+    public boolean getSortedOption() {
+        return optionToBoolean(sortedOption);
+    }
+
+    public boolean getScanOption() {
+        return optionToBoolean(scanOption);
+    }
+
+    public boolean getDigestOption() {
+        return optionToBoolean(digestOption);
+    }
+
+    public List<Long> getMultipleSubsamplingOptions() {
+        return optionToLongList(subsampleNumOption);
+    }
+
+    public List<Long> getMultipleSeedOptions() {
+        return optionToLongList(randomSeedOption);
     }
 
     public long getSeedOption() {
-        return optionToLong(randomSeedOption);
+        List<Long> seeds = getMultipleSeedOptions();
+        if (seeds != null && seeds.size() > 0) {
+            return seeds.get(0);
+        }
+        return 0L;
+    }
+
+    public int getNumThreadsOption() {
+        return optionToInt(numThreadsOption);
+    }
+
+    public int getWriterThreadsOption() {
+        return optionToInt(writerThreadsOption);
+    }
+
+    /**
+     * @return the number of blocks to read ahead, or null if not set (0 disables reading ahead)
+     */
+    public Integer getPrefetchOption() {
+        Object opt = getOptionValue(prefetchOption);
+        return opt == null ? null : ((Number) opt).intValue();
+    }
+
+    /**
+     * @return the number of blocks to check per zoom, or null if not set (0 checks all of them)
+     */
+    public Integer getBlocksOption() {
+        Object opt = getOptionValue(blocksOption);
+        return opt == null ? null : ((Number) opt).intValue();
+    }
+
+    public MNDFormat getMNDFormatOption() {
+        try {
+            return MNDFormat.fromString(optionToString(mndFormatOption));
+        } catch (IllegalArgumentException error) {
+            System.err.println(error.getMessage());
+            System.exit(40);
+        }
+        return null;
+    }
+
+    public String getBoundingBoxesOption() {
+        return optionToString(boundingBoxesOption);
+    }
+
+    public String getPipeOption() {
+        return optionToString(pipeOption);
+    }
+
+    public List<Double> getWeightsOption() {
+        return optionToDoubleList(weightsOption);
     }
 
     public List<String> getChromosomeListOption() {
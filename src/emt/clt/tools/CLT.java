@@ -25,6 +25,8 @@
 package emt.clt.tools;
 
 import emt.clt.CommandLineParser;
+import emt.main.FileBuildingMethod;
+import emt.main.mnd.MNDFormat;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -57,6 +59,24 @@ public abstract class CLT {
 
     public abstract void run();
 
+    /**
+     * @return the pipe command, or null to write an MND file; exits if the other options need files on disk
+     */
+    protected static String readPipeOption(CommandLineParser parser, MNDFormat format, boolean buildHiC,
+                                           boolean resume) {
+        String pipe = parser.getPipeOption();
+        if (pipe == null) return null;
+        if (buildHiC || resume || format == MNDFormat.BGZF) {
+            System.err.println("--pipe cannot be used with --build-hic, --resume or --mnd-format bgzf, " +
+                    "which need files on disk");
+            System.exit(34);
+        }
+        if (pipe.equals(FileBuildingMethod.STDOUT)) {
+            FileBuildingMethod.reserveStdout();
+        }
+        return pipe;
+    }
+
     private void setUsage(String newUsage) {
         usage = newUsage;
     }
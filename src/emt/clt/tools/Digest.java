@@ -0,0 +1,36 @@
+package emt.clt.tools;
+
+import emt.clt.CommandLineParser;
+import emt.main.Fingerprint;
+import javastraw.reader.Dataset;
+import javastraw.tools.HiCFileTools;
+
+public class Digest extends CLT {
+
+    private String file;
+    private int numThreads = Runtime.getRuntime().availableProcessors();
+
+    public Digest() {
+        super("digest [--threads num_threads] <file.hic>");
+    }
+
+    @Override
+    protected void readAdditionalArguments(String[] args, CommandLineParser parser) {
+        if (args.length != 2) {
+            printUsageAndExit(10);
+        }
+
+        file = args[1];
+        int threads = parser.getNumThreadsOption();
+        if (threads > 0) {
+            numThreads = threads;
+        }
+    }
+
+    @Override
+    public void run() {
+        Dataset ds = HiCFileTools.extractDatasetForCLT(file, false, false, false);
+        Fingerprint fingerprint = Fingerprint.load(file, ds, numThreads, null);
+        System.out.println("Digests of " + fingerprint.getNumMatrices() + " matrices");
+    }
+}
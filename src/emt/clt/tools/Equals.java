@@ -1,16 +1,24 @@
 package emt.clt.tools;
 
 import emt.clt.CommandLineParser;
+import emt.main.Fingerprint;
+import emt.utils.common.ProgressMeter;
+import emt.utils.validation.ValidationReport;
 import emt.utils.validation.ValidationTools;
 import javastraw.reader.Dataset;
 import javastraw.tools.HiCFileTools;
 
+import java.util.Set;
+
 public class Equals extends CLT {
 
     private String file1, file2;
+    private int numThreads = Runtime.getRuntime().availableProcessors();
+    private boolean earlyExit = false;
+    private boolean useDigests = false;
 
     public Equals() {
-        super("equals <file1.hic> <file2.hic>");
+        super("equals [--threads num_threads] [--early-exit] [--digest] <file1.hic> <file2.hic>");
     }
 
     @Override
@@ -21,6 +29,13 @@ public class Equals extends CLT {
 
         file1 = args[1];
         file2 = args[2];
+
+        int threads = parser.getNumThreadsOption();
+        if (threads > 0) {
+            numThreads = threads;
+        }
+        earlyExit = parser.getEarlyExitOption();
+        useDigests = parser.getDigestOption();
     }
 
     @Override
@@ -28,14 +43,54 @@ public class Equals extends CLT {
         Dataset ds1 = HiCFileTools.extractDatasetForCLT(file1, false, false, false);
         Dataset ds2 = HiCFileTools.extractDatasetForCLT(file2, false, false, false);
 
-        ValidationTools.validateGenomes(ds1, ds2);
-        ValidationTools.validateNormalizationTypes(ds1, ds2);
-        int highestRes = ValidationTools.validateResolutions(ds1, ds2);
-        ValidationTools.validateNormVectors(ds1, ds2);
-        ValidationTools.validateExpectedVectors(ds1, ds2);
-        // if the norm and expected vectors are identical, no need to check the actual reads?
-        // heuristic for now, but I think this should be true
-        ValidationTools.validateRawCounts(ds1, ds2, highestRes);
+        ValidationTools validation = new ValidationTools(ds1, ds2, numThreads, earlyExit);
+        validation.validateGenomes();
+        validation.validateNormalizationTypes();
+        validation.validateResolutions();
+        // vectors and counts are only matched up when both files have the same chromosomes, norms and zooms
+        ProgressMeter progress = null;
+        if (!validation.getReport().hasErrors()) {
+            progress = new ProgressMeter("equals", "vector checks",
+                    validation.getNumNormVectorTasks() + validation.getNumExpectedVectorTasks(),
+                    validation.getVectorCheckWeight());
+            if (useDigests) {
+                Fingerprint fingerprint1 = Fingerprint.load(file1, ds1, numThreads, null);
+                Fingerprint fingerprint2 = Fingerprint.load(file2, ds2, numThreads, fingerprint1);
+                if (fingerprint1.haveSameNormVectors(fingerprint2)) {
+                    System.out.println("Normalization vectors have identical digests");
+                } else {
+                    validation.validateNormVectors(progress);
+                }
+                if (fingerprint1.haveSameExpectedVectors(fingerprint2)) {
+                    System.out.println("Expected vectors have identical digests");
+                } else {
+                    validation.validateExpectedVectors(progress);
+                }
+                progress.close();
+                Set<String> differing = fingerprint1.getDifferingMatrices(fingerprint2);
+                System.out.println((fingerprint1.getNumMatrices() - differing.size()) + " matrices have identical " +
+                        "digests, " + differing.size() + " to compare");
+                if (!differing.isEmpty()) {
+                    validation.validateRawCounts(differing);
+                }
+            } else {
+                validation.validateNormVectors(progress);
+                validation.validateExpectedVectors(progress);
+                progress.close();
+                validation.validateRawCounts();
+            }
+        }
+
+        ValidationReport report = validation.getReport();
+        report.print();
+        if (report.hasErrors()) {
+            System.err.println(":( Validation failed, files differ"
+                    + (validation.isCancelled() ? " (stopped at the first difference)" : ""));
+            System.exit(37);
+        }
         System.out.println("(-: Validation successful, files are equivalent");
+        if (progress != null) {
+            System.out.println(progress.toJson());
+        }
     }
 }
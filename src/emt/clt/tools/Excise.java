@@ -1,27 +1,55 @@
 package emt.clt.tools;
 
 import emt.clt.CommandLineParser;
+import emt.main.ContactCounts;
 import emt.main.DatasetUtils;
+import emt.main.DryRun;
 import emt.main.Excision;
-import emt.main.FileBuildingMethod;
+import emt.main.SubsampleSeries;
+import emt.main.hic.HiCFileIndex;
+import emt.main.mnd.MNDFormat;
+import javastraw.feature2D.Feature2DList;
+import javastraw.feature2D.Feature2DParser;
 import javastraw.reader.Dataset;
+import javastraw.reader.basics.Chromosome;
 import javastraw.reader.basics.ChromosomeHandler;
 import javastraw.tools.HiCFileTools;
 import javastraw.tools.UNIXTools;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.TreeSet;
+
 public class Excise extends CLT {
 
     private int highestResolution = 1000;
-    private String file, folder, stem;
-    private long numberOfReadsToSubsample = 0L;
-    private double ratioToKeep = 1.0;
+    private String folder, stem;
+    private String[] files;
+    private double[] weights;
+    private final List<Long> depthsToSubsample = new ArrayList<>();
+    private List<Long> seeds = Collections.singletonList(0L);
     private boolean doCleanUp = false;
-    private long seed;
     private boolean onlyIntra = false;
+    private int numThreads = 1;
+    private int writerThreads = 0;
+    private MNDFormat format = MNDFormat.TEXT;
+    private boolean buildHiC = false;
+    private boolean resume = false;
+    private boolean exact = false;
+    private String boundingBoxesFile = null;
+    private boolean dryRun = false;
+    private String pipe = null;
+    private boolean sorted = false;
 
     public Excise() {
-        super("excise [-r resolution] [-c chromosomes] [--subsample num_contacts] " +
-                "[--cleanup] [--only-intra] <file> <out_folder> <stem>");
+        super("excise [-r resolution] [-c chromosomes] [--boxes bounding_boxes.bedpe] " +
+                "[--subsample num_contacts,...] [--seed seed,...] [--exact] " +
+                "[--cleanup] [--only-intra] [--threads num_threads] [--writer-threads num_threads] [--mnd-format text/binary/bgzf] [--build-hic] [--resume] " +
+                "[--weights w1,w2,...] [--dry-run] [--pipe command] [--sorted] <file1+file2+...> <out_folder> <stem>");
     }
 
     @Override
@@ -30,7 +58,7 @@ public class Excise extends CLT {
             printUsageAndExit(6);
         }
 
-        file = args[1];
+        files = args[1].split("\\+");
         folder = args[2];
         stem = args[3];
 
@@ -39,35 +67,200 @@ public class Excise extends CLT {
             highestResolution = res;
         }
 
-        long numReadsSubsample = parser.getSubsamplingOption();
-        if(numReadsSubsample > 1){
-            numberOfReadsToSubsample = numReadsSubsample;
+        List<Long> depths = parser.getMultipleSubsamplingOptions();
+        if (depths != null) {
+            for (long depth : depths) {
+                if (depth > 1) {
+                    depthsToSubsample.add(depth);
+                }
+            }
         }
         doCleanUp = parser.getCleanupOption();
-        seed = parser.getSeedOption();
+        List<Long> givenSeeds = parser.getMultipleSeedOptions();
+        if (givenSeeds != null && givenSeeds.size() > 0) {
+            seeds = givenSeeds;
+        }
         onlyIntra = parser.getIntraOption();
+
+        int threads = parser.getNumThreadsOption();
+        if (threads > 0) {
+            numThreads = threads;
+        }
+        writerThreads = parser.getWriterThreadsOption();
+        if (writerThreads < 1) {
+            writerThreads = numThreads;
+        }
+        format = parser.getMNDFormatOption();
+        buildHiC = parser.getBuildHiCOption();
+        resume = parser.getResumeOption();
+        exact = parser.getExactOption();
+        boundingBoxesFile = parser.getBoundingBoxesOption();
+        dryRun = parser.getDryRunOption();
+        if (exact && boundingBoxesFile != null) {
+            System.err.println("--exact cannot be used with --boxes, since the contacts in the boxes are not counted in advance");
+            System.exit(29);
+        }
+
+        sorted = parser.getSortedOption();
+        pipe = readPipeOption(parser, format, buildHiC, resume);
+        if (pipe != null && depthsToSubsample.size() * new LinkedHashSet<>(seeds).size() > 1) {
+            System.err.println("--pipe streams a single output, so it cannot be used with several depths or seeds");
+            System.exit(44);
+        }
+
+        weights = new double[files.length];
+        Arrays.fill(weights, 1);
+        List<Double> givenWeights = parser.getWeightsOption();
+        if (givenWeights != null) {
+            if (givenWeights.size() != files.length) {
+                System.err.println("Expected " + files.length + " weights, one per file");
+                System.exit(30);
+            }
+            for (int i = 0; i < files.length; i++) {
+                weights[i] = givenWeights.get(i);
+                if (Double.isNaN(weights[i]) || Double.isInfinite(weights[i]) || weights[i] < 0) {
+                    System.err.println("Weight " + weights[i] + " of " + files[i] + " must be a finite, non-negative number");
+                    System.exit(43);
+                }
+                if (exact && weights[i] != 1) {
+                    System.err.println("--exact cannot be used with --weights, since weighted counts are not whole contacts");
+                    System.exit(42);
+                }
+            }
+        }
     }
 
     @Override
     public void run() {
 
-        UNIXTools.makeDir(folder);
-
-        Dataset ds = HiCFileTools.extractDatasetForCLT(file, false, false, false);
-        ChromosomeHandler chromosomeHandler = ds.getChromosomeHandler();
+        Dataset[] datasets = new Dataset[files.length];
+        for (int i = 0; i < files.length; i++) {
+            datasets[i] = HiCFileTools.extractDatasetForCLT(files[i], false, false, false);
+        }
+        ChromosomeHandler chromosomeHandler = datasets[0].getChromosomeHandler();
         if (givenChromosomes != null)
             chromosomeHandler = HiCFileTools.stringToChromosomes(givenChromosomes, chromosomeHandler);
+        for (int i = 1; i < files.length; i++) {
+            for (Chromosome chromosome : chromosomeHandler.getChromosomeArrayWithoutAllByAll()) {
+                if (datasets[i].getChromosomeHandler().getChromosomeFromName(chromosome.getName()) == null) {
+                    System.err.println("Chromosome " + chromosome.getName() + " is missing from " + files[i]);
+                    System.exit(31);
+                }
+            }
+        }
 
-        if (numberOfReadsToSubsample > 0) {
-            long numTotalContacts = DatasetUtils.getTotalContacts(ds);
-            ratioToKeep = ((double) numberOfReadsToSubsample) / ((double) numTotalContacts);
-            System.out.println("Aiming to retain ~" + numberOfReadsToSubsample + "/" + numTotalContacts + " \n" +
-                    "Ratio: " + ratioToKeep);
+        Feature2DList boundingBoxes = null;
+        if (boundingBoxesFile != null) {
+            boundingBoxes = Feature2DParser.loadFeatures(boundingBoxesFile, chromosomeHandler, false, null, false);
         }
 
-        FileBuildingMethod excision = new Excision(ds, chromosomeHandler, highestResolution, folder,
-                numberOfReadsToSubsample > 1, ratioToKeep, doCleanUp, seed, onlyIntra,
-                stem);
-        FileBuildingMethod.tryToBuild(excision, onlyIntra);
+        int sourceResolution = DatasetUtils.getSourceResolution(datasets, highestResolution);
+        if (sourceResolution < 0) {
+            System.err.println("No resolution stored in " + (files.length > 1 ? "every file" : "the file")
+                    + " divides " + highestResolution);
+            System.exit(33);
+        }
+        if (sourceResolution != highestResolution) {
+            System.out.println("Aggregating " + sourceResolution + " bp bins into " + highestResolution + " bp bins");
+        }
+
+        if (dryRun) {
+            estimate(datasets, chromosomeHandler, boundingBoxes, sourceResolution);
+            return;
+        }
+        UNIXTools.makeDir(folder);
+
+        SubsampleSeries series = null;
+        if (depthsToSubsample.size() > 0) {
+            ContactCounts[] fileCounts = new ContactCounts[files.length];
+            for (int i = 0; i < files.length; i++) {
+                fileCounts[i] = ContactCounts.load(files[i], datasets[i], sourceResolution, numThreads);
+            }
+            ContactCounts counts = files.length == 1 && weights[0] == 1 ? fileCounts[0]
+                    : ContactCounts.merge(fileCounts, weights);
+            if (exact) {
+                if (!counts.isComplete()) {
+                    System.err.println("--exact needs the contacts of every pair, but some pairs could not be counted");
+                    System.exit(38);
+                }
+                // the depths are split across the pairs that are excised
+                counts = counts.restrict(chromosomeHandler.getChromosomeArrayWithoutAllByAll(), onlyIntra);
+            }
+            long numTotalContacts = counts.getTotalContacts();
+            for (long depth : depthsToSubsample) {
+                if (exact) {
+                    if (depth > numTotalContacts) {
+                        System.err.println("Cannot retain " + depth + " of " + numTotalContacts + " contacts");
+                        System.exit(28);
+                    }
+                    System.out.println("Retaining exactly " + depth + "/" + numTotalContacts);
+                } else {
+                    System.out.println("Aiming to retain ~" + depth + "/" + numTotalContacts + " \n" +
+                            "Ratio: " + ((double) depth) / ((double) numTotalContacts));
+                }
+            }
+            series = new SubsampleSeries(depthsToSubsample, seeds, counts, exact);
+        }
+
+        List<Excision> excisions = new ArrayList<>();
+        int numOutputs = series == null ? 1 : series.getNumOutputs();
+        for (int i = 0; i < numOutputs; i++) {
+            excisions.add(new Excision(files, datasets, weights, chromosomeHandler, boundingBoxes,
+                    highestResolution, folder, series, i,
+                    doCleanUp, onlyIntra, series == null ? stem : series.getStem(stem, i),
+                    numThreads, writerThreads, format, buildHiC, resume, pipe, sorted));
+        }
+        if (!Excision.tryToBuild(excisions, onlyIntra)) {
+            System.exit(39);
+        }
+    }
+
+    /**
+     * Reports the cost of the run from the block indexes; the subsampling ratios use the counts stored
+     * in the matrix metadata instead of counting contacts
+     */
+    private void estimate(Dataset[] datasets, ChromosomeHandler chromosomeHandler, Feature2DList boundingBoxes,
+                          int sourceResolution) {
+        try {
+            double totalContacts = 0;
+            for (int i = 0; i < files.length && totalContacts >= 0; i++) {
+                double fileContacts = DryRun.getTotalContacts(HiCFileIndex.open(files[i]), sourceResolution);
+                totalContacts = fileContacts < 0 ? -1 : totalContacts + weights[i] * fileContacts;
+            }
+
+            List<String> outputs = new ArrayList<>();
+            List<Double> ratios = new ArrayList<>();
+            if (depthsToSubsample.isEmpty() || totalContacts <= 0) {
+                if (!depthsToSubsample.isEmpty()) {
+                    System.err.println("Total contacts unknown without a local block index; estimating without subsampling");
+                }
+                outputs.add(stem);
+                ratios.add(1.0);
+            } else {
+                TreeSet<Long> depths = new TreeSet<>(Collections.reverseOrder());
+                depths.addAll(depthsToSubsample);
+                LinkedHashSet<Long> uniqueSeeds = new LinkedHashSet<>(seeds);
+                boolean isSeries = depths.size() * uniqueSeeds.size() > 1;
+                for (long seed : uniqueSeeds) {
+                    for (long depth : depths) {
+                        outputs.add(isSeries ? SubsampleSeries.getStem(stem, depth, seed) : stem);
+                        ratios.add(Math.min(1, depth / totalContacts));
+                    }
+                }
+            }
+
+            double[] ratioArray = new double[ratios.size()];
+            for (int o = 0; o < ratioArray.length; o++) {
+                ratioArray[o] = ratios.get(o);
+            }
+            Excision excision = new Excision(files, datasets, weights, chromosomeHandler, boundingBoxes,
+                    highestResolution, folder, null, 0, doCleanUp, onlyIntra, stem,
+                    numThreads, writerThreads, format, buildHiC, resume, pipe, sorted);
+            excision.estimate(new DryRun(highestResolution, sourceResolution, format, buildHiC,
+                    outputs.toArray(new String[0]), ratioArray));
+        } catch (IOException e) {
+            System.err.println("Unable to estimate the run: " + e.getMessage());
+            System.exit(32);
+        }
     }
 }
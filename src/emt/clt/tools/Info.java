@@ -1,26 +1,34 @@
 package emt.clt.tools;
 
 import emt.clt.CommandLineParser;
+import emt.main.hic.HiCFileIndex;
+import emt.utils.validation.BlockScanner;
+import emt.utils.validation.BlockValidator;
+import emt.utils.validation.ValidationReport;
 import javastraw.reader.Dataset;
 import javastraw.reader.DatasetReader;
 import javastraw.reader.basics.Chromosome;
-import javastraw.reader.mzd.Matrix;
-import javastraw.reader.mzd.MatrixZoomData;
 import javastraw.reader.norm.NormalizationVector;
 import javastraw.reader.type.HiCZoom;
 import javastraw.reader.type.NormalizationType;
 import javastraw.tools.HiCFileTools;
+import javastraw.tools.ParallelizationTools;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Info extends CLT {
 
     private String file;
+    private int numThreads = Runtime.getRuntime().availableProcessors();
+    private int blocksPerZoom = 1;
+    private boolean scan = false;
 
     public Info() {
-        super("info <file>");
+        super("info [--threads num_threads] [--blocks num_blocks] [--scan] <file>");
     }
 
     @Override
@@ -30,6 +38,20 @@ public class Info extends CLT {
         }
 
         file = args[1];
+
+        int threads = parser.getNumThreadsOption();
+        if (threads > 0) {
+            numThreads = threads;
+        }
+        scan = parser.getScanOption();
+        Integer blocks = parser.getBlocksOption();
+        if (blocks != null) {
+            if (blocks < 0) {
+                System.err.println("--blocks must be 0 (all blocks) or more");
+                System.exit(35);
+            }
+            blocksPerZoom = blocks;
+        }
     }
 
     @Override
@@ -65,8 +87,6 @@ public class Info extends CLT {
                 System.err.println("No normalization vectors in file");
             }
 
-            NormalizationType none = ds.getNormalizationHandler().getNormTypeFromString("NONE");
-
             List<HiCZoom> zooms = ds.getBpZooms();
             if (zooms.isEmpty()) {
                 System.err.println("No valid zooms");
@@ -78,55 +98,25 @@ public class Info extends CLT {
             }
 
             Chromosome[] array = ds.getChromosomeHandler().getChromosomeArrayWithoutAllByAll();
-            for (Chromosome chrom : array) {
-                for (NormalizationType norm : norms) {
-                    for (HiCZoom zoom : zooms) {
-                        NormalizationVector nv = ds.getNormalizationVector(chrom.getIndex(), zoom, norm);
-                        try {
-                            if (nv == null || nv.getData() == null) {
-                                System.err.println("Warning: no norm vector for: " + chrom.getName()
-                                        + " - " + norm.getLabel()
-                                        + " - " + zoom.getBinSize()
-                                );
-                            }
-                        } catch (Exception e) {
-                            System.err.println("Error: no norm vector for: " + chrom.getName()
-                                    + " - " + norm.getLabel()
-                                    + " - " + zoom.getBinSize()
-                            );
-                        }
-                    }
+            Arrays.sort(array, Comparator.comparingInt(Chromosome::getIndex));
+            ValidationReport report = new ValidationReport();
+            checkNormVectors(ds, array, norms, zooms, report);
+
+            HiCFileIndex hicIndex = file.contains("+") ? null : HiCFileIndex.open(file);
+            if (scan) {
+                if (hicIndex == null) {
+                    System.err.println("--scan needs a single local .hic file");
+                    System.exit(36);
                 }
+                new BlockScanner(hicIndex, numThreads, Runtime.getRuntime().maxMemory() / 4).scan(report);
+            } else {
+                new BlockValidator(ds, reader, hicIndex, numThreads, blocksPerZoom).validate(array, zooms, report);
             }
 
-            for (Chromosome chrom1 : array) {
-                for (Chromosome chrom2 : array) {
-                    System.out.print(".");
-                    Matrix matrix = ds.getMatrix(chrom1, chrom2);
-                    if (matrix == null) {
-                        System.err.println("Warning: no reads in " + chrom1.getName() + "-" + chrom2.getName());
-                    } else {
-                        for (HiCZoom zoom : zooms) {
-                            MatrixZoomData zd = matrix.getZoomData(zoom);
-                            if (zd == null) {
-                                System.err.println("Warning: no reads in " +
-                                        chrom1.getName() + "-" + chrom2.getName() + " at resolution " + zoom.getBinSize());
-                            } else {
-                                /* todo
-                                try {
-                                    reader.readNormalizedBlock(0, zd.getKey(), none, chrom1.getIndex(),
-                                            chrom2.getIndex(), zoom);
-                                } catch (Exception e) {
-                                    System.err.println("Unable to read block 0 in " +
-                                            getBlockDescription(chrom1, chrom2, zoom, none) +
-                                            "\n" + e.getLocalizedMessage() + "\n");
-                                }
-                                */
-                            }
-                        }
-                    }
-                }
-                System.out.println();
+            report.print();
+            if (report.hasErrors()) {
+                System.err.println(":( Validation failed");
+                System.exit(15);
             }
             System.out.println("(-: Validation successful");
         } catch (IOException error) {
@@ -136,7 +126,31 @@ public class Info extends CLT {
         }
     }
 
-    private String getBlockDescription(Chromosome chr, Chromosome chr2, HiCZoom zoom, NormalizationType type) {
-        return chr.getName() + "-" + chr2.getName() + "-" + zoom.getBinSize() + "-" + type.toString();
+    /**
+     * Checks that every chromosome has a vector for each normalization and zoom, one chromosome per thread
+     */
+    private void checkNormVectors(Dataset ds, Chromosome[] chromosomes, List<NormalizationType> norms,
+                                  List<HiCZoom> zooms, ValidationReport report) {
+        AtomicInteger index = new AtomicInteger(0);
+        ParallelizationTools.launchParallelizedCode(numThreads, () -> {
+            int c = index.getAndIncrement();
+            while (c < chromosomes.length) {
+                Chromosome chrom = chromosomes[c];
+                for (NormalizationType norm : norms) {
+                    for (HiCZoom zoom : zooms) {
+                        String description = chrom.getName() + " - " + norm.getLabel() + " - " + zoom.getBinSize();
+                        try {
+                            NormalizationVector nv = ds.getNormalizationVector(chrom.getIndex(), zoom, norm);
+                            if (nv == null || nv.getData() == null) {
+                                report.warn(c, "no norm vector for: " + description);
+                            }
+                        } catch (Exception e) {
+                            report.error(c, "no norm vector for: " + description);
+                        }
+                    }
+                }
+                c = index.getAndIncrement();
+            }
+        });
     }
 }
@@ -0,0 +1,37 @@
+package emt.clt.tools;
+
+import emt.clt.CommandLineParser;
+import emt.main.mnd.MNDConverter;
+
+import java.io.IOException;
+
+public class MndToText extends CLT {
+
+    private String input, output;
+
+    public MndToText() {
+        super("mnd-to-text <input.mnd.bin> <output.mnd.txt>");
+    }
+
+    @Override
+    protected void readAdditionalArguments(String[] args, CommandLineParser parser) {
+        if (args.length != 3) {
+            printUsageAndExit(9);
+        }
+
+        input = args[1];
+        output = args[2];
+    }
+
+    @Override
+    public void run() {
+        try {
+            long numRecords = MNDConverter.binaryToText(input, output);
+            System.out.println("Converted " + numRecords + " records");
+        } catch (IOException e) {
+            System.err.println("Unable to convert " + input);
+            e.printStackTrace();
+            System.exit(27);
+        }
+    }
+}
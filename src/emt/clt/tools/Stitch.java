@@ -1,10 +1,14 @@
 package emt.clt.tools;
 
 import emt.clt.CommandLineParser;
+import emt.main.DryRun;
 import emt.main.FileBuildingMethod;
 import emt.main.Stitcher;
+import emt.main.mnd.MNDFormat;
 import javastraw.tools.UNIXTools;
 
+import java.io.IOException;
+
 public class Stitch extends CLT {
 
     private int resolution = 1000;
@@ -14,10 +18,18 @@ public class Stitch extends CLT {
     private String stem;
     private boolean doCleanUp = false;
     private long seed;
+    private MNDFormat format = MNDFormat.TEXT;
+    private boolean buildHiC = false;
+    private boolean resume = false;
+    private int numThreads = 1;
+    private int writerThreads;
+    private int prefetch = 2;
+    private boolean dryRun = false;
+    private String pipe = null;
 
     public Stitch() {
         super("stitch [-r resolution] [-k NONE/VC/VC_SQRT/KR/SCALE] [--reset-origin]" +
-                "[--cleanup] <file1,file2,...> <name1,name2,...> <chr1:x1:y1,chr2:x2:y2,...> <out_folder> <stem>");
+                "[--cleanup] [--threads num_threads] [--writer-threads num_threads] [--prefetch num_blocks] [--mnd-format text/binary/bgzf] [--build-hic] [--resume] [--dry-run] [--pipe command] <file1,file2,...> <name1,name2,...> <chr1:x1:y1,chr2:x2:y2,...> <out_folder> <stem>");
     }
 
     @Override
@@ -49,14 +61,41 @@ public class Stitch extends CLT {
         adjustOrigin = parser.getResetOrigin();
         doCleanUp = parser.getCleanupOption();
         seed = parser.getSeedOption();
+        format = parser.getMNDFormatOption();
+        buildHiC = parser.getBuildHiCOption();
+        resume = parser.getResumeOption();
+        dryRun = parser.getDryRunOption();
+        pipe = readPipeOption(parser, format, buildHiC, resume);
+        int threads = parser.getNumThreadsOption();
+        if (threads > 0) {
+            numThreads = threads;
+        }
+        writerThreads = parser.getWriterThreadsOption();
+        if (writerThreads < 1) {
+            writerThreads = numThreads;
+        }
+        Integer blocks = parser.getPrefetchOption();
+        if (blocks != null) {
+            prefetch = Math.max(0, blocks);
+        }
     }
 
     @Override
     public void run() {
 
+        Stitcher stitcher = new Stitcher(files, stems, regions, norm, adjustOrigin,
+                resolution, folder, doCleanUp, seed, stem, format, buildHiC, resume,
+                numThreads, writerThreads, prefetch, pipe);
+        if (dryRun) {
+            try {
+                stitcher.estimate(new DryRun(resolution, resolution, format, buildHiC, new String[]{stem}, new double[]{1}));
+            } catch (IOException e) {
+                System.err.println("Unable to estimate the run: " + e.getMessage());
+                System.exit(45);
+            }
+            return;
+        }
         UNIXTools.makeDir(folder);
-        FileBuildingMethod stitcher = new Stitcher(files, stems, regions, norm, adjustOrigin,
-                resolution, folder, doCleanUp, seed, stem);
         FileBuildingMethod.tryToBuild(stitcher, true);
     }
 }
@@ -0,0 +1,163 @@
+package emt.main;
+
+import javastraw.feature2D.Feature2D;
+import javastraw.feature2D.Feature2DList;
+import javastraw.reader.basics.Chromosome;
+import javastraw.reader.block.Block;
+import javastraw.reader.block.ContactRecord;
+import javastraw.reader.mzd.MatrixZoomData;
+import javastraw.reader.type.NormalizationType;
+import javastraw.tools.HiCFileTools;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Bounding boxes of one chromosome pair, in bins. Only the blocks intersecting a box are read,
+ * and only the contacts inside a box are kept. For intra-chromosomal pairs, a contact is inside
+ * a box if either orientation is, since only the upper triangle is stored.
+ */
+public class BoundingBoxes {
+
+    private final List<long[]> boxes = new ArrayList<>();
+    private final boolean isIntra;
+
+    private BoundingBoxes(boolean isIntra) {
+        this.isIntra = isIntra;
+    }
+
+    /**
+     * @return the boxes of the pair, or null if it has none
+     */
+    public static BoundingBoxes get(Feature2DList features, Chromosome c1, Chromosome c2, int resolution) {
+        BoundingBoxes result = new BoundingBoxes(c1.getIndex() == c2.getIndex());
+        result.addBoxes(features.get(Feature2DList.getKey(c1, c2)), resolution, false);
+        if (!result.isIntra) {
+            result.addBoxes(features.get(Feature2DList.getKey(c2, c1)), resolution, true);
+        }
+        return result.boxes.isEmpty() ? null : result;
+    }
+
+    private void addBoxes(List<Feature2D> features, int resolution, boolean transpose) {
+        if (features == null) return;
+        for (Feature2D feature : features) {
+            long[] box = new long[]{feature.getStart1() / resolution, (feature.getEnd1() - 1) / resolution,
+                    feature.getStart2() / resolution, (feature.getEnd2() - 1) / resolution};
+            boxes.add(transpose ? transpose(box) : box);
+        }
+    }
+
+    private static long[] transpose(long[] box) {
+        return new long[]{box[2], box[3], box[0], box[1]};
+    }
+
+    /**
+     * @return the boxes with x and y swapped, for a file storing the pair in the other order
+     */
+    public BoundingBoxes getTransposed() {
+        BoundingBoxes result = new BoundingBoxes(isIntra);
+        for (long[] box : boxes) {
+            result.boxes.add(transpose(box));
+        }
+        return result;
+    }
+
+    /**
+     * @return a digest of all the boxes that does not depend on their order, to tell runs on other boxes apart
+     */
+    public static long getDigest(Feature2DList features) {
+        AtomicLong digest = new AtomicLong(0);
+        features.processLists((key, list) -> {
+            for (Feature2D feature : list) {
+                CRC32 crc = new CRC32();
+                crc.update((key + "\t" + feature.getStart1() + "\t" + feature.getEnd1() + "\t"
+                        + feature.getStart2() + "\t" + feature.getEnd2()).getBytes(StandardCharsets.UTF_8));
+                digest.addAndGet(crc.getValue());
+            }
+        });
+        return digest.get();
+    }
+
+    /**
+     * @return number of bins covered by the boxes, counting overlaps more than once
+     */
+    public long getArea() {
+        long area = 0;
+        for (long[] box : boxes) {
+            area += (box[1] - box[0] + 1) * (box[3] - box[2] + 1);
+        }
+        return area;
+    }
+
+    /**
+     * @return the boxes as inclusive ranges of bins {x0, x1, y0, y1}, with their transposes for intra pairs
+     */
+    public List<long[]> getRectangles() {
+        List<long[]> rectangles = new ArrayList<>();
+        for (long[] box : boxes) {
+            rectangles.add(box.clone());
+            if (isIntra) {
+                rectangles.add(transpose(box));
+            }
+        }
+        return rectangles;
+    }
+
+    /**
+     * @return the blocks intersecting the boxes, in block order
+     */
+    public List<Block> getBlocks(MatrixZoomData zd, NormalizationType norm) throws IOException {
+        Map<Integer, Block> blocks = new TreeMap<>();
+        for (long[] box : boxes) {
+            addBlocks(blocks, zd, box, norm);
+            if (isIntra) {
+                addBlocks(blocks, zd, transpose(box), norm);
+            }
+        }
+        return new ArrayList<>(blocks.values());
+    }
+
+    /**
+     * @return the contacts of the blocks that are inside the boxes
+     */
+    public List<ContactRecord> getContacts(List<Block> blocks) {
+        List<ContactRecord> contacts = new ArrayList<>();
+        for (Block block : blocks) {
+            for (ContactRecord cr : block.getContactRecords()) {
+                if (contains(cr.getBinX(), cr.getBinY())) {
+                    contacts.add(cr);
+                }
+            }
+        }
+        return contacts;
+    }
+
+    private static void addBlocks(Map<Integer, Block> blocks, MatrixZoomData zd, long[] box,
+                                  NormalizationType norm) throws IOException {
+        for (Block block : HiCFileTools.getAllRegionBlocks(zd, box[0], box[1] + 1, box[2], box[3] + 1,
+                norm, false)) {
+            if (block != null) {
+                blocks.putIfAbsent(block.getNumber(), block);
+            }
+        }
+    }
+
+    private boolean contains(int binX, int binY) {
+        for (long[] box : boxes) {
+            if (isInside(box, binX, binY) || (isIntra && isInside(box, binY, binX))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isInside(long[] box, int binX, int binY) {
+        return box[0] <= binX && binX <= box[1] && box[2] <= binY && binY <= box[3];
+    }
+}
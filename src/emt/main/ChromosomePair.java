@@ -0,0 +1,54 @@
+package emt.main;
+
+import javastraw.reader.basics.Chromosome;
+
+/**
+ * A chromosome pair to be extracted, along with its position in the canonical (serial) output order
+ * and an estimate of how much work it represents.
+ */
+public class ChromosomePair {
+
+    private final int order;
+    private final Chromosome chr1, chr2;
+    private final long estimatedSize;
+    private final BoundingBoxes boxes;
+
+    /**
+     * @param boxes boxes to extract from the pair, or null to extract all of it
+     */
+    public ChromosomePair(int order, Chromosome chr1, Chromosome chr2, long estimatedSize, BoundingBoxes boxes) {
+        this.order = order;
+        this.chr1 = chr1;
+        this.chr2 = chr2;
+        this.estimatedSize = estimatedSize;
+        this.boxes = boxes;
+    }
+
+    public int getOrder() {
+        return order;
+    }
+
+    public Chromosome getChr1() {
+        return chr1;
+    }
+
+    public Chromosome getChr2() {
+        return chr2;
+    }
+
+    public long getEstimatedSize() {
+        return estimatedSize;
+    }
+
+    public BoundingBoxes getBoxes() {
+        return boxes;
+    }
+
+    public String getShardName() {
+        return chr1.getIndex() + "_" + chr2.getIndex();
+    }
+
+    public String getDescription() {
+        return chr1.getName() + "-" + chr2.getName();
+    }
+}
@@ -0,0 +1,286 @@
+package emt.main;
+
+import emt.main.hic.HiCFileIndex;
+import emt.utils.common.ProgressMeter;
+import emt.utils.sampling.HypergeometricSampler;
+import javastraw.reader.Dataset;
+import javastraw.reader.basics.Chromosome;
+import javastraw.tools.ParallelizationTools;
+
+import java.io.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Per chromosome pair totals of a .hic file at the resolution its contacts are read at: the sum of raw counts,
+ * the number of non-zero pixels and the largest pixel count. They are computed in parallel and, for local files,
+ * saved to a small tab-separated sidecar per resolution keyed by the file's size and modification time,
+ * so later runs on the same file skip the scan.
+ */
+public class ContactCounts {
+
+    private static final String HEADER = "#hic-emt contact counts v1";
+    private static final String EXTENSION = ".emt_counts_";
+    private static final int TOTAL = 0, NON_ZERO = 1, MAX = 2;
+
+    private final int resolution;
+    private final Map<String, double[]> counts = new LinkedHashMap<>();
+    private boolean isComplete = true;
+
+    private ContactCounts(int resolution) {
+        this.resolution = resolution;
+    }
+
+    static String getKey(String chr1, String chr2) {
+        return chr1 + "\t" + chr2;
+    }
+
+    /**
+     * @param resolution stored resolution the contacts are read at, so the totals match the contacts excised
+     */
+    public static ContactCounts load(String file, Dataset ds, int resolution, int numThreads) {
+        File hicFile = new File(file);
+        File sidecar = new File(file + EXTENSION + resolution + ".txt");
+        boolean isLocal = !file.contains("://") && hicFile.isFile();
+
+        if (isLocal && sidecar.isFile()) {
+            try {
+                ContactCounts cached = read(sidecar, hicFile, resolution);
+                if (cached != null && cached.hasAllPairs(ds)) {
+                    System.out.println("Using contact counts from " + sidecar.getPath());
+                    return cached;
+                }
+            } catch (IOException | NumberFormatException e) {
+                System.err.println("Ignoring unreadable " + sidecar.getPath() + ": " + e.getMessage());
+            }
+        }
+
+        ContactCounts computed = new ContactCounts(resolution);
+        computed.isComplete = computed.compute(ds, isLocal ? HiCFileIndex.open(file) : null, numThreads);
+        if (isLocal && computed.isComplete) {
+            try {
+                computed.write(sidecar, hicFile);
+            } catch (IOException e) {
+                System.err.println("Unable to save contact counts to " + sidecar.getPath() + ": " + e.getMessage());
+            }
+        }
+        return computed;
+    }
+
+    /**
+     * @return false if any pair could not be read
+     */
+    private boolean compute(Dataset ds, HiCFileIndex hicIndex, int numThreads) {
+        Chromosome[] chroms = ds.getChromosomeHandler().getChromosomeArrayWithoutAllByAll();
+        int numPairs = chroms.length * (chroms.length + 1) / 2;
+        Chromosome[][] pairs = new Chromosome[numPairs][];
+        long[] areas = new long[numPairs];
+        long totalArea = 0;
+        int p = 0;
+        for (int i = 0; i < chroms.length; i++) {
+            for (int j = i; j < chroms.length; j++) {
+                areas[p] = (chroms[i].getLength() / resolution + 1) * (chroms[j].getLength() / resolution + 1);
+                totalArea += areas[p];
+                pairs[p++] = new Chromosome[]{chroms[i], chroms[j]};
+            }
+        }
+
+        double[][] results = new double[numPairs][];
+        AtomicInteger index = new AtomicInteger(0);
+        AtomicBoolean complete = new AtomicBoolean(true);
+        try (ProgressMeter progress = new ProgressMeter("count", "pairs", numPairs, totalArea)) {
+            ParallelizationTools.launchParallelizedCode(Math.max(1, numThreads), () -> {
+                int i = index.getAndIncrement();
+                while (i < numPairs) {
+                    ProgressMeter.Unit unit = progress.start(pairs[i][0].getName() + "-" + pairs[i][1].getName(),
+                            areas[i]);
+                    try {
+                        results[i] = DatasetUtils.getPairCounts(ds, hicIndex, pairs[i][0], pairs[i][1],
+                                resolution, unit);
+                    } catch (Exception e) {
+                        System.err.println(pairs[i][0].getName() + " - " + pairs[i][1].getName());
+                        e.printStackTrace();
+                        results[i] = new double[3];
+                        complete.set(false);
+                    }
+                    unit.finish();
+                    i = index.getAndIncrement();
+                }
+            });
+        }
+
+        for (int i = 0; i < numPairs; i++) {
+            counts.put(getKey(pairs[i][0].getName(), pairs[i][1].getName()), results[i]);
+        }
+        return complete.get();
+    }
+
+    private boolean hasAllPairs(Dataset ds) {
+        Chromosome[] chroms = ds.getChromosomeHandler().getChromosomeArrayWithoutAllByAll();
+        for (int i = 0; i < chroms.length; i++) {
+            for (int j = i; j < chroms.length; j++) {
+                if (!counts.containsKey(getKey(chroms[i].getName(), chroms[j].getName()))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the cached counts, or null if the sidecar belongs to another version of the file
+     */
+    private static ContactCounts read(File sidecar, File hicFile, int resolution) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new FileReader(sidecar))) {
+            if (!HEADER.equals(reader.readLine())) return null;
+            if (!("#size\t" + hicFile.length()).equals(reader.readLine())) return null;
+            if (!("#mtime\t" + hicFile.lastModified()).equals(reader.readLine())) return null;
+            if (!("#resolution\t" + resolution).equals(reader.readLine())) return null;
+
+            ContactCounts cached = new ContactCounts(resolution);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("#")) continue;
+                String[] fields = line.split("\t");
+                cached.counts.put(getKey(fields[0], fields[1]), new double[]{Double.parseDouble(fields[2]),
+                        Double.parseDouble(fields[3]), Double.parseDouble(fields[4])});
+            }
+            return cached;
+        }
+    }
+
+    private void write(File sidecar, File hicFile) throws IOException {
+        File temp = new File(sidecar.getPath() + ".tmp");
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(temp))) {
+            writer.write(HEADER);
+            writer.newLine();
+            writer.write("#size\t" + hicFile.length());
+            writer.newLine();
+            writer.write("#mtime\t" + hicFile.lastModified());
+            writer.newLine();
+            writer.write("#resolution\t" + resolution);
+            writer.newLine();
+            writer.write("#chr1\tchr2\ttotal\tnon_zero_pixels\tmax_count");
+            writer.newLine();
+            for (Map.Entry<String, double[]> entry : counts.entrySet()) {
+                double[] values = entry.getValue();
+                writer.write(entry.getKey() + "\t" + values[TOTAL] + "\t" + (long) values[NON_ZERO] + "\t" + values[MAX]);
+                writer.newLine();
+            }
+        }
+        if (!temp.renameTo(sidecar)) {
+            throw new IOException("Unable to rename " + temp.getPath());
+        }
+    }
+
+    /**
+     * Counts of several files excised together, each scaled by its weight. The number of non-zero pixels is
+     * the largest of any file and the largest count is the sum of the largest counts, as pixels are not matched.
+     */
+    public static ContactCounts merge(ContactCounts[] files, double[] weights) {
+        ContactCounts merged = new ContactCounts(files[0].resolution);
+        for (int i = 0; i < files.length; i++) {
+            merged.isComplete &= files[i].isComplete;
+            for (Map.Entry<String, double[]> entry : files[i].counts.entrySet()) {
+                double[] values = merged.counts.computeIfAbsent(entry.getKey(), k -> new double[3]);
+                values[TOTAL] += weights[i] * entry.getValue()[TOTAL];
+                values[NON_ZERO] = Math.max(values[NON_ZERO], entry.getValue()[NON_ZERO]);
+                values[MAX] += weights[i] * entry.getValue()[MAX];
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * @param onlyIntra keep only the pairs of a chromosome with itself
+     * @return the counts of the pairs of the given chromosomes, matched by name
+     */
+    public ContactCounts restrict(Chromosome[] chromosomes, boolean onlyIntra) {
+        ContactCounts restricted = new ContactCounts(resolution);
+        restricted.isComplete = isComplete;
+        for (int i = 0; i < chromosomes.length; i++) {
+            for (int j = i; j < chromosomes.length; j++) {
+                if (onlyIntra && i != j) continue;
+                String key = getKey(chromosomes[i].getName(), chromosomes[j].getName());
+                double[] values = counts.get(key);
+                if (values != null) {
+                    restricted.counts.put(key, values);
+                }
+            }
+        }
+        return restricted;
+    }
+
+    /**
+     * Splits target numbers of contacts across the chromosome pairs with multivariate hypergeometric draws
+     * (a conditional hypergeometric draw per pair, in pair order), as if each target were drawn without
+     * replacement from all contacts of the file. Targets are in decreasing order and each is drawn from the
+     * contacts allocated to the one before, so the allocations are nested.
+     *
+     * @return pair key to {contacts to keep for each target, contacts in the pair}
+     */
+    public Map<String, long[]> allocate(long[] targets, long seed) {
+        HypergeometricSampler sampler = new HypergeometricSampler(seed);
+        long[] remainingPopulation = new long[targets.length];
+        long[] remainingTarget = targets.clone();
+        for (double[] values : counts.values()) {
+            remainingPopulation[0] += (long) values[TOTAL];
+        }
+        for (int t = 1; t < targets.length; t++) {
+            remainingPopulation[t] = targets[t - 1];
+        }
+
+        Map<String, long[]> allocations = new LinkedHashMap<>();
+        for (Map.Entry<String, double[]> entry : counts.entrySet()) {
+            long[] allocation = new long[targets.length + 1];
+            long available = (long) entry.getValue()[TOTAL];
+            allocation[targets.length] = available;
+            for (int t = 0; t < targets.length; t++) {
+                long good = Math.min(remainingTarget[t], remainingPopulation[t]);
+                long keep = sampler.sample(good, remainingPopulation[t] - good, available);
+                allocation[t] = keep;
+                remainingPopulation[t] -= available;
+                remainingTarget[t] -= keep;
+                available = keep;
+            }
+            allocations.put(entry.getKey(), allocation);
+        }
+        return allocations;
+    }
+
+    /**
+     * @return false if some pairs could not be counted, and were given no contacts
+     */
+    public boolean isComplete() {
+        return isComplete;
+    }
+
+    public int getResolution() {
+        return resolution;
+    }
+
+    public long getTotalContacts() {
+        double total = 0;
+        for (double[] values : counts.values()) {
+            total += values[TOTAL];
+        }
+        return (long) total;
+    }
+
+    public double getTotalContacts(String chr1, String chr2) {
+        double[] values = counts.get(getKey(chr1, chr2));
+        return values == null ? 0 : values[TOTAL];
+    }
+
+    public long getNonZeroPixels(String chr1, String chr2) {
+        double[] values = counts.get(getKey(chr1, chr2));
+        return values == null ? 0 : (long) values[NON_ZERO];
+    }
+
+    public double getMaxCount(String chr1, String chr2) {
+        double[] values = counts.get(getKey(chr1, chr2));
+        return values == null ? 0 : values[MAX];
+    }
+}
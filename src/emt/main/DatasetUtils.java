@@ -1,8 +1,10 @@
 package emt.main;
 
+import emt.main.hic.HiCFileIndex;
+import emt.main.hic.ZoomIndex;
+import emt.utils.common.ProgressMeter;
 import javastraw.reader.Dataset;
 import javastraw.reader.basics.Chromosome;
-import javastraw.reader.basics.ChromosomeHandler;
 import javastraw.reader.block.Block;
 import javastraw.reader.block.ContactRecord;
 import javastraw.reader.mzd.MatrixZoomData;
@@ -10,64 +12,108 @@ import javastraw.reader.type.HiCZoom;
 import javastraw.reader.type.NormalizationType;
 import javastraw.tools.HiCFileTools;
 
+import java.io.IOException;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 public class DatasetUtils {
 
-    public static long getTotalContacts(Dataset ds) {
-        ChromosomeHandler handler = ds.getChromosomeHandler();
-        Chromosome[] chroms = handler.getChromosomeArrayWithoutAllByAll();
-
-        long totalCounts = 0L;
-        int lowestResZoom = getLowestResolution(ds);
+    /**
+     * @return {sum of counts, number of non-zero pixels, largest count} for the pair at the given resolution
+     */
+    static double[] getPairCounts(Dataset ds, HiCFileIndex hicIndex, Chromosome chr1, Chromosome chr2,
+                                  int resolution, ProgressMeter.Unit unit) throws IOException {
         NormalizationType normNone = ds.getNormalizationHandler().getNormTypeFromString("NONE");
+        final MatrixZoomData zd = HiCFileTools.getMatrixZoomData(ds, chr1, chr2, resolution);
+        int lengthChr1 = (int) (chr1.getLength() / resolution) + 1;
+        int lengthChr2 = (int) (chr2.getLength() / resolution) + 1;
 
-        for (int i = 0; i < chroms.length; i++) {
-            Chromosome chr1 = chroms[i];
-            for (int j = i; j < chroms.length; j++) {
-                Chromosome chr2 = chroms[j];
-                final MatrixZoomData zd = HiCFileTools.getMatrixZoomData(ds, chr1, chr2, lowestResZoom);
-                int lengthChr1 = (int) (chr1.getLength() / lowestResZoom ) + 1;
-                int lengthChr2 = (int) (chr2.getLength() / lowestResZoom ) + 1;
+        List<Block> blocks = HiCFileTools.getAllRegionBlocks(zd,
+                0, lengthChr1, 0, lengthChr2, normNone, false);
+        addBlocksRead(hicIndex, chr1, chr2, resolution, blocks, unit);
+        return getCountsFromRegion(blocks, unit);
+    }
 
-                try {
-                    List<Block> blocks = HiCFileTools.getAllRegionBlocks(zd,
-                            0, lengthChr1, 0, lengthChr2, normNone, false);
-                    totalCounts += getTotalCountsFromRegion(blocks);
-                } catch (Exception e) {
-                    System.err.println(chr1.getName() + " - " + chr2.getName());
-                    e.printStackTrace();
+    /**
+     * Records the blocks read for a chromosome pair and, when the block index is available, their compressed size
+     *
+     * @param blocks blocks read, or null if every block of the pair was read
+     */
+    static void addBlocksRead(HiCFileIndex hicIndex, Chromosome c1, Chromosome c2, int resolution,
+                              List<Block> blocks, ProgressMeter.Unit unit) {
+        ZoomIndex zoomIndex = null;
+        if (hicIndex != null) {
+            try {
+                zoomIndex = hicIndex.getZoomIndex(c1.getIndex(), c2.getIndex(), resolution);
+            } catch (IOException e) {
+                System.err.println("Unable to read block index for " + c1.getName() + "-" + c2.getName());
+            }
+        }
+        if (blocks != null) {
+            Set<Integer> numbers = new HashSet<>();
+            for (Block block : blocks) {
+                if (block != null) {
+                    numbers.add(block.getNumber());
                 }
             }
+            unit.addBlocks(numbers.size());
+            if (zoomIndex != null) {
+                unit.addBytesRead(zoomIndex.getCompressedSize(numbers));
+            }
+        } else if (zoomIndex != null) {
+            unit.addBlocks(zoomIndex.getBlocks().size());
+            unit.addBytesRead(zoomIndex.getCompressedSize());
         }
+    }
 
-        return totalCounts;
+    /**
+     * @return the largest base-pair bin size stored in every file that divides the resolution,
+     * or -1 if there is none
+     */
+    public static int getSourceResolution(Dataset[] datasets, int resolution) {
+        int best = -1;
+        for (HiCZoom zoom : datasets[0].getBpZooms()) {
+            int binSize = zoom.getBinSize();
+            if (binSize > best && resolution % binSize == 0 && isStoredInAll(datasets, binSize)) {
+                best = binSize;
+            }
+        }
+        return best;
     }
 
-    private static int getLowestResolution(Dataset ds) {
-        List<HiCZoom> zooms = ds.getBpZooms();
-        int maxResolution = zooms.get(0).getBinSize();
-        for (HiCZoom zoom : zooms) {
-            if (zoom.getBinSize() > maxResolution) {
-                maxResolution = zoom.getBinSize();
+    private static boolean isStoredInAll(Dataset[] datasets, int binSize) {
+        for (Dataset ds : datasets) {
+            boolean isStored = false;
+            for (HiCZoom zoom : ds.getBpZooms()) {
+                isStored |= zoom.getBinSize() == binSize;
             }
+            if (!isStored) return false;
         }
-        return maxResolution;
+        return true;
     }
 
-    private static long getTotalCountsFromRegion(List<Block> blocks) {
+    private static double[] getCountsFromRegion(List<Block> blocks, ProgressMeter.Unit unit) {
         double total = 0;
+        long nonZero = 0;
+        double max = 0;
 
         for (Block b : blocks) {
             if (b != null) {
+                unit.addRecords(b.getContactRecords().size());
                 for (ContactRecord cr : b.getContactRecords()) {
-                    if(!Float.isNaN(cr.getCounts())) {
-                        total += cr.getCounts();
+                    float counts = cr.getCounts();
+                    if (!Float.isNaN(counts)) {
+                        total += counts;
+                        if (counts > 0) {
+                            nonZero++;
+                            max = Math.max(max, counts);
+                        }
                     }
                 }
             }
         }
 
-        return (long) total;
+        return new double[]{total, nonZero, max};
     }
-}
\ No newline at end of file
+}
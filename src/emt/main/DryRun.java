@@ -0,0 +1,260 @@
+package emt.main;
+
+import emt.main.hic.BlockIndexEntry;
+import emt.main.hic.HiCFileIndex;
+import emt.main.hic.ZoomIndex;
+import emt.main.mnd.BinaryMNDWriter;
+import emt.main.mnd.MNDFormat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Estimates what an excise or stitch run would read and write from the headers and block indexes of local
+ * .hic files, without decoding any contacts. The record count stored at the start of a sample of blocks is
+ * extrapolated to the other blocks by compressed size. When subsampling, a record holding c contacts is kept
+ * with probability 1 - (1 - ratio)^c, taking c as the mean count per record of the pair. When the resolution is
+ * aggregated from a finer stored one, the number of records is interpolated on a log-log scale between that
+ * resolution and the next coarser stored one.
+ */
+public class DryRun {
+
+    private static final int SAMPLED_BLOCKS = 16;
+    // typical size of the BGZF text relative to the plain text
+    private static final double BGZF_COMPRESSION = 0.25;
+    // typical size of a binary record with varint position deltas and counts
+    private static final double ESTIMATED_BINARY_RECORD_BYTES = 6;
+
+    private final int resolution;
+    private final int sourceResolution;
+    private final MNDFormat format;
+    private final boolean buildHiC;
+    private final String[] outputs;
+    private final double[] ratios;
+    private final Read total = new Read();
+    private final double[] outputRecords, outputBytes;
+    private boolean isIncomplete = false;
+
+    /**
+     * @param sourceResolution stored resolution the contacts are read at
+     * @param outputs          names of the outputs
+     * @param ratios           fraction of the contacts kept for each output, 1 without subsampling
+     */
+    public DryRun(int resolution, int sourceResolution, MNDFormat format, boolean buildHiC, String[] outputs,
+                  double[] ratios) {
+        this.resolution = resolution;
+        this.sourceResolution = sourceResolution;
+        this.format = format;
+        this.buildHiC = buildHiC;
+        this.outputs = outputs;
+        this.ratios = ratios;
+        outputRecords = new double[outputs.length];
+        outputBytes = new double[outputs.length];
+        System.out.println("region\tblocks\tcompressed_bytes\trecords\tcontacts\toutput_records\toutput_bytes"
+                + (outputs.length > 1 ? " (" + outputs[0] + ")" : ""));
+    }
+
+    /**
+     * @return the weighted sum of the counts of all chromosome pairs at the resolution, or -1 without a block index
+     */
+    public static double getTotalContacts(HiCFileIndex hicIndex, int resolution) throws IOException {
+        if (hicIndex == null) return -1;
+        String[] names = hicIndex.getChromosomeNames();
+        double total = 0;
+        for (String key : hicIndex.getMatrixKeys()) {
+            String[] indices = key.split("_");
+            int chr1 = Integer.parseInt(indices[0]);
+            int chr2 = Integer.parseInt(indices[1]);
+            if (names[chr1].equalsIgnoreCase("All") || names[chr2].equalsIgnoreCase("All")) continue;
+            ZoomIndex zoomIndex = hicIndex.getZoomIndex(chr1, chr2, resolution);
+            if (zoomIndex != null) {
+                total += zoomIndex.getSumCounts();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * What is read from one chromosome pair of one file, possibly summed over several files
+     */
+    public static class Read {
+        private boolean isKnown = true;
+        private double blocks = 0, compressedBytes = 0, records = 0, contacts = 0, hicBytes = 0;
+
+        public void add(Read other) {
+            isKnown &= other.isKnown;
+            blocks += other.blocks;
+            compressedBytes += other.compressedBytes;
+            records += other.records;
+            contacts += other.contacts;
+            hicBytes += other.hicBytes;
+        }
+    }
+
+    /**
+     * @param chr1Index  index of the first chromosome of the pair, as stored in the file
+     * @param chr2Index  index of the second chromosome of the pair, as stored in the file
+     * @param rectangles bins to read (x0, x1, y0, y1, inclusive), or null to read the whole pair
+     * @param weight     factor applied to the counts of the file
+     */
+    public Read read(HiCFileIndex hicIndex, int chr1Index, int chr2Index, List<long[]> rectangles,
+                     double weight) throws IOException {
+        Read read = new Read();
+        if (hicIndex == null) {
+            read.isKnown = false;
+            return read;
+        }
+        ZoomIndex zoomIndex = hicIndex.getZoomIndex(chr1Index, chr2Index, sourceResolution);
+        if (zoomIndex == null) return read;
+
+        List<BlockIndexEntry> blocks = zoomIndex.getBlocks();
+        if (rectangles != null) {
+            Set<BlockIndexEntry> selected = new LinkedHashSet<>();
+            for (long[] rectangle : rectangles) {
+                selected.addAll(zoomIndex.getBlocks(rectangle[0], rectangle[1], rectangle[2], rectangle[3],
+                        hicIndex.getVersion()));
+            }
+            blocks = new ArrayList<>(selected);
+        }
+
+        for (BlockIndexEntry entry : blocks) {
+            read.compressedBytes += entry.getSize();
+        }
+        read.blocks = blocks.size();
+        if (blocks.isEmpty()) return read;
+
+        double sourceRecords = estimateRecords(hicIndex, blocks);
+        double fraction = zoomIndex.getCompressedSize() > 0
+                ? read.compressedBytes / zoomIndex.getCompressedSize() : 0;
+        read.records = sourceRecords;
+        if (sourceResolution != resolution) {
+            read.records = estimateAggregatedRecords(hicIndex, chr1Index, chr2Index, sourceRecords, fraction);
+        }
+        read.contacts = weight * zoomIndex.getSumCounts() * fraction;
+        for (int binSize : Utils.getBinSizesToBuild(resolution)) {
+            ZoomIndex builtZoom = hicIndex.getZoomIndex(chr1Index, chr2Index, binSize);
+            if (builtZoom != null) {
+                read.hicBytes += builtZoom.getCompressedSize() * fraction;
+            } else if (binSize == resolution && sourceRecords > 0) {
+                read.hicBytes += read.compressedBytes * read.records / sourceRecords;
+            }
+        }
+        return read;
+    }
+
+    private static double estimateRecords(HiCFileIndex hicIndex, List<BlockIndexEntry> blocks) throws IOException {
+        double sampledRecords = 0, sampledBytes = 0, totalBytes = 0;
+        int step = Math.max(1, blocks.size() / SAMPLED_BLOCKS);
+        for (int b = 0; b < blocks.size(); b++) {
+            totalBytes += blocks.get(b).getSize();
+            if (b % step == 0) {
+                sampledRecords += hicIndex.readRecordCount(blocks.get(b));
+                sampledBytes += blocks.get(b).getSize();
+            }
+        }
+        return sampledBytes > 0 ? sampledRecords * totalBytes / sampledBytes : 0;
+    }
+
+    /**
+     * @param fraction share of the pair's compressed blocks that is read
+     */
+    private double estimateAggregatedRecords(HiCFileIndex hicIndex, int chr1Index, int chr2Index,
+                                             double sourceRecords, double fraction) throws IOException {
+        ZoomIndex coarser = null;
+        for (ZoomIndex zoomIndex : hicIndex.getMatrix(HiCFileIndex.getMatrixKey(chr1Index, chr2Index))) {
+            if (zoomIndex.getUnit().equals("BP") && zoomIndex.getBinSize() > resolution
+                    && (coarser == null || zoomIndex.getBinSize() < coarser.getBinSize())) {
+                coarser = zoomIndex;
+            }
+        }
+        double factor = (double) resolution / sourceResolution;
+        if (coarser == null || sourceRecords <= 0) {
+            return sourceRecords / factor;
+        }
+        double coarserRecords = estimateRecords(hicIndex, coarser.getBlocks()) * fraction;
+        if (coarserRecords <= 0) {
+            return sourceRecords / factor;
+        }
+        double exponent = Math.log(factor) / Math.log((double) coarser.getBinSize() / sourceResolution);
+        return sourceRecords * Math.pow(coarserRecords / sourceRecords, exponent);
+    }
+
+    /**
+     * Prints the estimate for one pair or region and adds it to the totals
+     *
+     * @param name1       name of the first chromosome in the output
+     * @param name2       name of the second chromosome in the output
+     * @param maxPosition largest position written for the pair
+     */
+    public void report(String label, Read read, String name1, String name2, long maxPosition) {
+        if (!read.isKnown) {
+            isIncomplete = true;
+            System.out.println(label + "\tNA\tNA\tNA\tNA\tNA\tNA");
+            return;
+        }
+        total.add(read);
+        double[] first = null;
+        for (int o = 0; o < outputs.length; o++) {
+            double[] estimate = estimateOutput(read, ratios[o], name1, name2, maxPosition);
+            outputRecords[o] += estimate[0];
+            outputBytes[o] += estimate[1];
+            if (first == null) {
+                first = estimate;
+            }
+        }
+        System.out.println(label + "\t" + format(read.blocks) + "\t" + format(read.compressedBytes) + "\t"
+                + format(read.records) + "\t" + format(read.contacts) + "\t" + format(first[0]) + "\t"
+                + format(first[1]));
+    }
+
+    /**
+     * @return {records, bytes} written for the pair
+     */
+    private double[] estimateOutput(Read read, double ratio, String name1, String name2, long maxPosition) {
+        if (read.records <= 0) return new double[2];
+        double countsPerRecord = Math.max(1, read.contacts / read.records);
+        double records = ratio >= 1 ? read.records : read.records * (1 - Math.pow(1 - ratio, countsPerRecord));
+        if (buildHiC) {
+            return new double[]{records, read.hicBytes * records / read.records};
+        }
+        if (format == MNDFormat.BINARY) {
+            return new double[]{records, records * ESTIMATED_BINARY_RECORD_BYTES
+                    + Math.ceil(records / BinaryMNDWriter.RECORDS_PER_CHUNK) * BinaryMNDWriter.CHUNK_HEADER_BYTES};
+        }
+        // counts are written as integers when subsampling, and as floats ("n.0") otherwise
+        double keptPerRecord = Math.max(1, ratio * read.contacts / records);
+        int countLength = String.valueOf(Math.round(keptPerRecord)).length() + (ratio >= 1 ? 2 : 0);
+        int positionLength = String.valueOf(maxPosition).length();
+        double bytes = records * (name1.length() + name2.length() + 2 * positionLength + countLength + 5);
+        return new double[]{records, format == MNDFormat.BGZF ? bytes * BGZF_COMPRESSION : bytes};
+    }
+
+    public void printTotals() {
+        System.out.println("total\t" + format(total.blocks) + "\t" + format(total.compressedBytes) + "\t"
+                + format(total.records) + "\t" + format(total.contacts) + "\t" + format(outputRecords[0]) + "\t"
+                + format(outputBytes[0]));
+        for (int o = 0; o < outputs.length; o++) {
+            System.out.println(outputs[o] + ": ~" + format(outputRecords[o]) + " records, ~"
+                    + formatSize(outputBytes[o]) + (buildHiC ? " (.hic)" : " (" + format.getExtension() + ")"));
+        }
+        System.out.println("Reads ~" + formatSize(total.compressedBytes) + " in " + format(total.blocks) + " blocks");
+        if (isIncomplete) {
+            System.out.println("Pairs marked NA have no readable block index (e.g. remote files) " +
+                    "and are left out of the totals");
+        }
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.0f", value);
+    }
+
+    private static String formatSize(double bytes) {
+        if (bytes < 1 << 20) return String.format(Locale.ROOT, "%.1f KB", bytes / 1024);
+        if (bytes < 1 << 30) return String.format(Locale.ROOT, "%.1f MB", bytes / (1024 * 1024));
+        return String.format(Locale.ROOT, "%.2f GB", bytes / (1024 * 1024 * 1024));
+    }
+}
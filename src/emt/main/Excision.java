@@ -1,44 +1,111 @@
 package emt.main;
 
+import emt.main.hic.HiCFileIndex;
+import emt.main.hic.HiCFileWriter;
+import emt.main.hic.ZoomIndex;
+import emt.main.mnd.MNDFormat;
+import emt.main.mnd.MNDWriter;
+import emt.main.mnd.MNDWriterStage;
+import emt.utils.common.ProgressMeter;
+import javastraw.feature2D.Feature2DList;
 import javastraw.reader.Dataset;
 import javastraw.reader.basics.Chromosome;
 import javastraw.reader.basics.ChromosomeHandler;
+import javastraw.reader.block.Block;
 import javastraw.reader.block.ContactRecord;
 import javastraw.reader.mzd.Matrix;
 import javastraw.reader.mzd.MatrixZoomData;
+import javastraw.reader.type.HiCZoom;
 import javastraw.reader.type.NormalizationType;
+import javastraw.tools.ParallelizationTools;
 
-import java.io.BufferedWriter;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class Excision extends FileBuildingMethod {
 
-    private final Dataset dataset;
+    private final Dataset[] datasets;
+    private final double[] weights;
     private final ChromosomeHandler chromosomeHandler;
+    private final Feature2DList boundingBoxes;
     private final boolean useCustomCDS;
     private final NormalizationType norm;
-    private final boolean doSubsample;
-    private final double ratio;
+    private final SubsampleSeries series;
+    private final int output;
     private final boolean onlyIntra;
+    private final int numThreads;
+    private final int writerThreads;
+    private final String[] files;
+    private final long mergeMemoryBudget;
+    private final int sourceResolution;
+    private final HiCZoom sourceZoom;
+    private HiCFileIndex[] hicIndices = null;
 
-    public Excision(Dataset dataset, ChromosomeHandler chromosomeHandler, int resolution, String path,
-                    boolean doSubsample, double ratio, boolean doCleanUp, long seed, boolean onlyIntra, String stem) {
-        super(resolution, path, dataset.getGenomeId(), doCleanUp, seed, stem);
-        this.dataset = dataset;
+    /**
+     * @param files         .hic files whose contacts are summed, all with the chromosomes of the first
+     * @param weights       factor applied to the counts of each file
+     * @param boundingBoxes boxes to extract, or null to extract whole chromosome pairs
+     * @param series subsampling series this excision is one output of, or null to keep all contacts
+     * @param output index of this excision's output in the series
+     * @param numThreads    number of pairs read, decoded and subsampled at the same time
+     * @param writerThreads number of threads formatting and writing the contacts handed over by those
+     */
+    public Excision(String[] files, Dataset[] datasets, double[] weights, ChromosomeHandler chromosomeHandler,
+                    Feature2DList boundingBoxes, int resolution, String path,
+                    SubsampleSeries series, int output, boolean doCleanUp, boolean onlyIntra, String stem,
+                    int numThreads, int writerThreads, MNDFormat format, boolean buildInProcess, boolean resume,
+                    String pipe, boolean sorted) {
+        super(resolution, path, datasets[0].getGenomeId(), doCleanUp, series == null ? 0 : series.getSeed(output),
+                stem, format, buildInProcess, resume, pipe, sorted);
+        this.files = files;
+        this.datasets = datasets;
+        this.weights = weights;
         this.chromosomeHandler = chromosomeHandler;
-        this.doSubsample = doSubsample;
-        this.ratio = ratio;
-        useCustomCDS = !Utils.checkIfStandardGenome(dataset.getGenomeId());
-        norm = dataset.getNormalizationHandler().getNormTypeFromString("NONE");
+        this.boundingBoxes = boundingBoxes;
+        this.series = series;
+        this.output = output;
+        useCustomCDS = !Utils.checkIfStandardGenome(datasets[0].getGenomeId());
+        norm = datasets[0].getNormalizationHandler().getNormTypeFromString("NONE");
         this.onlyIntra = onlyIntra;
+        this.numThreads = numThreads;
+        this.writerThreads = writerThreads;
+        sourceResolution = DatasetUtils.getSourceResolution(datasets, resolution);
+        sourceZoom = new HiCZoom(HiCZoom.HiCUnit.BP, sourceResolution);
+        // leaves room for the writers
+        mergeMemoryBudget = Runtime.getRuntime().maxMemory() / (8L * Math.max(1, numThreads));
+    }
+
+    /**
+     * Builds the outputs of a subsampling series together: each chromosome pair is decoded once and
+     * written to every output. The excisions must differ only in their output.
+     *
+     * @return false if the build failed
+     */
+    public static boolean tryToBuild(List<Excision> excisions, boolean onlyDiagNoNorms) {
+        try {
+            excisions.get(0).buildTempFiles(excisions);
+            for (Excision excision : excisions) {
+                excision.finishBuild(onlyDiagNoNorms);
+            }
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
     }
 
     public void buildTempFiles() throws IOException {
+        buildTempFiles(Collections.singletonList(this));
+    }
+
+    private void buildTempFiles(List<Excision> excisions) throws IOException {
         if (useCustomCDS) {
             try {
                 writeOutCustomCDS();
@@ -47,31 +114,363 @@ public class Excision extends FileBuildingMethod {
             }
         }
 
-        BufferedWriter bwMND = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(Paths.get(newMND))));
+        hicIndices = new HiCFileIndex[files.length];
+        for (int i = 0; i < files.length; i++) {
+            hicIndices[i] = HiCFileIndex.open(files[i]);
+        }
+
+        List<ChromosomePair> pairs = getChromosomePairs();
+        long totalSize = 0;
+        for (ChromosomePair pair : pairs) {
+            totalSize += pair.getEstimatedSize();
+        }
+        ProgressMeter progress = new ProgressMeter("excise", "pairs", pairs.size(), totalSize);
+        try {
+            if (buildInProcess) {
+                buildHiCFiles(pairs, excisions, progress);
+            } else if (pipe != null) {
+                buildPiped(pairs, progress);
+            } else {
+                buildShards(pairs, excisions, progress);
+            }
+        } finally {
+            progress.close();
+        }
+        for (Excision excision : excisions) {
+            progress.writeJson(new File(excision.metricsFile));
+        }
+    }
+
+    /**
+     * Reports what each pair would read and write, from the block indexes only
+     */
+    public void estimate(DryRun dryRun) throws IOException {
+        hicIndices = new HiCFileIndex[files.length];
+        for (int i = 0; i < files.length; i++) {
+            hicIndices[i] = HiCFileIndex.open(files[i]);
+        }
+
+        for (ChromosomePair pair : getChromosomePairs()) {
+            DryRun.Read read = new DryRun.Read();
+            for (int i = 0; i < files.length; i++) {
+                ChromosomeHandler handler = datasets[i].getChromosomeHandler();
+                Chromosome c1 = handler.getChromosomeFromName(pair.getChr1().getName());
+                Chromosome c2 = handler.getChromosomeFromName(pair.getChr2().getName());
+                boolean isTransposed = c1.getIndex() > c2.getIndex();
+                BoundingBoxes boxes = pair.getBoxes();
+                if (boxes != null && isTransposed) {
+                    boxes = boxes.getTransposed();
+                }
+                List<long[]> rectangles = boxes == null ? null : boxes.getRectangles();
+                read.add(isTransposed ? dryRun.read(hicIndices[i], c2.getIndex(), c1.getIndex(), rectangles, weights[i])
+                        : dryRun.read(hicIndices[i], c1.getIndex(), c2.getIndex(), rectangles, weights[i]));
+            }
+            dryRun.report(pair.getDescription(), read, pair.getChr1().getName(), pair.getChr2().getName(),
+                    Math.max(pair.getChr1().getLength(), pair.getChr2().getLength()));
+        }
+        dryRun.printTotals();
+    }
+
+    private List<ChromosomePair> getChromosomePairs() {
+        HiCFileIndex hicIndex = boundingBoxes == null ? hicIndices[0] : null;
+        List<ChromosomePair> pairs = new ArrayList<>();
         Chromosome[] chromosomes = chromosomeHandler.getChromosomeArrayWithoutAllByAll();
         for (int i = 0; i < chromosomes.length; i++) {
             for (int j = i; j < chromosomes.length; j++) {
                 if (onlyIntra && i != j) continue;
-                processRegion(bwMND, chromosomes[i], chromosomes[j], doSubsample, ratio);
-                Utils.printProgressDot();
+                BoundingBoxes boxes = null;
+                if (boundingBoxes != null) {
+                    boxes = BoundingBoxes.get(boundingBoxes, chromosomes[i], chromosomes[j], sourceResolution);
+                    if (boxes == null) continue;
+                }
+                long size = boxes != null ? boxes.getArea() : estimateSize(hicIndex, chromosomes[i], chromosomes[j]);
+                pairs.add(new ChromosomePair(pairs.size(), chromosomes[i], chromosomes[j], size, boxes));
+            }
+        }
+        return pairs;
+    }
+
+    /**
+     * Uses the compressed size of the pair's blocks when the block index is available;
+     * otherwise falls back to the area of the pair.
+     */
+    private long estimateSize(HiCFileIndex hicIndex, Chromosome c1, Chromosome c2) {
+        if (hicIndex != null) {
+            try {
+                ZoomIndex zoomIndex = hicIndex.getZoomIndex(c1.getIndex(), c2.getIndex(), sourceResolution);
+                return zoomIndex == null ? 0 : zoomIndex.getCompressedSize();
+            } catch (IOException e) {
+                System.err.println("Unable to read block index for " + c1.getName() + "-" + c2.getName());
+            }
+        }
+        return (c1.getLength() / resolution + 1) * (c2.getLength() / resolution + 1);
+    }
+
+    /**
+     * Each pair is written to its own shard by a worker pool, starting with the largest pairs.
+     * The workers read, decode and subsample the contacts and hand them over to the writer stage.
+     * The shards are then concatenated in the canonical pair order, so the MND is identical to a serial run.
+     * Completed shards are recorded in the manifest, so an interrupted run can be resumed.
+     */
+    private void buildShards(List<ChromosomePair> pairs, List<Excision> excisions,
+                             ProgressMeter progress) throws IOException {
+        for (Excision excision : excisions) {
+            excision.openManifest();
+        }
+        try (MNDWriterStage stage = new MNDWriterStage(writerThreads)) {
+            processPairsInParallel(pairs, progress, (pair, unit) -> {
+                Shard[] shards = new Shard[excisions.size()];
+                try {
+                    MNDWriter[] writers = new MNDWriter[shards.length];
+                    boolean isComplete = true;
+                    for (int i = 0; i < shards.length; i++) {
+                        shards[i] = excisions.get(i).openShard(pair.getShardName(), stage);
+                        if (shards[i] != null) {
+                            writers[i] = shards[i].getWriter();
+                            isComplete = false;
+                        }
+                    }
+                    if (isComplete) return;
+                    processRegion(writers, pair, unit);
+                    for (Shard shard : shards) {
+                        if (shard != null) {
+                            shard.complete();
+                            unit.addBytesWritten(shard.getBytesWritten());
+                        }
+                    }
+                } finally {
+                    for (Shard shard : shards) {
+                        if (shard != null) shard.close();
+                    }
+                }
+            });
+        }
+
+        for (Excision excision : excisions) {
+            List<File> shards = new ArrayList<>();
+            for (ChromosomePair pair : pairs) {
+                shards.add(excision.getShardFile(pair.getShardName()));
+            }
+            excision.concatenateShards(shards);
+            progress.addBytesWritten(new File(excision.newMND).length());
+        }
+    }
+
+    /**
+     * Each pair is binned straight into the .hic files; the writers place matrices wherever they finish,
+     * since the master index records their positions.
+     */
+    private void buildHiCFiles(List<ChromosomePair> pairs, List<Excision> excisions,
+                               ProgressMeter progress) throws IOException {
+        List<HiCFileWriter> hicWriters = new ArrayList<>();
+        try {
+            for (Excision excision : excisions) {
+                hicWriters.add(excision.openHiCFileWriter(numThreads, excisions.size(), onlyIntra));
+            }
+            try (MNDWriterStage stage = new MNDWriterStage(writerThreads)) {
+                processPairsInParallel(pairs, progress, (pair, unit) -> {
+                    MNDWriter[] writers = new MNDWriter[hicWriters.size()];
+                    try {
+                        for (int i = 0; i < writers.length; i++) {
+                            writers[i] = stage.open(hicWriters.get(i).openMatrixWriter());
+                        }
+                        processRegion(writers, pair, unit);
+                    } finally {
+                        for (MNDWriter writer : writers) {
+                            if (writer != null) writer.close();
+                        }
+                    }
+                });
+            }
+        } finally {
+            for (HiCFileWriter hicWriter : hicWriters) {
+                hicWriter.close();
+            }
+        }
+        for (Excision excision : excisions) {
+            progress.addBytesWritten(new File(excision.newHiCFile).length());
+        }
+    }
+
+    /**
+     * The pairs are extracted one at a time in the canonical order, since the stream cannot be reordered;
+     * the writer stage formats and writes each pair while the next one is read.
+     */
+    private void buildPiped(List<ChromosomePair> pairs, ProgressMeter progress) throws IOException {
+        try (Pipe pipe = openPipe();
+             MNDWriterStage stage = new MNDWriterStage(1)) {
+            MNDWriterStage.StagedMNDWriter writer = stage.open(pipe.getWriter());
+            for (ChromosomePair pair : pairs) {
+                ProgressMeter.Unit unit = progress.start(pair.getDescription(), pair.getEstimatedSize());
+                processRegion(new MNDWriter[]{writer}, pair, unit);
+                unit.finish();
+            }
+            writer.finish();
+            pipe.complete();
+        }
+    }
+
+    private interface PairTask {
+        void run(ChromosomePair pair, ProgressMeter.Unit unit) throws IOException;
+    }
+
+    private void processPairsInParallel(List<ChromosomePair> pairs, ProgressMeter progress,
+                                        PairTask task) throws IOException {
+        List<ChromosomePair> schedule = new ArrayList<>(pairs);
+        schedule.sort(Comparator.comparingLong(ChromosomePair::getEstimatedSize).reversed()
+                .thenComparingInt(ChromosomePair::getOrder));
+
+        AtomicInteger index = new AtomicInteger(0);
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        ParallelizationTools.launchParallelizedCode(numThreads, () -> {
+            int i = index.getAndIncrement();
+            while (i < schedule.size() && failure.get() == null) {
+                ChromosomePair pair = schedule.get(i);
+                ProgressMeter.Unit unit = progress.start(pair.getDescription(), pair.getEstimatedSize());
+                try {
+                    task.run(pair, unit);
+                } catch (Exception e) {
+                    System.err.println("Unable to excise " + pair.getDescription());
+                    failure.compareAndSet(null, e);
+                }
+                unit.finish();
+                i = index.getAndIncrement();
             }
+        });
+
+        if (failure.get() != null) {
+            throw new IOException("Excision failed", failure.get());
+        }
+    }
+
+    /**
+     * Every output of a series has a shard of each pair open at the same time
+     */
+    @Override
+    protected long getSortMemoryBudget() {
+        return mergeMemoryBudget / (series == null ? 1 : series.getNumOutputs());
+    }
+
+    @Override
+    protected String[] getChromosomeNames() {
+        Chromosome[] chromosomes = chromosomeHandler.getChromosomeArrayWithoutAllByAll();
+        String[] names = new String[chromosomes.length];
+        for (int i = 0; i < chromosomes.length; i++) {
+            names[i] = chromosomes[i].getName();
         }
-        bwMND.close();
+        return names;
+    }
+
+    @Override
+    protected String getRunParameters() {
+        return "excise\t" + String.join("+", files) + "\t" + Arrays.toString(weights) + "\t" + resolution
+                + "\t" + String.join(",", getChromosomeNames())
+                + "\t" + (boundingBoxes == null ? "all" : BoundingBoxes.getDigest(boundingBoxes))
+                + "\t" + (series == null ? "all" : series.getParameters(output)) + "\t" + onlyIntra
+                + "\t" + format + "\t" + sorted;
     }
 
-    private void processRegion(BufferedWriter bwMND, Chromosome c1, Chromosome c2,
-                               boolean doSubsample, double ratio) throws IOException {
-        Matrix matrix = dataset.getMatrix(c1, c2);
-        MatrixZoomData zd = matrix.getZoomData(zoom);
+    @Override
+    protected long[] getChromosomeLengths() {
+        Chromosome[] chromosomes = chromosomeHandler.getChromosomeArrayWithoutAllByAll();
+        long[] lengths = new long[chromosomes.length];
+        for (int i = 0; i < chromosomes.length; i++) {
+            lengths[i] = chromosomes[i].getLength();
+        }
+        return lengths;
+    }
 
-        Iterator<ContactRecord> iterator = zd.getDirectIterator();
-        if (doSubsample) {
-            Utils.writeOutSubsampledMND(iterator, resolution, 0, 0, bwMND,
-                    c1.getName(), c2.getName(), ratio, generator);
+    /**
+     * Contacts read at a finer stored resolution are summed into the bins of the requested one,
+     * through the same bounded-memory merger as contacts from several files.
+     *
+     * @param writers one per output of the series, null for outputs that are already complete
+     */
+    private void processRegion(MNDWriter[] writers, ChromosomePair pair, ProgressMeter.Unit unit) throws IOException {
+        Chromosome c1 = pair.getChr1();
+        Chromosome c2 = pair.getChr2();
+        Iterator<ContactRecord> iterator;
+        PixelMerger merger = null;
+        if (datasets.length == 1 && weights[0] == 1 && sourceResolution == resolution) {
+            MatrixZoomData zd = getZoomData(datasets[0], c1, c2);
+            if (zd == null) return;
+            iterator = getContacts(0, c1, c2, zd, pair.getBoxes(), unit);
         } else {
-            Utils.writeOutMND(iterator, resolution, 0, 0, bwMND,
-                    c1.getName(), c2.getName());
+            merger = new PixelMerger(mergeMemoryBudget, new File(newHiCFile).getAbsoluteFile().getParentFile());
+            for (int i = 0; i < datasets.length; i++) {
+                addContacts(merger, i, pair, unit);
+            }
+            iterator = merger.iterator();
+        }
+
+        try {
+            if (series != null) {
+                series.write(iterator, resolution, writers, c1, c2);
+            } else {
+                Utils.writeOutMND(iterator, resolution, 0, 0, writers[0],
+                        c1.getName(), c2.getName());
+            }
+        } finally {
+            if (merger != null) {
+                merger.close();
+            }
+        }
+    }
+
+    /**
+     * Adds the pair's weighted contacts from one file, whose chromosomes are matched by name
+     * and may be stored in the other order
+     */
+    private void addContacts(PixelMerger merger, int file, ChromosomePair pair,
+                             ProgressMeter.Unit unit) throws IOException {
+        Dataset ds = datasets[file];
+        double weight = weights[file];
+        ChromosomeHandler handler = ds.getChromosomeHandler();
+        Chromosome c1 = handler.getChromosomeFromName(pair.getChr1().getName());
+        Chromosome c2 = handler.getChromosomeFromName(pair.getChr2().getName());
+        boolean isTransposed = c1.getIndex() > c2.getIndex();
+        MatrixZoomData zd = isTransposed ? getZoomData(ds, c2, c1) : getZoomData(ds, c1, c2);
+        if (zd == null) return;
+
+        BoundingBoxes boxes = pair.getBoxes();
+        if (boxes != null && isTransposed) {
+            boxes = boxes.getTransposed();
+        }
+        Iterator<ContactRecord> iterator = isTransposed ? getContacts(file, c2, c1, zd, boxes, unit)
+                : getContacts(file, c1, c2, zd, boxes, unit);
+        int factor = resolution / sourceResolution;
+        while (iterator.hasNext()) {
+            ContactRecord cr = iterator.next();
+            if (cr.getCounts() > 0) {
+                float counts = (float) (cr.getCounts() * weight);
+                if (isTransposed) {
+                    merger.add(cr.getBinY() / factor, cr.getBinX() / factor, counts);
+                } else {
+                    merger.add(cr.getBinX() / factor, cr.getBinY() / factor, counts);
+                }
+            }
+        }
+    }
+
+    private MatrixZoomData getZoomData(Dataset ds, Chromosome c1, Chromosome c2) {
+        Matrix matrix = ds.getMatrix(c1, c2);
+        if (matrix == null) return null;
+        return matrix.getZoomData(sourceZoom);
+    }
+
+    /**
+     * @param c1 first chromosome of the pair as stored in the file
+     * @param c2 second chromosome of the pair as stored in the file
+     */
+    private Iterator<ContactRecord> getContacts(int file, Chromosome c1, Chromosome c2, MatrixZoomData zd,
+                                                BoundingBoxes boxes, ProgressMeter.Unit unit) throws IOException {
+        if (boxes != null) {
+            List<Block> blocks = boxes.getBlocks(zd, norm);
+            DatasetUtils.addBlocksRead(hicIndices[file], c1, c2, sourceResolution, blocks, unit);
+            return unit.count(boxes.getContacts(blocks).iterator());
         }
+        DatasetUtils.addBlocksRead(hicIndices[file], c1, c2, sourceResolution, null, unit);
+        return unit.count(zd.getDirectIterator());
     }
 
     private void writeOutCustomCDS() throws IOException {
@@ -1,62 +1,413 @@
 package emt.main;
 
+import emt.main.hic.HiCFileWriter;
+import emt.main.mnd.BinaryMNDWriter;
+import emt.main.mnd.CountingMNDWriter;
+import emt.main.mnd.MNDFormat;
+import emt.main.mnd.MNDIndex;
+import emt.main.mnd.MNDWriter;
+import emt.main.mnd.MNDWriterStage;
+import emt.main.mnd.SortingMNDWriter;
+import emt.utils.io.BGZFOutputChannel;
+import emt.utils.io.ChecksumChannel;
 import jargs.gnu.CmdLineParser;
 import javastraw.reader.type.HiCZoom;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.Random;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
 
 public abstract class FileBuildingMethod {
 
+    /**
+     * Pipe target that writes the contacts to stdout
+     */
+    public static final String STDOUT = "-";
+
     protected final String newMND;
     protected final String newCDS;
     protected final String newHiCFile;
+    protected final String metricsFile;
     protected final int resolution;
     protected final HiCZoom zoom;
     protected final boolean doCleanUp;
-    protected Random generator = new Random(0);
+    protected final long seed;
+    protected final File shardFolder;
+    protected final MNDFormat format;
+    protected final boolean buildInProcess;
+    protected final boolean resume;
+    protected final String pipe;
+    protected final boolean sorted;
+    protected ShardManifest manifest = null;
 
+    /**
+     * @param pipe   command the contacts are streamed into, STDOUT, or null to write the new MND
+     * @param sorted whether the records of each pair are sorted by position before being written
+     */
     protected FileBuildingMethod(int resolution, String path, String cds, boolean doCleanUp,
-                                 long seed, String stem) {
+                                 long seed, String stem, MNDFormat format, boolean buildInProcess, boolean resume,
+                                 String pipe, boolean sorted) {
         this.resolution = resolution;
         this.zoom = new HiCZoom(HiCZoom.HiCUnit.BP, resolution);
-        this.newMND = path + "/" + stem + ".mnd.txt";
+        this.format = format;
+        this.newMND = path + "/" + stem + format.getExtension();
         this.newHiCFile = path + "/" + stem + ".hic";
+        this.metricsFile = path + "/" + stem + ".metrics.json";
         this.newCDS = cds;
         this.doCleanUp = doCleanUp;
-        this.generator.setSeed(seed);
+        this.seed = seed;
+        this.shardFolder = new File(path, stem + "_shards");
+        this.buildInProcess = buildInProcess;
+        this.resume = resume;
+        this.pipe = pipe;
+        this.sorted = sorted;
     }
 
     abstract public void buildTempFiles() throws IOException;
 
+    /**
+     * @return names of all chromosomes that may appear in the new MND, used as the binary dictionary
+     */
+    abstract protected String[] getChromosomeNames();
+
+    /**
+     * @return lengths of the chromosomes returned by getChromosomeNames, used for the .hic header
+     */
+    abstract protected long[] getChromosomeLengths();
+
+    /**
+     * @return everything that determines the content of the shards; a run is only resumed if this matches
+     */
+    abstract protected String getRunParameters();
+
+    /**
+     * @param onlyDiag write only intra-chromosomal matrices, as pre -d does
+     */
+    protected HiCFileWriter openHiCFileWriter(int numThreads, boolean onlyDiag) throws IOException {
+        return openHiCFileWriter(numThreads, 1, onlyDiag);
+    }
+
+    /**
+     * @param numOpenWriters number of .hic files being built at the same time, which share the memory
+     */
+    protected HiCFileWriter openHiCFileWriter(int numThreads, int numOpenWriters,
+                                              boolean onlyDiag) throws IOException {
+        long memoryBudget = Runtime.getRuntime().maxMemory() / (4L * Math.max(1, numThreads) * numOpenWriters);
+        return new HiCFileWriter(newHiCFile, newCDS, getChromosomeNames(), getChromosomeLengths(),
+                Utils.getBinSizesToBuild(resolution), numThreads, memoryBudget, onlyDiag);
+    }
+
+    /**
+     * @return off-heap memory each open MND writer may use to sort the records of a pair
+     */
+    protected long getSortMemoryBudget() {
+        return Runtime.getRuntime().maxMemory() / 8;
+    }
+
+    /**
+     * @return the writer, or a writer sorting the records of each pair before passing them on to it
+     */
+    private MNDWriter sortIfNeeded(MNDWriter writer, File tempFolder) {
+        return sorted ? new SortingMNDWriter(writer, getSortMemoryBudget(), tempFolder) : writer;
+    }
+
+    protected File getShardFile(String name) {
+        return new File(shardFolder, name + format.getExtension());
+    }
+
+    protected void openManifest() throws IOException {
+        if (!shardFolder.exists() && !shardFolder.mkdirs()) {
+            throw new IOException("Unable to create " + shardFolder.getPath());
+        }
+        manifest = new ShardManifest(shardFolder, getRunParameters(), resume);
+        if (manifest.getNumCompleted() > 0) {
+            System.out.println("Resuming with " + manifest.getNumCompleted() + " completed shards");
+        }
+    }
+
+    protected interface ShardTask {
+        void write(MNDWriter writer) throws IOException;
+    }
+
+    /**
+     * Writes a shard unless an earlier run already completed it, then records it in the manifest
+     */
+    protected void writeShard(String name, ShardTask task) throws IOException {
+        try (Shard shard = openShard(name, null)) {
+            if (shard == null) return;
+            task.write(shard.getWriter());
+            shard.complete();
+        }
+    }
+
+    /**
+     * @param stage writer stage that formats and writes the shard's contacts, or null to write them directly
+     * @return the opened shard, or null if an earlier run already completed it
+     */
+    protected Shard openShard(String name, MNDWriterStage stage) throws IOException {
+        File file = getShardFile(name);
+        boolean hasIndex = format != MNDFormat.BGZF || new File(MNDIndex.getIndexPath(file.getPath())).isFile();
+        if (hasIndex && manifest.isComplete(name, file)) return null;
+
+        ChecksumChannel channel = new ChecksumChannel(FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+        CountingMNDWriter writer = new CountingMNDWriter(
+                format.openWriter(channel, file.getPath(), getChromosomeNames(), false, sorted));
+        MNDWriter sink = sortIfNeeded(writer, shardFolder);
+        return new Shard(name, channel, writer, sink, stage == null ? null : stage.open(sink));
+    }
+
+    /**
+     * A shard being written; it is only recorded in the manifest if it is completed, not just closed.
+     * A staged shard must be closed before its writer stage.
+     */
+    protected class Shard implements Closeable {
+
+        private final String name;
+        private final ChecksumChannel channel;
+        private final CountingMNDWriter writer;
+        private final MNDWriter sink;
+        private final MNDWriterStage.StagedMNDWriter stagedWriter;
+        private boolean closed = false;
+
+        /**
+         * @param sink the writer the contacts are passed to, which passes them on to the counting writer
+         */
+        private Shard(String name, ChecksumChannel channel, CountingMNDWriter writer, MNDWriter sink,
+                      MNDWriterStage.StagedMNDWriter stagedWriter) {
+            this.name = name;
+            this.channel = channel;
+            this.writer = writer;
+            this.sink = sink;
+            this.stagedWriter = stagedWriter;
+        }
+
+        public MNDWriter getWriter() {
+            return stagedWriter == null ? sink : stagedWriter;
+        }
+
+        public long getBytesWritten() {
+            return channel.getBytesWritten();
+        }
+
+        public void complete() throws IOException {
+            close();
+            manifest.markComplete(name, writer.getNumRecords(), channel.getBytesWritten(), channel.getChecksum());
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                try {
+                    if (stagedWriter != null) {
+                        stagedWriter.finish();
+                    }
+                } finally {
+                    sink.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends everything printed to stdout to stderr instead, so stdout only carries the contacts
+     */
+    public static void reserveStdout() {
+        System.setOut(System.err);
+    }
+
+    /**
+     * @return the pipe command with {sizes}, {hic} and {resolutions} replaced
+     */
+    protected String getPipeCommand() {
+        return pipe.replace("{sizes}", newCDS).replace("{hic}", newHiCFile)
+                .replace("{resolutions}", Utils.getResolutionsToBuild(resolution));
+    }
+
+    /**
+     * Starts the pipe command, if any, with its stdin connected to the returned pipe
+     */
+    protected Pipe openPipe() throws IOException {
+        if (pipe.equals(STDOUT)) {
+            WritableByteChannel channel = new FileOutputStream(FileDescriptor.out).getChannel();
+            return new Pipe(null, sortIfNeeded(format.openWriter(channel, STDOUT, getChromosomeNames(), true, sorted),
+                    shardFolder.getParentFile()));
+        }
+        String command = getPipeCommand();
+        System.out.println("Streaming contacts into: " + command);
+        Process process = new ProcessBuilder("/bin/sh", "-c", command)
+                .redirectOutput(ProcessBuilder.Redirect.INHERIT)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        WritableByteChannel channel = Channels.newChannel(process.getOutputStream());
+        return new Pipe(process, sortIfNeeded(format.openWriter(channel, command, getChromosomeNames(), true, sorted),
+                shardFolder.getParentFile()));
+    }
+
+    /**
+     * Contacts streamed to stdout or to the stdin of a process, without a temporary file; writes block whenever
+     * the reader falls behind. The process is only waited for if the pipe is completed, and killed otherwise.
+     */
+    protected static class Pipe implements Closeable {
+
+        private final Process process;
+        private final MNDWriter writer;
+        private boolean closed = false;
+
+        private Pipe(Process process, MNDWriter writer) {
+            this.process = process;
+            this.writer = writer;
+        }
+
+        public MNDWriter getWriter() {
+            return writer;
+        }
+
+        /**
+         * Closes the stream and waits for the process to read it all and exit
+         */
+        public void complete() throws IOException {
+            closed = true;
+            writer.close();
+            if (process == null) return;
+            try {
+                int exitCode = process.waitFor();
+                if (exitCode != 0) {
+                    throw new IOException("Pipe command exited with code " + exitCode);
+                }
+            } catch (InterruptedException e) {
+                process.destroy();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the pipe command");
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            try {
+                writer.close();
+            } catch (IOException e) {
+                // the reader may already be gone
+            } finally {
+                if (process != null) {
+                    if (!process.isAlive()) {
+                        System.err.println("Pipe command exited with code " + process.exitValue());
+                    }
+                    process.destroy();
+                }
+            }
+        }
+    }
+
+    /**
+     * Appends the shards to the new MND in the given order, then deletes them.
+     * For BGZF, the shard indices are merged with their offsets shifted to the shard's position.
+     */
+    protected void concatenateShards(List<File> shards) throws IOException {
+        MNDIndex index = format == MNDFormat.BGZF ? new MNDIndex(getChromosomeNames()) : null;
+        try (FileChannel output = new FileOutputStream(newMND).getChannel()) {
+            if (format == MNDFormat.BINARY) {
+                BinaryMNDWriter.writeHeader(output, getChromosomeNames(), sorted);
+            }
+            for (File shard : shards) {
+                if (index != null) {
+                    index.append(MNDIndex.read(MNDIndex.getIndexPath(shard.getPath())), output.position());
+                }
+                try (FileChannel input = new FileInputStream(shard).getChannel()) {
+                    long position = 0;
+                    long size = input.size();
+                    while (position < size) {
+                        position += input.transferTo(position, size - position, output);
+                    }
+                }
+            }
+            if (index != null) {
+                output.write(ByteBuffer.wrap(BGZFOutputChannel.EOF_BLOCK));
+            }
+        }
+        if (index != null) {
+            index.write(MNDIndex.getIndexPath(newMND));
+        }
+        for (File shard : shards) {
+            deleteFile(shard);
+            if (index != null) {
+                deleteFile(new File(MNDIndex.getIndexPath(shard.getPath())));
+            }
+        }
+        if (manifest != null) {
+            manifest.delete();
+        }
+        if (!shardFolder.delete()) {
+            System.err.println("Unable to delete " + shardFolder.getPath());
+        }
+    }
+
     public void deleteTempFilesIfNeedBe() {
         if (doCleanUp) {
-            for (String path : new String[]{newMND, newCDS}) {
-                File file = new File(path);
-                if (!file.delete()) {
-                    System.err.println("Unable to delete " + path);
-                }
+            boolean hasMND = !buildInProcess && pipe == null;
+            String[] tempFiles = hasMND ? new String[]{newMND, newCDS} : new String[]{newCDS};
+            for (String path : tempFiles) {
+                deleteFile(new File(path));
+            }
+            if (format == MNDFormat.BGZF && hasMND) {
+                deleteFile(new File(MNDIndex.getIndexPath(newMND)));
             }
         }
     }
 
+    private static void deleteFile(File file) {
+        if (!file.delete()) {
+            System.err.println("Unable to delete " + file.getPath());
+        }
+    }
+
     public void buildNewHiCFile(boolean onlyDiagNoNorms) throws CmdLineParser.UnknownOptionException, CmdLineParser.IllegalOptionValueException {
         String resolutionsToBuild = Utils.getResolutionsToBuild(resolution);
-        String line = "pre -n -r " + resolutionsToBuild + " " + newMND + " " + newHiCFile + " " + newCDS;
+        String mnd = newMND;
+        String conversion = "";
+        if (format == MNDFormat.BINARY) {
+            mnd = newMND.substring(0, newMND.length() - format.getExtension().length()) + MNDFormat.TEXT.getExtension();
+            conversion = "hic_emt mnd-to-text " + newMND + " " + mnd + "\n";
+        }
+        String line = "pre -n -r " + resolutionsToBuild + " " + mnd + " " + newHiCFile + " " + newCDS;
         if (onlyDiagNoNorms) {
-            line = "pre -d -n -r " + resolutionsToBuild + " " + newMND + " " + newHiCFile + " " + newCDS;
+            line = "pre -d -n -r " + resolutionsToBuild + " " + mnd + " " + newHiCFile + " " + newCDS;
         }
-        System.out.println("To build the .hic file, run:\n" + line);
+        System.out.println("To build the .hic file, run:\n" + conversion + line);
     }
 
     public static void tryToBuild(FileBuildingMethod method, boolean onlyDiagNoNorms) {
         try {
             method.buildTempFiles();
-            method.buildNewHiCFile(onlyDiagNoNorms);
-            method.deleteTempFilesIfNeedBe();
+            method.finishBuild(onlyDiagNoNorms);
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
+
+    protected void finishBuild(boolean onlyDiagNoNorms) throws CmdLineParser.UnknownOptionException,
+            CmdLineParser.IllegalOptionValueException {
+        if (buildInProcess) {
+            System.out.println("Built " + newHiCFile);
+        } else if (pipe != null) {
+            System.out.println(pipe.equals(STDOUT) ? "Wrote contacts to stdout"
+                    : "Streamed contacts into: " + getPipeCommand());
+        } else {
+            buildNewHiCFile(onlyDiagNoNorms);
+        }
+        deleteTempFilesIfNeedBe();
+    }
 }
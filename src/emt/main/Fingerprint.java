@@ -0,0 +1,397 @@
+package emt.main;
+
+import emt.main.hic.BlockIndexEntry;
+import emt.main.hic.BlockRecords;
+import emt.main.hic.HiCFileIndex;
+import emt.main.hic.ZoomIndex;
+import emt.utils.common.ProgressMeter;
+import javastraw.reader.Dataset;
+import javastraw.reader.basics.Chromosome;
+import javastraw.reader.block.ContactRecord;
+import javastraw.reader.datastructures.ListOfDoubleArrays;
+import javastraw.reader.expected.ExpectedValueFunction;
+import javastraw.reader.mzd.Matrix;
+import javastraw.reader.mzd.MatrixZoomData;
+import javastraw.reader.norm.NormalizationVector;
+import javastraw.reader.type.HiCZoom;
+import javastraw.reader.type.NormalizationHandler;
+import javastraw.reader.type.NormalizationType;
+import javastraw.tools.ParallelizationTools;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Content digests of a .hic file: for each chromosome pair and resolution, an order-independent hash of its raw
+ * contact records, and for each normalization and resolution, hashes of the norm vector of every chromosome and
+ * of the expected vector. Two files with the same digest for a matrix hold the same records, however they were
+ * laid out in blocks. Digests are computed in parallel and, for local files, saved to a tab-separated sidecar
+ * keyed by the file's size and modification time, like the contact counts.
+ * <p>
+ * For local files, each matrix also gets a hash of its block layout and compressed bytes, which is read without
+ * decompressing anything. When it matches the one of a reference file, the blocks are identical and the record
+ * digest of the reference is reused, so only the matrices that differ are decoded.
+ */
+public class Fingerprint {
+
+    private static final String HEADER = "#hic-emt fingerprint v1";
+    private static final String EXTENSION = ".emt_digest.txt";
+    private static final String MATRIX = "matrix", NORM = "norm", EXPECTED = "expected";
+    private static final String UNKNOWN = "NA";
+
+    private final Map<String, String[]> digests = new LinkedHashMap<>();
+
+    private Fingerprint() {
+    }
+
+    public static String getMatrixKey(String chr1, String chr2, int binSize) {
+        return MATRIX + "\t" + chr1 + "\t" + chr2 + "\t" + binSize;
+    }
+
+    private static String getNormKey(String norm, String chrom, int binSize) {
+        return NORM + "\t" + norm + "\t" + chrom + "\t" + binSize;
+    }
+
+    private static String getExpectedKey(String norm, int binSize) {
+        return EXPECTED + "\t" + norm + "\t" + binSize;
+    }
+
+    /**
+     * @param reference fingerprint of another file whose identical matrices need not be decoded, or null
+     */
+    public static Fingerprint load(String file, Dataset ds, int numThreads, Fingerprint reference) {
+        File hicFile = new File(file);
+        File sidecar = new File(file + EXTENSION);
+        boolean isLocal = !file.contains("://") && hicFile.isFile();
+
+        if (isLocal && sidecar.isFile()) {
+            try {
+                Fingerprint cached = read(sidecar, hicFile);
+                if (cached != null) {
+                    System.out.println("Using fingerprint from " + sidecar.getPath());
+                    return cached;
+                }
+            } catch (IOException | ArrayIndexOutOfBoundsException e) {
+                System.err.println("Ignoring unreadable " + sidecar.getPath() + ": " + e.getMessage());
+            }
+        }
+
+        Fingerprint computed = new Fingerprint();
+        boolean complete = computed.compute(ds, isLocal ? HiCFileIndex.open(file) : null, numThreads, reference);
+        if (isLocal && complete) {
+            try {
+                computed.write(sidecar, hicFile);
+                System.out.println("Fingerprint saved to " + sidecar.getPath());
+            } catch (IOException e) {
+                System.err.println("Unable to save fingerprint to " + sidecar.getPath() + ": " + e.getMessage());
+            }
+        }
+        return computed;
+    }
+
+    private interface DigestTask {
+        String[] compute(ProgressMeter.Unit unit) throws Exception;
+    }
+
+    /**
+     * @return false if any digest could not be computed
+     */
+    private boolean compute(Dataset ds, HiCFileIndex hicIndex, int numThreads, Fingerprint reference) {
+        Chromosome[] chroms = ds.getChromosomeHandler().getChromosomeArrayWithoutAllByAll();
+        Arrays.sort(chroms, Comparator.comparingInt(Chromosome::getIndex));
+        List<HiCZoom> zooms = ds.getBpZooms();
+        List<NormalizationType> norms = ds.getNormalizationTypes();
+        List<String> keys = new ArrayList<>();
+        List<DigestTask> tasks = new ArrayList<>();
+
+        for (int i = 0; i < chroms.length; i++) {
+            for (int j = i; j < chroms.length; j++) {
+                Chromosome chr1 = chroms[i], chr2 = chroms[j];
+                for (HiCZoom zoom : zooms) {
+                    String key = getMatrixKey(chr1.getName(), chr2.getName(), zoom.getBinSize());
+                    String[] known = reference == null ? null : reference.digests.get(key);
+                    keys.add(key);
+                    tasks.add(unit -> digestMatrix(ds, hicIndex, chr1, chr2, zoom, known, unit));
+                }
+            }
+        }
+        for (NormalizationType norm : norms) {
+            for (HiCZoom zoom : zooms) {
+                for (Chromosome chrom : chroms) {
+                    keys.add(getNormKey(norm.getLabel(), chrom.getName(), zoom.getBinSize()));
+                    tasks.add(unit -> new String[]{digestNormVector(ds, chrom, zoom, norm)});
+                }
+            }
+        }
+        List<NormalizationType> expectedNorms = new ArrayList<>(norms);
+        expectedNorms.add(NormalizationHandler.NONE);
+        for (NormalizationType norm : expectedNorms) {
+            for (HiCZoom zoom : zooms) {
+                keys.add(getExpectedKey(norm.getLabel(), zoom.getBinSize()));
+                tasks.add(unit -> new String[]{digestExpectedVector(ds, chroms, zoom, norm)});
+            }
+        }
+
+        String[][] results = new String[tasks.size()][];
+        AtomicInteger index = new AtomicInteger(0);
+        AtomicBoolean complete = new AtomicBoolean(true);
+        try (ProgressMeter progress = new ProgressMeter("digest", "digests", tasks.size(), 0)) {
+            ParallelizationTools.launchParallelizedCode(Math.max(1, numThreads), () -> {
+                int i = index.getAndIncrement();
+                while (i < tasks.size()) {
+                    ProgressMeter.Unit unit = progress.start(keys.get(i).replace('\t', ' '), 0);
+                    try {
+                        results[i] = tasks.get(i).compute(unit);
+                    } catch (Exception e) {
+                        System.err.println("Unable to digest " + keys.get(i).replace('\t', ' ') + ": "
+                                + e.getLocalizedMessage());
+                        results[i] = null;
+                        complete.set(false);
+                    }
+                    unit.finish();
+                    i = index.getAndIncrement();
+                }
+            });
+        }
+
+        for (int i = 0; i < tasks.size(); i++) {
+            if (results[i] != null) {
+                digests.put(keys.get(i), results[i]);
+            }
+        }
+        return complete.get();
+    }
+
+    /**
+     * @param known layout hash and record digest of the same matrix in a reference file, or null
+     * @return layout hash (or NA for remote files), record digest and number of records
+     */
+    private static String[] digestMatrix(Dataset ds, HiCFileIndex hicIndex, Chromosome chr1, Chromosome chr2,
+                                         HiCZoom zoom, String[] known, ProgressMeter.Unit unit) throws IOException {
+        ZoomIndex zoomIndex = hicIndex == null ? null
+                : hicIndex.getZoomIndex(chr1.getIndex(), chr2.getIndex(), zoom.getBinSize());
+        if (zoomIndex == null) {
+            RecordDigest digest = new RecordDigest();
+            Matrix matrix = ds.getMatrix(chr1, chr2);
+            MatrixZoomData zd = matrix == null ? null : matrix.getZoomData(zoom);
+            if (zd != null) {
+                Iterator<ContactRecord> iterator = unit.count(zd.getDirectIterator());
+                while (iterator.hasNext()) {
+                    ContactRecord record = iterator.next();
+                    digest.add(record.getBinX(), record.getBinY(), record.getCounts());
+                }
+            }
+            return new String[]{UNKNOWN, digest.toString(), String.valueOf(digest.records)};
+        }
+
+        try (FileChannel channel = FileChannel.open(new File(hicIndex.getPath()).toPath(),
+                StandardOpenOption.READ)) {
+            MessageDigest layout = newMessageDigest();
+            ByteBuffer header = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(hicIndex.getVersion()).putInt(zoomIndex.getBinSize())
+                    .putInt(zoomIndex.getBlockBinCount()).putInt(zoomIndex.getBlockColumnCount());
+            layout.update(header.array());
+            for (BlockIndexEntry entry : zoomIndex.getBlocks()) {
+                byte[] compressed = readBlock(channel, entry);
+                unit.addBlocks(1);
+                unit.addBytesRead(entry.getSize());
+                layout.update(ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN)
+                        .putInt(entry.getNumber()).putInt(entry.getSize()).array());
+                layout.update(compressed);
+            }
+            String layoutHash = toHex(layout.digest());
+            if (known != null && known[0].equals(layoutHash)) {
+                return known.clone();
+            }
+
+            RecordDigest digest = new RecordDigest();
+            for (BlockIndexEntry entry : zoomIndex.getBlocks()) {
+                BlockRecords records = hicIndex.decodeBlock(entry, readBlock(channel, entry), 0);
+                unit.addRecords(records.size());
+                for (int i = 0; i < records.size(); i++) {
+                    digest.add(records.getBinX(i), records.getBinY(i), records.getCounts(i));
+                }
+            }
+            return new String[]{layoutHash, digest.toString(), String.valueOf(digest.records)};
+        }
+    }
+
+    private static byte[] readBlock(FileChannel channel, BlockIndexEntry entry) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(entry.getSize());
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, entry.getPosition() + buffer.position()) < 0) {
+                throw new IOException("Truncated block " + entry.getNumber());
+            }
+        }
+        return buffer.array();
+    }
+
+    private static String digestNormVector(Dataset ds, Chromosome chrom, HiCZoom zoom, NormalizationType norm) {
+        NormalizationVector nv = ds.getNormalizationVector(chrom.getIndex(), zoom, norm);
+        if (nv == null || nv.getData() == null) return UNKNOWN;
+        MessageDigest digest = newMessageDigest();
+        update(digest, nv.getData());
+        return toHex(digest.digest());
+    }
+
+    private static String digestExpectedVector(Dataset ds, Chromosome[] chroms, HiCZoom zoom,
+                                               NormalizationType norm) {
+        ExpectedValueFunction expected = ds.getExpectedValues(zoom, norm, false);
+        if (expected == null) return UNKNOWN;
+        MessageDigest digest = newMessageDigest();
+        for (Chromosome chrom : chroms) {
+            update(digest, expected.getExpectedValuesWithNormalization(chrom.getIndex()));
+        }
+        return toHex(digest.digest());
+    }
+
+    private static void update(MessageDigest digest, ListOfDoubleArrays values) {
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 13).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putLong(values == null ? -1 : values.getLength());
+        for (long i = 0; values != null && i < values.getLength(); i++) {
+            if (!buffer.hasRemaining()) {
+                digest.update(buffer.array(), 0, buffer.position());
+                buffer.clear();
+            }
+            buffer.putLong(Double.doubleToLongBits(values.get(i)));
+        }
+        digest.update(buffer.array(), 0, buffer.position());
+    }
+
+    private static MessageDigest newMessageDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(2 * bytes.length);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Sum of a 64-bit mix of each record, so the digest does not depend on the order of the records
+     */
+    private static class RecordDigest {
+        private long sum = 0;
+        private long records = 0;
+
+        private void add(int binX, int binY, float counts) {
+            long position = mix(((long) binX << 32) | (binY & 0xFFFFFFFFL));
+            sum += mix(position ^ Float.floatToIntBits(counts));
+            records++;
+        }
+
+        private static long mix(long z) {
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            return z ^ (z >>> 31);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%016x", sum);
+        }
+    }
+
+    /**
+     * @return keys of the matrices whose records may differ, including those missing from either fingerprint
+     */
+    public Set<String> getDifferingMatrices(Fingerprint other) {
+        return getDiffering(other, MATRIX, 1);
+    }
+
+    public boolean haveSameNormVectors(Fingerprint other) {
+        return getDiffering(other, NORM, 0).isEmpty();
+    }
+
+    public boolean haveSameExpectedVectors(Fingerprint other) {
+        return getDiffering(other, EXPECTED, 0).isEmpty();
+    }
+
+    /**
+     * @param field field holding the content digest
+     */
+    private Set<String> getDiffering(Fingerprint other, String kind, int field) {
+        Set<String> keys = new LinkedHashSet<>();
+        keys.addAll(digests.keySet());
+        keys.addAll(other.digests.keySet());
+        Set<String> differing = new LinkedHashSet<>();
+        for (String key : keys) {
+            if (!key.startsWith(kind + "\t")) continue;
+            String[] digest1 = digests.get(key), digest2 = other.digests.get(key);
+            if (digest1 == null || digest2 == null || !digest1[field].equals(digest2[field])) {
+                differing.add(key);
+            }
+        }
+        return differing;
+    }
+
+    public int getNumMatrices() {
+        int n = 0;
+        for (String key : digests.keySet()) {
+            if (key.startsWith(MATRIX + "\t")) n++;
+        }
+        return n;
+    }
+
+    /**
+     * @return the cached digests, or null if the sidecar belongs to another version of the file
+     */
+    private static Fingerprint read(File sidecar, File hicFile) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new FileReader(sidecar))) {
+            if (!HEADER.equals(reader.readLine())) return null;
+            if (!("#size\t" + hicFile.length()).equals(reader.readLine())) return null;
+            if (!("#mtime\t" + hicFile.lastModified()).equals(reader.readLine())) return null;
+
+            Fingerprint cached = new Fingerprint();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("#")) continue;
+                String[] fields = line.split("\t");
+                int keyLength = fields[0].equals(MATRIX) || fields[0].equals(NORM) ? 4 : 3;
+                String key = String.join("\t", Arrays.copyOfRange(fields, 0, keyLength));
+                cached.digests.put(key, Arrays.copyOfRange(fields, keyLength, fields.length));
+            }
+            return cached;
+        }
+    }
+
+    private void write(File sidecar, File hicFile) throws IOException {
+        File temp = new File(sidecar.getPath() + ".tmp");
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(temp))) {
+            writer.write(HEADER);
+            writer.newLine();
+            writer.write("#size\t" + hicFile.length());
+            writer.newLine();
+            writer.write("#mtime\t" + hicFile.lastModified());
+            writer.newLine();
+            writer.write("#matrix\tchr1\tchr2\tresolution\tlayout_sha256\trecord_digest\trecords");
+            writer.newLine();
+            writer.write("#norm\tnormalization\tchr\tresolution\tsha256");
+            writer.newLine();
+            writer.write("#expected\tnormalization\tresolution\tsha256");
+            writer.newLine();
+            for (Map.Entry<String, String[]> entry : digests.entrySet()) {
+                writer.write(entry.getKey() + "\t" + String.join("\t", entry.getValue()));
+                writer.newLine();
+            }
+        }
+        if (!temp.renameTo(sidecar)) {
+            throw new IOException("Unable to rename " + temp.getPath());
+        }
+    }
+}
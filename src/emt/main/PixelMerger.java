@@ -0,0 +1,122 @@
+package emt.main;
+
+import emt.utils.common.LongFloatHashMap;
+import emt.utils.io.SortedRunFile;
+import javastraw.reader.block.ContactRecord;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Sums the contacts of one chromosome pair from several sources in bounded memory. Pixels are summed in memory
+ * and spilled to a temporary file as a sorted run whenever they exceed the budget; the runs are then k-way merged,
+ * summing identical pixels, into one stream sorted by x, then y.
+ */
+public class PixelMerger implements Closeable {
+
+    private final long memoryBudget;
+    private final SortedRunFile runs;
+    private LongFloatHashMap pixels = new LongFloatHashMap(1 << 10);
+
+    public PixelMerger(long memoryBudget, File tempFolder) {
+        this.memoryBudget = memoryBudget;
+        this.runs = new SortedRunFile(tempFolder, "emt_merge_", 4);
+    }
+
+    public void add(int binX, int binY, float counts) throws IOException {
+        pixels.addTo(LongFloatHashMap.getKey(binX, binY), counts);
+        if (pixels.getMemoryFootprint() > memoryBudget) {
+            spill();
+        }
+    }
+
+    private void spill() throws IOException {
+        if (pixels.size() == 0) return;
+        runs.startRun();
+        for (long key : pixels.getSortedKeys()) {
+            runs.add(key, Float.floatToRawIntBits(pixels.get(key)));
+        }
+        runs.finishRun();
+        pixels = new LongFloatHashMap(1 << 10);
+    }
+
+    /**
+     * @return the summed pixels; no more contacts may be added
+     */
+    public Iterator<ContactRecord> iterator() throws IOException {
+        if (runs.isEmpty()) {
+            return new MemoryIterator(pixels);
+        }
+        spill();
+        return new MergingIterator(runs.merge(memoryBudget));
+    }
+
+    @Override
+    public void close() throws IOException {
+        pixels = null;
+        runs.close();
+    }
+
+    private static class MemoryIterator implements Iterator<ContactRecord> {
+
+        private final LongFloatHashMap pixels;
+        private final long[] keys;
+        private int index = 0;
+
+        MemoryIterator(LongFloatHashMap pixels) {
+            this.pixels = pixels;
+            this.keys = pixels.getSortedKeys();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return index < keys.length;
+        }
+
+        @Override
+        public ContactRecord next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            long key = keys[index++];
+            return new ContactRecord(LongFloatHashMap.getFirst(key), LongFloatHashMap.getSecond(key),
+                    pixels.get(key));
+        }
+    }
+
+    private static class MergingIterator implements Iterator<ContactRecord> {
+
+        private final PriorityQueue<SortedRunFile.Reader> queue;
+
+        MergingIterator(PriorityQueue<SortedRunFile.Reader> queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !queue.isEmpty();
+        }
+
+        @Override
+        public ContactRecord next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            long key = queue.peek().getKey();
+            float counts = 0;
+            try {
+                while (!queue.isEmpty() && queue.peek().getKey() == key) {
+                    SortedRunFile.Reader reader = queue.poll();
+                    counts += Float.intBitsToFloat((int) reader.getValue());
+                    if (reader.advance()) {
+                        queue.add(reader);
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return new ContactRecord(LongFloatHashMap.getFirst(key), LongFloatHashMap.getSecond(key), counts);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package emt.main;
+
+import emt.main.hic.BlockIndexEntry;
+import emt.main.hic.BlockRecords;
+import emt.main.hic.HiCFileIndex;
+import emt.utils.common.ProgressMeter;
+import javastraw.reader.block.ContactRecord;
+import javastraw.reader.datastructures.ListOfDoubleArrays;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Contacts of a region of a local .hic file, read one block at a time: each block is fetched, decoded and
+ * normalized when it is reached, and released once its records have been returned. With a pool, the next few
+ * blocks are fetched and decoded ahead, so at most prefetch + 1 blocks are held at any time.
+ */
+public class RegionStream implements Iterator<ContactRecord> {
+
+    private final HiCFileIndex hicIndex;
+    private final Iterator<BlockIndexEntry> entries;
+    private final ListOfDoubleArrays xNorm, yNorm;
+    private final ExecutorService pool;
+    private final int prefetch;
+    private final ProgressMeter.Unit unit;
+    private final Deque<Future<BlockRecords>> pending = new ArrayDeque<>();
+    private BlockRecords current = null;
+    private int index = 0;
+
+    /**
+     * @param blocks   blocks to read, in order
+     * @param xNorm    normalization vector of the x bins, or null for raw counts
+     * @param yNorm    normalization vector of the y bins, or null for raw counts
+     * @param pool     threads fetching blocks ahead, or null to read each block when it is reached
+     * @param prefetch number of blocks fetched ahead
+     */
+    public RegionStream(HiCFileIndex hicIndex, List<BlockIndexEntry> blocks, ListOfDoubleArrays xNorm,
+                        ListOfDoubleArrays yNorm, ExecutorService pool, int prefetch, ProgressMeter.Unit unit) {
+        this.hicIndex = hicIndex;
+        this.entries = blocks.iterator();
+        this.xNorm = xNorm;
+        this.yNorm = yNorm;
+        this.pool = pool;
+        this.prefetch = Math.max(0, prefetch);
+        this.unit = unit;
+    }
+
+    @Override
+    public boolean hasNext() {
+        try {
+            while (current == null || index == current.size()) {
+                current = null;
+                if (pool == null) {
+                    if (!entries.hasNext()) return false;
+                    current = hicIndex.readBlock(start(entries.next()));
+                } else {
+                    fill();
+                    if (pending.isEmpty()) return false;
+                    current = take();
+                }
+                index = 0;
+                unit.addRecords(current.size());
+            }
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public ContactRecord next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        int i = index++;
+        int x = current.getBinX(i);
+        int y = current.getBinY(i);
+        float counts = current.getCounts(i);
+        if (xNorm != null) {
+            counts = normalize(counts, x, y);
+        }
+        return new ContactRecord(x, y, counts);
+    }
+
+    /**
+     * @return the normalized counts, or NaN (never written) where a bin has no normalization factor
+     */
+    private float normalize(float counts, int x, int y) {
+        if (x >= xNorm.getLength() || y >= yNorm.getLength()) return Float.NaN;
+        double factor = xNorm.get(x) * yNorm.get(y);
+        if (!(factor > 0)) return Float.NaN;
+        return (float) (counts / factor);
+    }
+
+    private BlockIndexEntry start(BlockIndexEntry entry) {
+        unit.addBlocks(1);
+        unit.addBytesRead(entry.getSize());
+        return entry;
+    }
+
+    /**
+     * Keeps the next blocks fetched ahead
+     */
+    private void fill() {
+        while (pending.size() <= prefetch && entries.hasNext()) {
+            BlockIndexEntry entry = start(entries.next());
+            pending.addLast(pool.submit(() -> hicIndex.readBlock(entry)));
+        }
+    }
+
+    private BlockRecords take() throws IOException {
+        try {
+            return pending.removeFirst().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading blocks", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause()
+                    : new IOException("Unable to read block", e.getCause());
+        }
+    }
+
+    /**
+     * Stops fetching ahead, e.g. when the region is abandoned after an error
+     */
+    public void cancel() {
+        for (Future<BlockRecords> future : pending) {
+            future.cancel(true);
+        }
+        pending.clear();
+        current = null;
+    }
+}
@@ -0,0 +1,107 @@
+package emt.main;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Records the shards that have been completely written, one tab-separated line per shard
+ * (name, record count, byte size, CRC32), after a line describing the run's parameters.
+ * When resuming, a shard is skipped only if the parameters match and the shard on disk
+ * still has the recorded size and checksum.
+ */
+public class ShardManifest {
+
+    private static final String HEADER = "#hic-emt shard manifest v1";
+    private static final String NAME = "manifest.tsv";
+
+    private final File file;
+    private final Map<String, long[]> completed = new HashMap<>();
+    private final BufferedWriter writer;
+
+    public ShardManifest(File shardFolder, String parameters, boolean resume) throws IOException {
+        file = new File(shardFolder, NAME);
+        boolean append = resume && readCompleted(parameters);
+        writer = new BufferedWriter(new FileWriter(file, append));
+        if (!append) {
+            completed.clear();
+            writer.write(HEADER);
+            writer.newLine();
+            writer.write("#" + parameters);
+            writer.newLine();
+            writer.flush();
+        }
+    }
+
+    /**
+     * @return false if there is no manifest, or it was written with other parameters
+     */
+    private boolean readCompleted(String parameters) throws IOException {
+        if (!file.isFile()) return false;
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            if (!HEADER.equals(reader.readLine())) return false;
+            if (!("#" + parameters).equals(reader.readLine())) {
+                System.out.println("Parameters differ from the interrupted run; starting over");
+                return false;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length != 4) continue; // partially written line
+                try {
+                    completed.put(fields[0], new long[]{Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                            Long.parseLong(fields[3])});
+                } catch (NumberFormatException e) {
+                    // partially written line
+                }
+            }
+        }
+        return true;
+    }
+
+    public int getNumCompleted() {
+        return completed.size();
+    }
+
+    /**
+     * @return true if the shard was completed by an earlier run and is unchanged on disk
+     */
+    public boolean isComplete(String name, File shard) throws IOException {
+        long[] entry;
+        synchronized (this) {
+            entry = completed.get(name);
+        }
+        if (entry == null || !shard.isFile() || shard.length() != entry[1]) return false;
+        return getChecksum(shard) == entry[2];
+    }
+
+    public synchronized void markComplete(String name, long numRecords, long numBytes, long checksum) throws IOException {
+        completed.put(name, new long[]{numRecords, numBytes, checksum});
+        writer.write(name + "\t" + numRecords + "\t" + numBytes + "\t" + checksum);
+        writer.newLine();
+        writer.flush();
+    }
+
+    private static long getChecksum(File shard) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream in = new FileInputStream(shard)) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                crc.update(buffer, 0, n);
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Closes and deletes the manifest once the shards have been concatenated
+     */
+    public void delete() throws IOException {
+        writer.close();
+        if (!file.delete()) {
+            System.err.println("Unable to delete " + file.getPath());
+        }
+    }
+}
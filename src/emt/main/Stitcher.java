@@ -1,18 +1,40 @@
 package emt.main;
 
+import emt.main.hic.HiCFileIndex;
+import emt.main.hic.HiCFileWriter;
+import emt.main.hic.ZoomIndex;
+import emt.main.mnd.MNDFormat;
+import emt.main.mnd.MNDWriter;
+import emt.main.mnd.MNDWriterStage;
+import emt.utils.common.ProgressMeter;
 import javastraw.reader.Dataset;
 import javastraw.reader.basics.Chromosome;
 import javastraw.reader.block.Block;
+import javastraw.reader.datastructures.ListOfDoubleArrays;
 import javastraw.reader.mzd.Matrix;
 import javastraw.reader.mzd.MatrixZoomData;
+import javastraw.reader.norm.NormalizationVector;
 import javastraw.reader.type.NormalizationType;
 import javastraw.tools.HiCFileTools;
+import javastraw.tools.ParallelizationTools;
 
 import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class Stitcher extends FileBuildingMethod {
 
@@ -21,68 +43,432 @@ public class Stitcher extends FileBuildingMethod {
     private final String[] regions;
     private final String normalization;
     private final boolean adjustOrigin;
+    private final int numThreads;
+    private final int writerThreads;
+    private final int prefetch;
+    private final List<Dataset> datasets = new ArrayList<>();
+    private final List<HiCFileIndex> hicIndices = new ArrayList<>();
+    private ExecutorService prefetchPool = null;
 
 
     public Stitcher(String[] files, String[] stems, String[] regions, String normalization, boolean adjustOrigin,
-                    int resolution, String path, boolean doCleanUp, long seed, String stem) {
-        super(resolution, path, path + "/custom.chrom.sizes", doCleanUp, seed, stem);
+                    int resolution, String path, boolean doCleanUp, long seed, String stem, MNDFormat format,
+                    boolean buildInProcess, boolean resume, int numThreads, int writerThreads,
+                    int prefetch, String pipe) {
+        super(resolution, path, path + "/custom.chrom.sizes", doCleanUp, seed, stem, format, buildInProcess, resume,
+                pipe, false);
         this.files = files;
         this.stems = stems;
         this.regions = regions;
         this.normalization = normalization;
         this.adjustOrigin = adjustOrigin;
+        this.numThreads = Math.max(1, numThreads);
+        this.writerThreads = writerThreads;
+        this.prefetch = prefetch;
+    }
+
+    private void openFiles() {
+        Dataset[] opened = new Dataset[files.length];
+        HiCFileIndex[] indices = new HiCFileIndex[files.length];
+        AtomicInteger index = new AtomicInteger(0);
+        ParallelizationTools.launchParallelizedCode(numThreads, () -> {
+            int i = index.getAndIncrement();
+            while (i < files.length) {
+                opened[i] = HiCFileTools.extractDatasetForCLT(files[i], false, false, false);
+                indices[i] = HiCFileIndex.open(files[i]);
+                i = index.getAndIncrement();
+            }
+        });
+        datasets.addAll(Arrays.asList(opened));
+        hicIndices.addAll(Arrays.asList(indices));
+    }
+
+    /**
+     * Reports what each region would read and write, from the block indexes only
+     */
+    public void estimate(DryRun dryRun) throws IOException {
+        openFiles();
+        for (int s = 0; s < files.length; s++) {
+            Dataset ds = datasets.get(s);
+            for (String region : regions) {
+                String[] regionSplit = region.split(":");
+                Chromosome chrom = getChromosome(ds, region);
+                long start = Long.parseLong(regionSplit[1]) / resolution;
+                long end = Long.parseLong(regionSplit[2]) / resolution;
+                DryRun.Read read = dryRun.read(hicIndices.get(s), chrom.getIndex(), chrom.getIndex(),
+                        Collections.singletonList(new long[]{start, end, start, end}), 1);
+                String name = getNewChromName(ds, stems[s], region);
+                dryRun.report(stems[s] + ":" + region, read, name, name, getNewLength(region));
+            }
+        }
+        dryRun.printTotals();
     }
 
     public void buildTempFiles() throws IOException {
+        openFiles();
+
+        writeOutCustomCDS();
+        long totalSize = 0;
+        for (String region : regions) {
+            totalSize += getEstimatedSize(region) * files.length;
+        }
+        ProgressMeter progress = new ProgressMeter("stitch", "regions", files.length * regions.length, totalSize);
+        if (prefetch > 0) {
+            prefetchPool = Executors.newFixedThreadPool(prefetch * numThreads);
+        }
+        try {
+            if (buildInProcess) {
+                buildHiCFile(progress);
+            } else if (pipe != null) {
+                buildPiped(progress);
+            } else {
+                buildShards(progress);
+            }
+        } finally {
+            if (prefetchPool != null) {
+                prefetchPool.shutdownNow();
+            }
+            progress.close();
+        }
+        progress.writeJson(new File(metricsFile));
+    }
+
+    /**
+     * Each chromosome of each file is a matrix of the new file, so its regions are binned together by one task;
+     * the tasks run in parallel, and the writer places the matrices wherever they finish.
+     */
+    private void buildHiCFile(ProgressMeter progress) throws IOException {
+        List<List<RegionTask>> matrices = new ArrayList<>();
+        for (int s = 0; s < files.length; s++) {
+            Map<Integer, List<RegionTask>> byChromosome = new LinkedHashMap<>();
+            for (int r = 0; r < regions.length; r++) {
+                int chrIndex = getChromosome(datasets.get(s), regions[r]).getIndex();
+                byChromosome.computeIfAbsent(chrIndex, k -> new ArrayList<>()).add(new RegionTask(s, r));
+            }
+            matrices.addAll(byChromosome.values());
+        }
+        matrices.sort(Comparator.comparingLong(Stitcher::getTotalSize).reversed());
+
+        // the .hic file holds the same matrices as the one pre -d would build
+        try (HiCFileWriter hicWriter = openHiCFileWriter(numThreads, true);
+             MNDWriterStage stage = new MNDWriterStage(writerThreads)) {
+            runInParallel(matrices.size(), i -> {
+                try (MNDWriter matrixWriter = stage.open(hicWriter.openMatrixWriter())) {
+                    for (RegionTask task : matrices.get(i)) {
+                        ProgressMeter.Unit unit = progress.start(task.getDescription(), task.estimatedSize);
+                        processRegion(task, matrixWriter, unit);
+                        unit.finish();
+                    }
+                }
+            });
+        }
+        progress.addBytesWritten(new File(newHiCFile).length());
+    }
+
+    private static long getTotalSize(List<RegionTask> tasks) {
+        long size = 0;
+        for (RegionTask task : tasks) {
+            size += task.estimatedSize;
+        }
+        return size;
+    }
+
+    /**
+     * @return number of pixels in the region
+     */
+    private long getEstimatedSize(String region) {
+        String[] regionSplit = region.split(":");
+        long numBins = (Long.parseLong(regionSplit[2]) - Long.parseLong(regionSplit[1])) / resolution + 1;
+        return numBins * numBins;
+    }
+
+    /**
+     * Each region of each file is written to its own shard by a worker pool, starting with the largest regions,
+     * and recorded in the manifest so an interrupted run can be resumed. The shards are then concatenated
+     * in file and region order, so the MND is identical to a serial run.
+     * Each worker reads its next region while the writer stage is still writing its previous one.
+     */
+    private void buildShards(ProgressMeter progress) throws IOException {
+        openManifest();
+        List<RegionTask> tasks = new ArrayList<>();
+        List<File> shards = new ArrayList<>();
+        for (int s = 0; s < files.length; s++) {
+            for (int r = 0; r < regions.length; r++) {
+                RegionTask task = new RegionTask(s, r);
+                tasks.add(task);
+                shards.add(getShardFile(task.getShardName()));
+            }
+        }
+        List<RegionTask> schedule = new ArrayList<>(tasks);
+        schedule.sort(Comparator.comparingLong((RegionTask task) -> task.estimatedSize).reversed());
+
+        try (MNDWriterStage stage = new MNDWriterStage(writerThreads)) {
+            AtomicInteger index = new AtomicInteger(0);
+            AtomicReference<Exception> failure = new AtomicReference<>();
+            ParallelizationTools.launchParallelizedCode(numThreads, () -> {
+                Shard previous = null;
+                ProgressMeter.Unit previousUnit = null;
+                try {
+                    int i = index.getAndIncrement();
+                    while (i < schedule.size() && failure.get() == null) {
+                        RegionTask task = schedule.get(i);
+                        ProgressMeter.Unit unit = progress.start(task.getDescription(), task.estimatedSize);
+                        Shard shard;
+                        try {
+                            shard = openShard(task.getShardName(), stage);
+                            if (shard != null) {
+                                try {
+                                    processRegion(task, shard.getWriter(), unit);
+                                } catch (IOException | RuntimeException e) {
+                                    shard.close();
+                                    throw e;
+                                }
+                            }
+                        } catch (Exception e) {
+                            System.err.println("Unable to stitch " + task.getDescription());
+                            failure.compareAndSet(null, e);
+                            break;
+                        }
+                        try {
+                            complete(previous, previousUnit);
+                        } finally {
+                            previous = shard;
+                            previousUnit = unit;
+                        }
+                        i = index.getAndIncrement();
+                    }
+                    complete(previous, previousUnit);
+                } catch (Exception e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    if (previous != null) {
+                        try {
+                            previous.close();
+                        } catch (IOException e) {
+                            failure.compareAndSet(null, e);
+                        }
+                    }
+                }
+            });
+            if (failure.get() != null) {
+                throw new IOException("Stitching failed", failure.get());
+            }
+        }
+        concatenateShards(shards);
+        progress.addBytesWritten(new File(newMND).length());
+    }
+
+    /**
+     * The regions are stitched one at a time in file and region order, since the stream cannot be reordered;
+     * the writer stage formats and writes each region while the next one is read.
+     */
+    private void buildPiped(ProgressMeter progress) throws IOException {
+        try (Pipe pipe = openPipe();
+             MNDWriterStage stage = new MNDWriterStage(1)) {
+            MNDWriterStage.StagedMNDWriter writer = stage.open(pipe.getWriter());
+            for (int s = 0; s < files.length; s++) {
+                for (int r = 0; r < regions.length; r++) {
+                    RegionTask task = new RegionTask(s, r);
+                    ProgressMeter.Unit unit = progress.start(task.getDescription(), task.estimatedSize);
+                    processRegion(task, writer, unit);
+                    unit.finish();
+                }
+            }
+            writer.finish();
+            pipe.complete();
+        }
+    }
+
+    /**
+     * A region is only finished once the writer stage has written its shard
+     */
+    private static void complete(Shard shard, ProgressMeter.Unit unit) throws IOException {
+        if (shard != null) {
+            shard.complete();
+            unit.addBytesWritten(shard.getBytesWritten());
+        }
+        if (unit != null) {
+            unit.finish();
+        }
+    }
+
+    private interface IndexedTask {
+        void run(int i) throws IOException;
+    }
+
+    private void runInParallel(int numTasks, IndexedTask task) throws IOException {
+        AtomicInteger index = new AtomicInteger(0);
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        ParallelizationTools.launchParallelizedCode(numThreads, () -> {
+            int i = index.getAndIncrement();
+            while (i < numTasks && failure.get() == null) {
+                try {
+                    task.run(i);
+                } catch (Exception e) {
+                    failure.compareAndSet(null, e);
+                }
+                i = index.getAndIncrement();
+            }
+        });
+        if (failure.get() != null) {
+            throw new IOException("Stitching failed", failure.get());
+        }
+    }
+
+    /**
+     * One region of one file
+     */
+    private class RegionTask {
+
+        private final int file;
+        private final String region;
+        private final String shardName;
+        private final long estimatedSize;
+
+        private RegionTask(int file, int region) {
+            this.file = file;
+            this.region = regions[region];
+            this.shardName = file + "_" + region;
+            this.estimatedSize = getEstimatedSize(regions[region]);
+        }
+
+        private String getShardName() {
+            return shardName;
+        }
+
+        private String getDescription() {
+            return stems[file] + ":" + region;
+        }
+    }
+
+    private void writeOutCustomCDS() throws IOException {
         BufferedWriter bwChromDotSizes = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(newCDS)));
-        BufferedWriter bwMND = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(newMND)));
         for (int s = 0; s < files.length; s++) {
-            String file = files[s];
-            String stem = stems[s];
-            Dataset ds = HiCFileTools.extractDatasetForCLT(file, false, false, false);
-            NormalizationType norm = ds.getNormalizationHandler().getNormTypeFromString(normalization);
             for (String region : regions) {
-                processRegion(region, ds, norm, stem, bwChromDotSizes, bwMND);
-                Utils.printProgressDot();
+                bwChromDotSizes.write(getNewChromName(datasets.get(s), stems[s], region) + "\t" + getNewLength(region));
+                bwChromDotSizes.newLine();
             }
         }
         bwChromDotSizes.close();
-        bwMND.close();
     }
 
-    private void processRegion(String region, Dataset ds, NormalizationType norm, String stem,
-                               BufferedWriter bwChromDotSizes, BufferedWriter bwMND) throws IOException {
+    @Override
+    protected String[] getChromosomeNames() {
+        List<String> names = new ArrayList<>();
+        for (int s = 0; s < files.length; s++) {
+            for (String region : regions) {
+                String name = getNewChromName(datasets.get(s), stems[s], region);
+                if (!names.contains(name)) {
+                    names.add(name);
+                }
+            }
+        }
+        return names.toArray(new String[0]);
+    }
+
+    @Override
+    protected String getRunParameters() {
+        return "stitch\t" + String.join(",", files) + "\t" + String.join(",", stems) + "\t"
+                + String.join(",", regions) + "\t" + normalization + "\t" + adjustOrigin + "\t" + resolution
+                + "\t" + format;
+    }
 
+    @Override
+    protected long[] getChromosomeLengths() {
+        String[] names = getChromosomeNames();
+        long[] lengths = new long[names.length];
+        List<String> nameList = Arrays.asList(names);
+        for (int s = 0; s < files.length; s++) {
+            for (String region : regions) {
+                int index = nameList.indexOf(getNewChromName(datasets.get(s), stems[s], region));
+                lengths[index] = Math.max(lengths[index], getNewLength(region));
+            }
+        }
+        return lengths;
+    }
+
+    private long getNewLength(String region) {
         String[] regionSplit = region.split(":");
-        Chromosome chrom = ds.getChromosomeHandler().getChromosomeFromName(regionSplit[0]);
         int posStart = Integer.parseInt(regionSplit[1]);
         int posEnd = Integer.parseInt(regionSplit[2]);
+        if (adjustOrigin) {
+            return posEnd - posStart + (5L * resolution);
+        }
+        return posEnd + (2L * resolution);
+    }
 
-        Matrix matrix = ds.getMatrix(chrom, chrom);
-        MatrixZoomData zd = matrix.getZoomData(zoom);
+    private static Chromosome getChromosome(Dataset ds, String region) {
+        return ds.getChromosomeHandler().getChromosomeFromName(region.split(":")[0]);
+    }
 
-        List<Block> blocks = HiCFileTools.getAllRegionBlocks(zd,
-                posStart / resolution, posEnd / resolution + 1,
-                posStart / resolution, posEnd / resolution + 1,
-                norm, false);
+    private static String getNewChromName(Dataset ds, String stem, String region) {
+        return stem + "_" + getChromosome(ds, region).getName();
+    }
 
-        String newChromName = stem + "_" + chrom.getName();
-        long newLength;
-        if (adjustOrigin) {
-            newLength = posEnd - posStart + (5L * resolution);
-        } else {
-            newLength = posEnd + (2L * resolution);
-        }
+    /**
+     * Regions of local files are streamed block by block, so only a few blocks are held at once;
+     * remote files, or normalizations missing from the file, fall back to reading all the blocks of the region.
+     */
+    private void processRegion(RegionTask task, MNDWriter mndWriter, ProgressMeter.Unit unit) throws IOException {
+        int file = task.file;
+        String region = task.region;
+        Dataset ds = datasets.get(file);
+        NormalizationType norm = ds.getNormalizationHandler().getNormTypeFromString(normalization);
+        String[] regionSplit = region.split(":");
+        Chromosome chrom = getChromosome(ds, region);
+        int posStart = Integer.parseInt(regionSplit[1]);
+        int posEnd = Integer.parseInt(regionSplit[2]);
+        int origin = adjustOrigin ? posStart : 0;
+        String newChromName = stems[file] + "_" + chrom.getName();
 
-        bwChromDotSizes.write(newChromName + "\t" + newLength);
-        bwChromDotSizes.newLine();
+        HiCFileIndex hicIndex = hicIndices.get(file);
+        ZoomIndex zoomIndex = hicIndex == null ? null
+                : hicIndex.getZoomIndex(chrom.getIndex(), chrom.getIndex(), resolution);
+        ListOfDoubleArrays normVector = getNormVector(ds, chrom, norm);
+        if (zoomIndex == null || norm == null || (normVector == null && !isRaw(norm))) {
+            List<Block> blocks = getAllRegionBlocks(ds, chrom, posStart, posEnd, norm);
+            DatasetUtils.addBlocksRead(hicIndex, chrom, chrom, resolution, blocks, unit);
+            for (Block block : blocks) {
+                unit.addRecords(block.getContactRecords().size());
+            }
+            Utils.writeOutMND(blocks, resolution, origin, origin, mndWriter, newChromName, newChromName);
+            return;
+        }
 
-        if (adjustOrigin) {
-            Utils.writeOutMND(blocks, resolution, posStart, posStart, bwMND,
-                    newChromName, newChromName);
-        } else {
-            Utils.writeOutMND(blocks, resolution, 0, 0, bwMND,
-                    newChromName, newChromName);
+        long first = posStart / resolution;
+        long last = posEnd / resolution + 1;
+        RegionStream stream = new RegionStream(hicIndex,
+                zoomIndex.getBlocks(first, last, first, last, hicIndex.getVersion()),
+                normVector, normVector, prefetchPool, prefetch, unit);
+        try {
+            Utils.writeOutMND(stream, resolution, origin, origin, mndWriter, newChromName, newChromName);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            stream.cancel();
         }
     }
+
+    /**
+     * @return the normalization vector of the chromosome, or null for raw counts or if it is not in the file
+     */
+    private ListOfDoubleArrays getNormVector(Dataset ds, Chromosome chrom, NormalizationType norm) {
+        if (norm == null || isRaw(norm)) return null;
+        NormalizationVector nv = ds.getNormalizationVector(chrom.getIndex(), zoom, norm);
+        return nv == null ? null : nv.getData();
+    }
+
+    private static boolean isRaw(NormalizationType norm) {
+        return norm.getLabel().equals("NONE");
+    }
+
+    private List<Block> getAllRegionBlocks(Dataset ds, Chromosome chrom, int posStart, int posEnd,
+                                           NormalizationType norm) throws IOException {
+        Matrix matrix = ds.getMatrix(chrom, chrom);
+        MatrixZoomData zd = matrix.getZoomData(zoom);
+        return HiCFileTools.getAllRegionBlocks(zd,
+                posStart / resolution, posEnd / resolution + 1,
+                posStart / resolution, posEnd / resolution + 1,
+                norm, false);
+    }
 }
@@ -0,0 +1,201 @@
+package emt.main;
+
+import emt.main.mnd.MNDWriter;
+import emt.utils.sampling.BinomialSampler;
+import emt.utils.sampling.HypergeometricSampler;
+import javastraw.reader.basics.Chromosome;
+import javastraw.reader.block.ContactRecord;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Subsamples a file to several depths, each with several seeds, from one pass over every chromosome pair.
+ * For each seed, the depths are drawn from the largest down and each keeps a fraction of the contacts kept
+ * for the one above, so a smaller subsample is a subset of every larger one with the same seed.
+ * Outputs are numbered by seed, then by decreasing depth.
+ */
+public class SubsampleSeries {
+
+    private final long[] depths;
+    private final long[] seeds;
+    private final long totalContacts;
+    private final double[] conditionalRatios;
+    private final List<Map<String, long[]>> allocations;
+
+    /**
+     * @param exact keep exactly each depth, drawn without replacement, instead of keeping every contact
+     *              independently with probability depth / total
+     */
+    public SubsampleSeries(Collection<Long> depths, Collection<Long> seeds, ContactCounts counts, boolean exact) {
+        this.depths = toArray(new TreeSet<>(Collections.reverseOrder()), depths);
+        this.seeds = toArray(new LinkedHashSet<>(), seeds);
+        totalContacts = counts.getTotalContacts();
+
+        conditionalRatios = new double[this.depths.length];
+        double previousRatio = 1;
+        for (int d = 0; d < this.depths.length; d++) {
+            double ratio = Math.min(1, ((double) this.depths[d]) / ((double) totalContacts));
+            conditionalRatios[d] = ratio / previousRatio;
+            previousRatio = ratio;
+        }
+
+        if (exact) {
+            allocations = new ArrayList<>();
+            for (long seed : this.seeds) {
+                allocations.add(counts.allocate(this.depths, seed));
+            }
+        } else {
+            allocations = null;
+        }
+    }
+
+    private static long[] toArray(Set<Long> set, Collection<Long> values) {
+        set.addAll(values);
+        long[] array = new long[set.size()];
+        int i = 0;
+        for (long value : set) {
+            array[i++] = value;
+        }
+        return array;
+    }
+
+    public int getNumOutputs() {
+        return depths.length * seeds.length;
+    }
+
+    public long getDepth(int output) {
+        return depths[output % depths.length];
+    }
+
+    public long getSeed(int output) {
+        return seeds[output / depths.length];
+    }
+
+    public long getTotalContacts() {
+        return totalContacts;
+    }
+
+    public String getStem(String stem, int output) {
+        if (getNumOutputs() == 1) return stem;
+        return getStem(stem, getDepth(output), getSeed(output));
+    }
+
+    public static String getStem(String stem, long depth, long seed) {
+        return stem + "_" + depth + "_s" + seed;
+    }
+
+    /**
+     * @return everything the contacts of an output depend on, including the larger depths it is nested in
+     */
+    public String getParameters(int output) {
+        StringBuilder chain = new StringBuilder();
+        for (int d = 0; d <= output % depths.length; d++) {
+            if (d > 0) chain.append(",");
+            chain.append(depths[d]);
+        }
+        return chain + "\t" + totalContacts + "\t" + (allocations != null) + "\t" + getSeed(output);
+    }
+
+    /**
+     * Draws the pair's contacts for every output, writing them to writers[output];
+     * the draws are the same whether or not an output's writer is null
+     */
+    public void write(Iterator<ContactRecord> iterator, int resolution, MNDWriter[] writers,
+                      Chromosome c1, Chromosome c2) throws IOException {
+        for (MNDWriter writer : writers) {
+            if (writer != null) {
+                writer.setPair(c1.getName(), c2.getName());
+            }
+        }
+        if (allocations == null) {
+            writeBinomial(iterator, resolution, writers, c1, c2);
+        } else {
+            writeExact(iterator, resolution, writers, c1, c2);
+        }
+    }
+
+    private void writeBinomial(Iterator<ContactRecord> iterator, int resolution, MNDWriter[] writers,
+                               Chromosome c1, Chromosome c2) throws IOException {
+        BinomialSampler[] samplers = new BinomialSampler[seeds.length];
+        for (int s = 0; s < seeds.length; s++) {
+            samplers[s] = new BinomialSampler(Utils.getSeedForPair(seeds[s], c1.getIndex(), c2.getIndex()));
+        }
+
+        while (iterator.hasNext()) {
+            ContactRecord cr = iterator.next();
+            if (cr.getCounts() > 0) {
+                int counts = (int) Math.ceil(cr.getCounts());
+                for (int s = 0; s < seeds.length; s++) {
+                    int kept = counts;
+                    for (int d = 0; d < depths.length && kept > 0; d++) {
+                        kept = samplers[s].sample(kept, conditionalRatios[d]);
+                        write(writers[s * depths.length + d], cr, resolution, kept);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Each depth keeps exactly the pair's allocation: the number kept from a pixel is a hypergeometric draw
+     * given the contacts and the allocation remaining in the pair at the depth above. Fails if an allocation
+     * cannot be met, i.e. the pair holds fewer contacts than in its counts.
+     */
+    private void writeExact(Iterator<ContactRecord> iterator, int resolution, MNDWriter[] writers,
+                            Chromosome c1, Chromosome c2) throws IOException {
+        String key = ContactCounts.getKey(c1.getName(), c2.getName());
+        HypergeometricSampler[] samplers = new HypergeometricSampler[seeds.length];
+        long[][] targets = new long[seeds.length][];
+        long[][] remainingTarget = new long[seeds.length][];
+        long[][] remainingPopulation = new long[seeds.length][depths.length];
+        for (int s = 0; s < seeds.length; s++) {
+            samplers[s] = new HypergeometricSampler(Utils.getSeedForPair(seeds[s], c1.getIndex(), c2.getIndex()));
+            long[] allocation = allocations.get(s).get(key);
+            if (allocation == null) {
+                throw new IOException("No contact count for " + c1.getName() + "-" + c2.getName());
+            }
+            targets[s] = Arrays.copyOf(allocation, depths.length);
+            remainingTarget[s] = targets[s].clone();
+            remainingPopulation[s][0] = allocation[depths.length];
+            for (int d = 1; d < depths.length; d++) {
+                remainingPopulation[s][d] = allocation[d - 1];
+            }
+        }
+
+        while (iterator.hasNext()) {
+            ContactRecord cr = iterator.next();
+            if (cr.getCounts() > 0) {
+                int counts = (int) Math.ceil(cr.getCounts());
+                for (int s = 0; s < seeds.length; s++) {
+                    long available = counts;
+                    for (int d = 0; d < depths.length && available > 0; d++) {
+                        long population = Math.max(remainingPopulation[s][d], available);
+                        long good = Math.min(remainingTarget[s][d], population);
+                        long kept = samplers[s].sample(good, population - good, available);
+                        remainingPopulation[s][d] = population - available;
+                        remainingTarget[s][d] -= kept;
+                        available = kept;
+                        write(writers[s * depths.length + d], cr, resolution, (int) kept);
+                    }
+                }
+            }
+        }
+
+        for (int s = 0; s < seeds.length; s++) {
+            for (int d = 0; d < depths.length; d++) {
+                if (remainingTarget[s][d] != 0) {
+                    throw new IOException("Kept " + (targets[s][d] - remainingTarget[s][d]) + " instead of "
+                            + targets[s][d] + " contacts for " + c1.getName() + "-" + c2.getName() + " at depth "
+                            + depths[d] + " with seed " + seeds[s] + " (contacts differ from the saved counts)");
+                }
+            }
+        }
+    }
+
+    private static void write(MNDWriter writer, ContactRecord cr, int resolution, int counts) throws IOException {
+        if (writer != null && counts > 0) {
+            writer.write(cr.getBinX() * resolution, cr.getBinY() * resolution, counts);
+        }
+    }
+}
@@ -1,24 +1,25 @@
 package emt.main;
 
+import emt.main.mnd.MNDWriter;
 import javastraw.reader.block.Block;
 import javastraw.reader.block.ContactRecord;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Random;
 
 public class Utils {
 
-    private static int progressCounter = 0;
-
-    public static void printProgressDot() {
-        if (++progressCounter % 10 == 0) {
-            System.out.println(".");
-        } else {
-            System.out.print(".");
-        }
+    /**
+     * Derives an independent seed for a chromosome pair (SplitMix64 finalizer) so that subsampling is
+     * reproducible regardless of the order (or thread) in which pairs are processed.
+     */
+    static long getSeedForPair(long seed, int chr1Index, int chr2Index) {
+        long z = seed + 0x9E3779B97F4A7C15L * (((long) chr1Index << 32) + chr2Index + 1);
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
     }
 
     static boolean checkIfStandardGenome(String genomeId) {
@@ -28,76 +29,59 @@ public class Utils {
     }
 
     public static String getResolutionsToBuild(int highestResolution) {
-        StringBuilder resolutionsToBuild = new StringBuilder("2500000");
-        int[] bpBinSizes = {1000000, 500000, 250000, 100000, 50000, 25000, 10000, 5000, 2000, 1000, 500, 100};
-        for (int res : bpBinSizes) {
-            if (res >= highestResolution) {
-                resolutionsToBuild.append(",").append(res);
+        StringBuilder resolutionsToBuild = new StringBuilder();
+        for (int res : getBinSizesToBuild(highestResolution)) {
+            if (resolutionsToBuild.length() > 0) {
+                resolutionsToBuild.append(",");
             }
+            resolutionsToBuild.append(res);
         }
         return resolutionsToBuild.toString();
     }
 
+    /**
+     * @return the standard resolutions down to the highest resolution, coarsest first,
+     * followed by the highest resolution itself if it is not a standard one
+     */
+    public static int[] getBinSizesToBuild(int highestResolution) {
+        int[] bpBinSizes = {2500000, 1000000, 500000, 250000, 100000, 50000, 25000, 10000, 5000, 2000, 1000, 500, 100};
+        int numToBuild = 0;
+        while (numToBuild < bpBinSizes.length && bpBinSizes[numToBuild] >= highestResolution) {
+            numToBuild++;
+        }
+        if (numToBuild > 0 && bpBinSizes[numToBuild - 1] == highestResolution) {
+            return Arrays.copyOf(bpBinSizes, numToBuild);
+        }
+        int[] binSizes = Arrays.copyOf(bpBinSizes, numToBuild + 1);
+        binSizes[numToBuild] = highestResolution;
+        return binSizes;
+    }
+
     public static void writeOutMND(List<Block> blocks, int resolution, int xOrigin, int yOrigin,
-                                   BufferedWriter bwMND, String xChrom, String yChrom) throws IOException {
+                                   MNDWriter mndWriter, String xChrom, String yChrom) throws IOException {
+        mndWriter.setPair(xChrom, yChrom);
         for (Block block : blocks) {
             for (ContactRecord cr : block.getContactRecords()) {
-                processContactRecordForWriteOutMND(cr, resolution, xChrom, yChrom, xOrigin, yOrigin, bwMND);
+                processContactRecordForWriteOutMND(cr, resolution, xOrigin, yOrigin, mndWriter);
             }
         }
     }
 
     public static void writeOutMND(Iterator<ContactRecord> iterator, int resolution, int xOrigin, int yOrigin,
-                                   BufferedWriter bwMND, String xChrom, String yChrom) throws IOException {
+                                   MNDWriter mndWriter, String xChrom, String yChrom) throws IOException {
+        mndWriter.setPair(xChrom, yChrom);
         while (iterator.hasNext()) {
             ContactRecord cr = iterator.next();
-            processContactRecordForWriteOutMND(cr, resolution, xChrom, yChrom, xOrigin, yOrigin, bwMND);
+            processContactRecordForWriteOutMND(cr, resolution, xOrigin, yOrigin, mndWriter);
         }
     }
 
     private static void processContactRecordForWriteOutMND(ContactRecord cr, int resolution,
-                                                           String xChrom, String yChrom,
-                                                           int xOrigin, int yOrigin, BufferedWriter bwMND) throws IOException {
+                                                           int xOrigin, int yOrigin, MNDWriter mndWriter) throws IOException {
         if (cr.getCounts() > 0) {
             int gx = (cr.getBinX() * resolution) - xOrigin;
             int gy = (cr.getBinY() * resolution) - yOrigin;
-            bwMND.write(xChrom + " " + gx + " " + yChrom + " " + gy + " " + cr.getCounts());
-            bwMND.newLine();
-        }
-    }
-
-    public static void writeOutSubsampledMND(Iterator<ContactRecord> iterator, int resolution, int xOrigin, int yOrigin,
-                                             BufferedWriter bwMND, String xChrom, String yChrom, double ratio,
-                                             Random generator) throws IOException {
-        while (iterator.hasNext()) {
-            ContactRecord cr = iterator.next();
-            processContactRecordForWriteOutSubsampledMND(cr, resolution, xChrom, yChrom, xOrigin, yOrigin, bwMND,
-                    ratio, generator);
-        }
-    }
-
-    private static void processContactRecordForWriteOutSubsampledMND(ContactRecord cr, int resolution,
-                                                                     String xChrom, String yChrom,
-                                                                     int xOrigin, int yOrigin, BufferedWriter bwMND,
-                                                                     double ratio, Random generator) throws IOException {
-        if (cr.getCounts() > 0) {
-            int counts = getSubsampledNumberOfContacts(cr.getCounts(), ratio, generator);
-            if (counts > 0) {
-                int gx = (cr.getBinX() * resolution) - xOrigin;
-                int gy = (cr.getBinY() * resolution) - yOrigin;
-                bwMND.write(xChrom + " " + gx + " " + yChrom + " " + gy + " " + counts);
-                bwMND.newLine();
-            }
-        }
-    }
-
-    private static int getSubsampledNumberOfContacts(float counts, double ratio, Random generator) {
-        int newCounts = 0;
-        for (int z = 0; z < counts; z++) {
-            if (generator.nextFloat() < ratio) {
-                newCounts++;
-            }
+            mndWriter.write(gx, gy, cr.getCounts());
         }
-        return newCounts;
     }
 }
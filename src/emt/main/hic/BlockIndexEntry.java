@@ -0,0 +1,26 @@
+package emt.main.hic;
+
+public class BlockIndexEntry {
+
+    private final int number;
+    private final long position;
+    private final int size;
+
+    public BlockIndexEntry(int number, long position, int size) {
+        this.number = number;
+        this.position = position;
+        this.size = size;
+    }
+
+    public int getNumber() {
+        return number;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    public int getSize() {
+        return size;
+    }
+}
@@ -0,0 +1,120 @@
+package emt.main.hic;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Contact records of one decoded block, as parallel arrays of bins and raw counts
+ */
+public class BlockRecords {
+
+    private final int number;
+    private final int[] binX, binY;
+    private final float[] counts;
+    private int size = 0;
+
+    private BlockRecords(int number, int capacity) {
+        this.number = number;
+        binX = new int[capacity];
+        binY = new int[capacity];
+        counts = new float[capacity];
+    }
+
+    public int getNumber() {
+        return number;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getBinX(int i) {
+        return binX[i];
+    }
+
+    public int getBinY(int i) {
+        return binY[i];
+    }
+
+    public float getCounts(int i) {
+        return counts[i];
+    }
+
+    private void add(int x, int y, float count) throws IOException {
+        if (size == counts.length) {
+            throw new IOException("Block " + number + " holds more records than its header states");
+        }
+        binX[size] = x;
+        binY[size] = y;
+        counts[size] = count;
+        size++;
+    }
+
+    /**
+     * v8/v9 block: nRecords, binXOffset, binYOffset, count width flag, (v9) x/y width flags, then either
+     * a list of rows (type 1) or a dense rectangle (type 2)
+     *
+     * @param data uncompressed block
+     */
+    static BlockRecords decode(int number, byte[] data, int length, int version) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(data, 0, length).order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            int numRecords = in.getInt();
+            BlockRecords records = new BlockRecords(number, numRecords);
+            int binXOffset = in.getInt();
+            int binYOffset = in.getInt();
+            boolean useShortCounts = in.get() == 0;
+            boolean useShortX = true, useShortY = true;
+            if (version > 8) {
+                useShortX = in.get() == 0;
+                useShortY = in.get() == 0;
+            }
+            byte type = in.get();
+            if (type == 1) {
+                int numRows = getShortOrInt(in, useShortY);
+                for (int r = 0; r < numRows; r++) {
+                    int y = binYOffset + getShortOrInt(in, useShortY);
+                    int numColumns = getShortOrInt(in, useShortX);
+                    for (int c = 0; c < numColumns; c++) {
+                        int x = binXOffset + getShortOrInt(in, useShortX);
+                        records.add(x, y, useShortCounts ? in.getShort() : in.getFloat());
+                    }
+                }
+            } else if (type == 2) {
+                int numPoints = in.getInt();
+                int width = in.getShort();
+                for (int i = 0; i < numPoints; i++) {
+                    int row = i / width;
+                    int x = binXOffset + i - row * width;
+                    int y = binYOffset + row;
+                    if (useShortCounts) {
+                        short count = in.getShort();
+                        if (count != Short.MIN_VALUE) {
+                            records.add(x, y, count);
+                        }
+                    } else {
+                        float count = in.getFloat();
+                        if (!Float.isNaN(count)) {
+                            records.add(x, y, count);
+                        }
+                    }
+                }
+            } else {
+                throw new IOException("Unknown type " + type + " of block " + number);
+            }
+            if (records.size != numRecords) {
+                throw new IOException("Block " + number + " holds " + records.size + " records but its header states "
+                        + numRecords);
+            }
+            return records;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated block " + number, e);
+        }
+    }
+
+    private static int getShortOrInt(ByteBuffer in, boolean useShort) {
+        return useShort ? in.getShort() : in.getInt();
+    }
+}
@@ -0,0 +1,90 @@
+package emt.main.hic;
+
+/**
+ * Accumulates intra-chromosomal counts by distance for one resolution and derives the
+ * NONE expected vector and per-chromosome scale factors, following the smoothing used by pre.
+ */
+public class ExpectedValueCalculator {
+
+    private static final double SMOOTHING_THRESHOLD = 400;
+
+    private final int binSize;
+    private final long[] chromosomeLengths;
+    private final double[] actualDistances;
+    private final double[] chromosomeCounts;
+
+    public ExpectedValueCalculator(int binSize, long[] chromosomeLengths) {
+        this.binSize = binSize;
+        this.chromosomeLengths = chromosomeLengths;
+        long maxLength = 0;
+        for (int i = 1; i < chromosomeLengths.length; i++) {
+            maxLength = Math.max(maxLength, chromosomeLengths[i]);
+        }
+        actualDistances = new double[(int) (maxLength / binSize) + 1];
+        chromosomeCounts = new double[chromosomeLengths.length];
+    }
+
+    public int getBinSize() {
+        return binSize;
+    }
+
+    public synchronized void addDistances(int chrIndex, double[] distanceSums) {
+        for (int d = 0; d < distanceSums.length && d < actualDistances.length; d++) {
+            actualDistances[d] += distanceSums[d];
+            chromosomeCounts[chrIndex] += distanceSums[d];
+        }
+    }
+
+    private int getNumBins(int chrIndex) {
+        return (int) (chromosomeLengths[chrIndex] / binSize) + 1;
+    }
+
+    public double[] getDensities() {
+        int maxNumBins = actualDistances.length;
+        double[] possibleDistances = new double[maxNumBins];
+        for (int c = 1; c < chromosomeCounts.length; c++) {
+            if (chromosomeCounts[c] <= 0) continue;
+            int nBins = getNumBins(c);
+            for (int d = 0; d < nBins && d < maxNumBins; d++) {
+                possibleDistances[d] += nBins - d;
+            }
+        }
+
+        double[] densities = new double[maxNumBins];
+        for (int bin = 0; bin < maxNumBins; bin++) {
+            double numSum = actualDistances[bin];
+            double denSum = possibleDistances[bin];
+            int i = 1;
+            while (numSum < SMOOTHING_THRESHOLD && (bin - i >= 0 || bin + i < maxNumBins)) {
+                if (bin - i >= 0) {
+                    numSum += actualDistances[bin - i];
+                    denSum += possibleDistances[bin - i];
+                }
+                if (bin + i < maxNumBins) {
+                    numSum += actualDistances[bin + i];
+                    denSum += possibleDistances[bin + i];
+                }
+                i++;
+            }
+            densities[bin] = denSum > 0 ? numSum / denSum : 0;
+        }
+        return densities;
+    }
+
+    /**
+     * @return expected / observed intra counts for the chromosome, or 0 if it has no contacts
+     */
+    public double getScaleFactor(int chrIndex, double[] densities) {
+        if (chromosomeCounts[chrIndex] <= 0) return 0;
+        int nBins = getNumBins(chrIndex);
+        double expectedCount = 0;
+        for (int d = 0; d < nBins && d < densities.length; d++) {
+            expectedCount += (nBins - d) * densities[d];
+        }
+        return expectedCount / chromosomeCounts[chrIndex];
+    }
+
+    public boolean hasCounts(int chrIndex) {
+        return chromosomeCounts[chrIndex] > 0;
+    }
+}
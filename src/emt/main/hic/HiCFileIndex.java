@@ -0,0 +1,259 @@
+package emt.main.hic;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the header, master index and per-matrix block index of a local v8/v9 .hic file
+ * without decoding any of the blocks. Matrix metadata is loaded lazily and cached.
+ */
+public class HiCFileIndex {
+
+    private final String path;
+    private final int version;
+    private final String genomeId;
+    private final String[] chromosomeNames;
+    private final long[] chromosomeLengths;
+    private final Map<String, long[]> masterIndex = new LinkedHashMap<>();
+    private final Map<String, List<ZoomIndex>> matrixCache = new HashMap<>();
+
+    private HiCFileIndex(String path) throws IOException {
+        this.path = path;
+        try (LittleEndianInput in = openAt(0)) {
+            String magic = in.readString();
+            if (!magic.equals("HIC")) {
+                throw new IOException(path + " is not a .hic file");
+            }
+            version = in.readInt();
+            if (version < 8) {
+                throw new IOException("Unsupported .hic version " + version);
+            }
+            long masterIndexPosition = in.readLong();
+            genomeId = in.readString();
+            if (version > 8) {
+                in.readLong(); // normVectorIndexPosition
+                in.readLong(); // normVectorIndexLength
+            }
+            int numAttributes = in.readInt();
+            for (int i = 0; i < numAttributes; i++) {
+                in.readString();
+                in.readString();
+            }
+            int numChromosomes = in.readInt();
+            chromosomeNames = new String[numChromosomes];
+            chromosomeLengths = new long[numChromosomes];
+            for (int i = 0; i < numChromosomes; i++) {
+                chromosomeNames[i] = in.readString();
+                chromosomeLengths[i] = version > 8 ? in.readLong() : in.readInt();
+            }
+            readMasterIndex(masterIndexPosition);
+        }
+    }
+
+    /**
+     * @return the index of a local .hic file, or null if the file is remote or its index cannot be read
+     */
+    public static HiCFileIndex open(String path) {
+        if (path == null || path.contains("://") || !new File(path).isFile()) {
+            return null;
+        }
+        try {
+            return new HiCFileIndex(path);
+        } catch (IOException e) {
+            System.err.println("Unable to read block index of " + path + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private LittleEndianInput openAt(long position) throws IOException {
+        FileChannel channel = new RandomAccessFile(path, "r").getChannel();
+        channel.position(position);
+        return new LittleEndianInput(Channels.newInputStream(channel));
+    }
+
+    private void readMasterIndex(long position) throws IOException {
+        try (LittleEndianInput in = openAt(position)) {
+            if (version > 8) {
+                in.readLong(); // nBytes
+            } else {
+                in.readInt();
+            }
+            int numEntries = in.readInt();
+            for (int i = 0; i < numEntries; i++) {
+                String key = in.readString();
+                long filePosition = in.readLong();
+                int size = in.readInt();
+                masterIndex.put(key, new long[]{filePosition, size});
+            }
+        }
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public String getGenomeId() {
+        return genomeId;
+    }
+
+    public String[] getChromosomeNames() {
+        return chromosomeNames;
+    }
+
+    public long[] getChromosomeLengths() {
+        return chromosomeLengths;
+    }
+
+    /**
+     * @return number of records in a block, read from its start without decompressing the rest
+     */
+    public int readRecordCount(BlockIndexEntry entry) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path, "r")) {
+            byte[] head = new byte[4];
+            int length = Math.min(entry.getSize(), 1 << 10);
+            while (true) {
+                byte[] compressed = new byte[length];
+                file.seek(entry.getPosition());
+                file.readFully(compressed);
+                Inflater inflater = new Inflater();
+                try {
+                    inflater.setInput(compressed);
+                    int read = 0;
+                    while (read < head.length && !inflater.finished() && !inflater.needsInput()
+                            && !inflater.needsDictionary()) {
+                        read += inflater.inflate(head, read, head.length - read);
+                    }
+                    if (read == head.length) {
+                        return (head[0] & 0xFF) | (head[1] & 0xFF) << 8 | (head[2] & 0xFF) << 16 | (head[3] & 0xFF) << 24;
+                    }
+                } catch (DataFormatException e) {
+                    throw new IOException("Corrupt block " + entry.getNumber() + " in " + path, e);
+                } finally {
+                    inflater.end();
+                }
+                if (length == entry.getSize()) {
+                    throw new IOException("Truncated block " + entry.getNumber() + " in " + path);
+                }
+                length = entry.getSize();
+            }
+        }
+    }
+
+    /**
+     * @return the records of a block, decoded independently of any cache so it can be released once used;
+     * safe to call from several threads
+     */
+    public BlockRecords readBlock(BlockIndexEntry entry) throws IOException {
+        byte[] compressed = new byte[entry.getSize()];
+        try (RandomAccessFile file = new RandomAccessFile(path, "r")) {
+            file.seek(entry.getPosition());
+            file.readFully(compressed);
+        }
+        return decodeBlock(entry, compressed, 0);
+    }
+
+    /**
+     * @param compressed buffer holding the compressed block at the given offset, e.g. read along with its
+     *                   neighbours in a single sequential read
+     */
+    public BlockRecords decodeBlock(BlockIndexEntry entry, byte[] compressed, int offset) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed, offset, entry.getSize());
+            byte[] data = new byte[Math.max(1 << 10, entry.getSize() * 4)];
+            int length = 0;
+            while (!inflater.finished()) {
+                if (length == data.length) {
+                    data = Arrays.copyOf(data, data.length * 2);
+                }
+                int read = inflater.inflate(data, length, data.length - length);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated block " + entry.getNumber() + " in " + path);
+                }
+                length += read;
+            }
+            return BlockRecords.decode(entry.getNumber(), data, length, version);
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt block " + entry.getNumber() + " in " + path, e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    public static String getMatrixKey(int chr1Index, int chr2Index) {
+        return Math.min(chr1Index, chr2Index) + "_" + Math.max(chr1Index, chr2Index);
+    }
+
+    public Set<String> getMatrixKeys() {
+        return masterIndex.keySet();
+    }
+
+    /**
+     * @return the block layout for the given chromosome pair and base-pair resolution, or null if absent
+     */
+    public ZoomIndex getZoomIndex(int chr1Index, int chr2Index, int binSize) throws IOException {
+        for (ZoomIndex zoomIndex : getMatrix(getMatrixKey(chr1Index, chr2Index))) {
+            if (zoomIndex.getBinSize() == binSize && zoomIndex.getUnit().equals("BP")) {
+                return zoomIndex;
+            }
+        }
+        return null;
+    }
+
+    public List<ZoomIndex> getMatrix(String key) throws IOException {
+        synchronized (matrixCache) {
+            List<ZoomIndex> zooms = matrixCache.get(key);
+            if (zooms == null) {
+                zooms = readMatrix(key);
+                matrixCache.put(key, zooms);
+            }
+            return zooms;
+        }
+    }
+
+    private List<ZoomIndex> readMatrix(String key) throws IOException {
+        long[] entry = masterIndex.get(key);
+        if (entry == null) {
+            return Collections.emptyList();
+        }
+
+        List<ZoomIndex> zooms = new ArrayList<>();
+        try (LittleEndianInput in = openAt(entry[0])) {
+            int chr1Index = in.readInt();
+            int chr2Index = in.readInt();
+            int numResolutions = in.readInt();
+            for (int r = 0; r < numResolutions; r++) {
+                String unit = in.readString();
+                in.readInt(); // zoom index
+                float sumCounts = in.readFloat();
+                in.readFloat(); // occupiedCellCount
+                in.readFloat(); // stdDev
+                in.readFloat(); // percent95
+                int binSize = in.readInt();
+                int blockBinCount = in.readInt();
+                int blockColumnCount = in.readInt();
+                int numBlocks = in.readInt();
+                List<BlockIndexEntry> blocks = new ArrayList<>(numBlocks);
+                for (int b = 0; b < numBlocks; b++) {
+                    int blockNumber = in.readInt();
+                    long filePosition = in.readLong();
+                    int blockSize = in.readInt();
+                    blocks.add(new BlockIndexEntry(blockNumber, filePosition, blockSize));
+                }
+                zooms.add(new ZoomIndex(chr1Index, chr2Index, unit, binSize, sumCounts,
+                        blockBinCount, blockColumnCount, blocks));
+            }
+        }
+        return zooms;
+    }
+}
@@ -0,0 +1,285 @@
+package emt.main.hic;
+
+import emt.Globals;
+import emt.utils.common.LongFloatHashMap;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Writes a v9 .hic file directly, equivalent to running pre without normalizations (-n), and with -d when
+ * only intra-chromosomal matrices are requested. Matrices are added through {@link MatrixBuilder}s, possibly
+ * from several threads at once; the header, master index and NONE expected values are finalized on close.
+ * Unlike pre, the All-by-All matrix is not written.
+ */
+public class HiCFileWriter implements Closeable {
+
+    private static final int VERSION = 9;
+
+    private final File file;
+    private final FileChannel channel;
+    private final String[] chromosomeNames;
+    private final long[] chromosomeLengths;
+    private final Map<String, Integer> chromosomeIndices = new HashMap<>();
+    private final int[] binSizes;
+    private final ExpectedValueCalculator[] expectedValues;
+    private final Map<Long, long[]> masterIndex = new TreeMap<>();
+    private final Set<Long> claimedPairs = new HashSet<>();
+    private final ExecutorService pool;
+    private final int numThreads;
+    private final long memoryBudget;
+    private final boolean onlyDiag;
+    private final int masterIndexPositionOffset;
+    private final int normVectorIndexOffset;
+    private long position = 0;
+
+    /**
+     * @param chromosomeNames   chromosomes in index order, without All
+     * @param chromosomeLengths lengths of those chromosomes
+     * @param binSizes          base-pair resolutions, coarsest first
+     * @param numThreads        number of threads adding matrices and compressing blocks
+     */
+    public HiCFileWriter(String path, String genomeId, String[] chromosomeNames, long[] chromosomeLengths,
+                         int[] binSizes, int numThreads) throws IOException {
+        this(path, genomeId, chromosomeNames, chromosomeLengths, binSizes, numThreads,
+                Runtime.getRuntime().maxMemory() / (4L * Math.max(1, numThreads)), false);
+    }
+
+    /**
+     * @param memoryBudget bytes each matrix may hold in memory before spilling blocks to disk
+     * @param onlyDiag     drop the contacts of inter-chromosomal pairs, as pre -d does
+     */
+    public HiCFileWriter(String path, String genomeId, String[] chromosomeNames, long[] chromosomeLengths,
+                         int[] binSizes, int numThreads, long memoryBudget, boolean onlyDiag) throws IOException {
+        this.file = new File(path);
+        this.binSizes = binSizes;
+        this.numThreads = Math.max(1, numThreads);
+        this.onlyDiag = onlyDiag;
+        this.chromosomeNames = new String[chromosomeNames.length + 1];
+        this.chromosomeLengths = new long[chromosomeNames.length + 1];
+        long genomeLength = 0;
+        for (int i = 0; i < chromosomeNames.length; i++) {
+            this.chromosomeNames[i + 1] = chromosomeNames[i];
+            this.chromosomeLengths[i + 1] = chromosomeLengths[i];
+            chromosomeIndices.put(chromosomeNames[i], i + 1);
+            genomeLength += chromosomeLengths[i];
+        }
+        this.chromosomeNames[0] = "All";
+        this.chromosomeLengths[0] = genomeLength / 1000;
+
+        expectedValues = new ExpectedValueCalculator[binSizes.length];
+        for (int z = 0; z < binSizes.length; z++) {
+            expectedValues[z] = new ExpectedValueCalculator(binSizes[z], this.chromosomeLengths);
+        }
+        this.memoryBudget = memoryBudget;
+        pool = Executors.newFixedThreadPool(this.numThreads);
+
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+
+        LittleEndianOutput header = new LittleEndianOutput(4096);
+        header.writeString("HIC");
+        header.writeInt(VERSION);
+        masterIndexPositionOffset = header.size();
+        header.writeLong(0);
+        header.writeString(genomeId);
+        normVectorIndexOffset = header.size();
+        header.writeLong(0);
+        header.writeLong(0);
+        header.writeInt(1);
+        header.writeString("software");
+        header.writeString("Hi-C EMT " + Globals.versionNum);
+        header.writeInt(this.chromosomeNames.length);
+        for (int i = 0; i < this.chromosomeNames.length; i++) {
+            header.writeString(this.chromosomeNames[i]);
+            header.writeLong(this.chromosomeLengths[i]);
+        }
+        header.writeInt(binSizes.length);
+        for (int binSize : binSizes) {
+            header.writeInt(binSize);
+        }
+        header.writeInt(0); // no fragment resolutions
+        append(header.getBuffer(), header.size());
+    }
+
+    public MatrixBuilder openMatrixWriter() {
+        return new MatrixBuilder(this, memoryBudget);
+    }
+
+    int getNumThreads() {
+        return numThreads;
+    }
+
+    boolean isOnlyDiag() {
+        return onlyDiag;
+    }
+
+    File getTempFolder() {
+        return file.getAbsoluteFile().getParentFile();
+    }
+
+    int getChromosomeIndex(String name) throws IOException {
+        Integer index = chromosomeIndices.get(name);
+        if (index == null) {
+            throw new IOException("Chromosome " + name + " is not in the header of " + file.getPath());
+        }
+        return index;
+    }
+
+    long getChromosomeLength(int index) {
+        return chromosomeLengths[index];
+    }
+
+    synchronized void claimPair(int chr1Index, int chr2Index) throws IOException {
+        if (!claimedPairs.add(LongFloatHashMap.getKey(chr1Index, chr2Index))) {
+            throw new IOException("Contacts for " + chromosomeNames[chr1Index] + "-" + chromosomeNames[chr2Index]
+                    + " must be written contiguously");
+        }
+    }
+
+    List<ZoomBuilder> createZoomBuilders(int chr1Index, int chr2Index) {
+        List<ZoomBuilder> zooms = new ArrayList<>(binSizes.length);
+        for (int z = 0; z < binSizes.length; z++) {
+            zooms.add(new ZoomBuilder(z, binSizes[z], chromosomeLengths[chr1Index],
+                    chromosomeLengths[chr2Index], chr1Index == chr2Index));
+        }
+        return zooms;
+    }
+
+    <T> Future<T> submit(Callable<T> task) {
+        return pool.submit(task);
+    }
+
+    /**
+     * @return the file position at which the bytes were written
+     */
+    synchronized long append(byte[] bytes, int length) throws IOException {
+        long start = position;
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, length);
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        return start;
+    }
+
+    void writeMatrix(int chr1Index, int chr2Index, List<ZoomBuilder> zooms) throws IOException {
+        double sumCounts = 0;
+        for (ZoomBuilder zoom : zooms) {
+            sumCounts += zoom.getSumCounts();
+        }
+        if (sumCounts == 0) return;
+
+        List<List<BlockIndexEntry>> blocks = new ArrayList<>(zooms.size());
+        for (ZoomBuilder zoom : zooms) {
+            blocks.add(zoom.writeBlocks(this));
+            if (chr1Index == chr2Index) {
+                expectedValues[zoom.getZoomIndex()].addDistances(chr1Index, zoom.getDistanceSums());
+            }
+        }
+
+        LittleEndianOutput out = new LittleEndianOutput(1024);
+        out.writeInt(chr1Index);
+        out.writeInt(chr2Index);
+        out.writeInt(zooms.size());
+        for (int z = 0; z < zooms.size(); z++) {
+            ZoomBuilder zoom = zooms.get(z);
+            out.writeString("BP");
+            out.writeInt(zoom.getZoomIndex());
+            out.writeFloat((float) zoom.getSumCounts());
+            out.writeFloat(0); // occupiedCellCount
+            out.writeFloat(0); // stdDev
+            out.writeFloat(0); // percent95
+            out.writeInt(zoom.getBinSize());
+            out.writeInt(zoom.getBlockBinCount());
+            out.writeInt(zoom.getBlockColumnCount());
+            out.writeInt(blocks.get(z).size());
+            for (BlockIndexEntry entry : blocks.get(z)) {
+                out.writeInt(entry.getNumber());
+                out.writeLong(entry.getPosition());
+                out.writeInt(entry.getSize());
+            }
+        }
+        long matrixPosition = append(out.getBuffer(), out.size());
+        synchronized (masterIndex) {
+            masterIndex.put(LongFloatHashMap.getKey(chr1Index, chr2Index), new long[]{matrixPosition, out.size()});
+        }
+    }
+
+    /**
+     * Footer: master index, NONE expected values with per-chromosome scale factors,
+     * then empty normalized expected values and normalization vector index.
+     */
+    private void writeFooter() throws IOException {
+        LittleEndianOutput out = new LittleEndianOutput(1 << 16);
+        out.writeLong(0); // nBytes
+        out.writeInt(masterIndex.size());
+        for (Map.Entry<Long, long[]> entry : masterIndex.entrySet()) {
+            out.writeString(LongFloatHashMap.getFirst(entry.getKey()) + "_" + LongFloatHashMap.getSecond(entry.getKey()));
+            out.writeLong(entry.getValue()[0]);
+            out.writeInt((int) entry.getValue()[1]);
+        }
+
+        out.writeInt(expectedValues.length);
+        for (ExpectedValueCalculator calculator : expectedValues) {
+            double[] densities = calculator.getDensities();
+            out.writeString("BP");
+            out.writeInt(calculator.getBinSize());
+            out.writeLong(densities.length);
+            for (double density : densities) {
+                out.writeFloat((float) density);
+            }
+            List<Integer> chromosomes = new ArrayList<>();
+            for (int c = 1; c < chromosomeNames.length; c++) {
+                if (calculator.hasCounts(c)) {
+                    chromosomes.add(c);
+                }
+            }
+            out.writeInt(chromosomes.size());
+            for (int c : chromosomes) {
+                out.writeInt(c);
+                out.writeFloat((float) calculator.getScaleFactor(c, densities));
+            }
+        }
+
+        int normVectorIndexStart = out.size();
+        out.writeInt(0); // normalized expected values
+        out.writeInt(0); // normalization vector index
+        out.setLong(0, out.size() - 8);
+
+        long footerPosition = append(out.getBuffer(), out.size());
+
+        LittleEndianOutput patch = new LittleEndianOutput(16);
+        patch.writeLong(footerPosition);
+        writeAt(patch, masterIndexPositionOffset);
+        patch.reset();
+        patch.writeLong(footerPosition + normVectorIndexStart);
+        patch.writeLong(out.size() - normVectorIndexStart);
+        writeAt(patch, normVectorIndexOffset);
+    }
+
+    private void writeAt(LittleEndianOutput data, long offset) throws IOException {
+        ByteBuffer buffer = data.toByteBuffer();
+        while (buffer.hasRemaining()) {
+            offset += channel.write(buffer, offset);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            writeFooter();
+        } finally {
+            pool.shutdown();
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package emt.main.hic;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal little-endian reader for the primitive types used in the .hic header and index
+ */
+public class LittleEndianInput implements AutoCloseable {
+
+    private final DataInputStream in;
+    private final byte[] stringBuffer = new byte[1024];
+
+    public LittleEndianInput(InputStream stream) {
+        in = new DataInputStream(new BufferedInputStream(stream));
+    }
+
+    public int readInt() throws IOException {
+        return Integer.reverseBytes(in.readInt());
+    }
+
+    public long readLong() throws IOException {
+        return Long.reverseBytes(in.readLong());
+    }
+
+    public float readFloat() throws IOException {
+        return Float.intBitsToFloat(readInt());
+    }
+
+    public double readDouble() throws IOException {
+        return Double.longBitsToDouble(readLong());
+    }
+
+    public short readShort() throws IOException {
+        return Short.reverseBytes(in.readShort());
+    }
+
+    public byte readByte() throws IOException {
+        return in.readByte();
+    }
+
+    public void readFully(byte[] buffer) throws IOException {
+        in.readFully(buffer);
+    }
+
+    /**
+     * @return null-terminated string as written by Juicer Tools
+     */
+    public String readString() throws IOException {
+        byte[] buffer = stringBuffer;
+        int length = 0;
+        byte b;
+        while ((b = in.readByte()) != 0) {
+            if (length == buffer.length) {
+                byte[] larger = new byte[buffer.length * 2];
+                System.arraycopy(buffer, 0, larger, 0, length);
+                buffer = larger;
+            }
+            buffer[length++] = b;
+        }
+        return new String(buffer, 0, length, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
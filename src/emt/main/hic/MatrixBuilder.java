@@ -0,0 +1,108 @@
+package emt.main.hic;
+
+import emt.main.mnd.MNDWriter;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Receives contacts in MND order and bins them into every resolution of a {@link HiCFileWriter}.
+ * Contacts for a chromosome pair must arrive contiguously; the pair's matrix is written as soon as
+ * the next pair is selected or the builder is closed. Contacts outside of the chromosomes (e.g. from blocks
+ * that overlap the end of a stitched region) are dropped, as are inter-chromosomal contacts when the writer only
+ * holds intra-chromosomal matrices. One builder is used per thread.
+ */
+public class MatrixBuilder implements MNDWriter {
+
+    private static final int MEMORY_CHECK_INTERVAL = 1 << 12;
+
+    private final HiCFileWriter writer;
+    private final long memoryBudget;
+    private int chr1Index = -1;
+    private int chr2Index = -1;
+    private boolean swapXY = false;
+    private boolean skipPair = false;
+    private long length1, length2;
+    private List<ZoomBuilder> zooms = null;
+    private int recordsSinceCheck = 0;
+
+    MatrixBuilder(HiCFileWriter writer, long memoryBudget) {
+        this.writer = writer;
+        this.memoryBudget = memoryBudget;
+    }
+
+    @Override
+    public void setPair(String xChrom, String yChrom) throws IOException {
+        int xIndex = writer.getChromosomeIndex(xChrom);
+        int yIndex = writer.getChromosomeIndex(yChrom);
+        int c1 = Math.min(xIndex, yIndex);
+        int c2 = Math.max(xIndex, yIndex);
+        swapXY = xIndex > yIndex;
+        if ((zooms != null || skipPair) && c1 == chr1Index && c2 == chr2Index) {
+            return;
+        }
+
+        finishPair();
+        chr1Index = c1;
+        chr2Index = c2;
+        skipPair = c1 != c2 && writer.isOnlyDiag();
+        if (skipPair) return;
+        writer.claimPair(c1, c2);
+        length1 = writer.getChromosomeLength(c1);
+        length2 = writer.getChromosomeLength(c2);
+        zooms = writer.createZoomBuilders(c1, c2);
+    }
+
+    @Override
+    public void write(int gx, int gy, float counts) throws IOException {
+        if (skipPair) return;
+        if (zooms == null) {
+            throw new IOException("No chromosome pair selected");
+        }
+        if (!(counts > 0) || gx < 0 || gy < 0) return;
+
+        int x = gx, y = gy;
+        if (swapXY || (chr1Index == chr2Index && gx > gy)) {
+            x = gy;
+            y = gx;
+        }
+        if (x > length1 || y > length2) return;
+        for (ZoomBuilder zoom : zooms) {
+            zoom.add(x / zoom.getBinSize(), y / zoom.getBinSize(), counts);
+        }
+
+        if (++recordsSinceCheck >= MEMORY_CHECK_INTERVAL) {
+            recordsSinceCheck = 0;
+            spillIfNeedBe();
+        }
+    }
+
+    @Override
+    public void write(int gx, int gy, int counts) throws IOException {
+        write(gx, gy, (float) counts);
+    }
+
+    private void spillIfNeedBe() throws IOException {
+        long footprint = 0;
+        for (ZoomBuilder zoom : zooms) {
+            footprint += zoom.getMemoryFootprint();
+        }
+        if (footprint > memoryBudget) {
+            for (ZoomBuilder zoom : zooms) {
+                zoom.spill(writer.getTempFolder());
+            }
+        }
+    }
+
+    private void finishPair() throws IOException {
+        if (zooms != null) {
+            writer.writeMatrix(chr1Index, chr2Index, zooms);
+            zooms = null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        finishPair();
+    }
+}
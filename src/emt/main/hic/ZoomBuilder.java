@@ -0,0 +1,317 @@
+package emt.main.hic;
+
+import emt.utils.common.LongFloatHashMap;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+
+/**
+ * Bins the contacts of one chromosome pair at one resolution into v9 blocks.
+ * Pixels are aggregated in memory per block and spilled to a temporary file as sorted runs
+ * when the owning {@link MatrixBuilder} exceeds its memory budget.
+ */
+class ZoomBuilder {
+
+    private static final int BLOCK_COLUMN_COUNT = 1000;
+    private static final int SPILL_RECORD_BYTES = 12;
+    private static final double LOG_2 = Math.log(2);
+    // map entry, boxed key, map object and array headers of each in-memory block
+    private static final int BLOCK_OVERHEAD = 128;
+
+    private final int zoomIndex;
+    private final int binSize;
+    private final boolean isIntra;
+    private final int blockBinCount;
+    private final int blockColumnCount;
+    private final long maxBinX, maxBinY;
+    private final double[] distanceSums;
+    private final Map<Integer, LongFloatHashMap> blocks = new HashMap<>();
+    private final Map<Integer, List<long[]>> spilledRuns = new HashMap<>();
+    private int lastBlockNumber = -1;
+    private LongFloatHashMap lastBlock = null;
+    private double sumCounts = 0;
+    private long memoryFootprint = 0;
+    private File spillFile = null;
+    private FileChannel spillChannel = null;
+    private long spillPosition = 0;
+
+    ZoomBuilder(int zoomIndex, int binSize, long length1, long length2, boolean isIntra) {
+        this.zoomIndex = zoomIndex;
+        this.binSize = binSize;
+        this.isIntra = isIntra;
+        int nBins = (int) (Math.max(length1, length2) / binSize) + 1;
+        blockBinCount = nBins / BLOCK_COLUMN_COUNT + 1;
+        blockColumnCount = nBins / blockBinCount + 1;
+        distanceSums = isIntra ? new double[nBins] : null;
+        maxBinX = length1 / binSize;
+        maxBinY = length2 / binSize;
+    }
+
+    int getBinSize() {
+        return binSize;
+    }
+
+    int getZoomIndex() {
+        return zoomIndex;
+    }
+
+    int getBlockBinCount() {
+        return blockBinCount;
+    }
+
+    int getBlockColumnCount() {
+        return blockColumnCount;
+    }
+
+    double getSumCounts() {
+        return sumCounts;
+    }
+
+    double[] getDistanceSums() {
+        return distanceSums;
+    }
+
+    /**
+     * Inter-chromosomal blocks are laid out on a grid; intra-chromosomal blocks (v9) by position along
+     * the diagonal and log2 depth away from it.
+     */
+    int getBlockNumber(int binX, int binY) {
+        if (isIntra) {
+            int positionAlongDiagonal = (binX + binY) / 2 / blockBinCount;
+            int depth = (int) (Math.log(1 + Math.abs(binX - binY) / Math.sqrt(2) / blockBinCount) / LOG_2);
+            return depth * blockColumnCount + positionAlongDiagonal;
+        }
+        return (binY / blockBinCount) * blockColumnCount + (binX / blockBinCount);
+    }
+
+    /**
+     * Ignores bins outside of the chromosomes, whose block numbers would collide with those of other blocks
+     */
+    void add(int binX, int binY, float counts) {
+        if (binX < 0 || binX > maxBinX || binY < 0 || binY > maxBinY) return;
+        int blockNumber = getBlockNumber(binX, binY);
+        if (blockNumber != lastBlockNumber) {
+            lastBlock = blocks.get(blockNumber);
+            if (lastBlock == null) {
+                lastBlock = new LongFloatHashMap(8);
+                blocks.put(blockNumber, lastBlock);
+                memoryFootprint += BLOCK_OVERHEAD + lastBlock.getMemoryFootprint();
+            }
+            lastBlockNumber = blockNumber;
+        }
+        // row-major key so sorted keys follow the block's row/column layout
+        long previousFootprint = lastBlock.getMemoryFootprint();
+        if (lastBlock.addTo(LongFloatHashMap.getKey(binY, binX), counts)) {
+            memoryFootprint += lastBlock.getMemoryFootprint() - previousFootprint;
+        }
+        sumCounts += counts;
+        if (isIntra) {
+            distanceSums[Math.abs(binY - binX)] += counts;
+        }
+    }
+
+    long getMemoryFootprint() {
+        return memoryFootprint;
+    }
+
+    void spill(File tempFolder) throws IOException {
+        if (blocks.isEmpty()) return;
+        if (spillChannel == null) {
+            spillFile = File.createTempFile("emt_zoom_" + binSize + "_", ".tmp", tempFolder);
+            spillFile.deleteOnExit();
+            spillChannel = FileChannel.open(spillFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        List<Integer> numbers = new ArrayList<>(blocks.keySet());
+        Collections.sort(numbers);
+        LittleEndianOutput out = new LittleEndianOutput(1 << 20);
+        for (int number : numbers) {
+            LongFloatHashMap block = blocks.get(number);
+            long[] keys = block.getSortedKeys();
+            spilledRuns.computeIfAbsent(number, k -> new ArrayList<>())
+                    .add(new long[]{spillPosition + out.size(), keys.length});
+            for (long key : keys) {
+                out.writeLong(key);
+                out.writeFloat(block.get(key));
+            }
+            if (out.size() > (1 << 24)) {
+                spillPosition += writeFully(out.toByteBuffer(), spillPosition);
+                out.reset();
+            }
+        }
+        spillPosition += writeFully(out.toByteBuffer(), spillPosition);
+        blocks.clear();
+        memoryFootprint = 0;
+        lastBlockNumber = -1;
+        lastBlock = null;
+    }
+
+    private int writeFully(ByteBuffer buffer, long position) throws IOException {
+        int length = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            position += spillChannel.write(buffer, position);
+        }
+        return length;
+    }
+
+    /**
+     * Compresses all blocks on the writer's pool and appends them to the file in block order
+     *
+     * @return index entries for the written blocks
+     */
+    List<BlockIndexEntry> writeBlocks(HiCFileWriter writer) throws IOException {
+        Set<Integer> allNumbers = new TreeSet<>(blocks.keySet());
+        allNumbers.addAll(spilledRuns.keySet());
+        List<Integer> numbers = new ArrayList<>(allNumbers);
+
+        List<BlockIndexEntry> entries = new ArrayList<>(numbers.size());
+        int batchSize = Math.max(64, 16 * writer.getNumThreads());
+        try {
+            for (int start = 0; start < numbers.size(); start += batchSize) {
+                int end = Math.min(numbers.size(), start + batchSize);
+                List<Future<byte[]>> compressed = new ArrayList<>(end - start);
+                for (int i = start; i < end; i++) {
+                    final int number = numbers.get(i);
+                    compressed.add(writer.submit(() -> compressBlock(number)));
+                }
+                for (int i = start; i < end; i++) {
+                    byte[] data = compressed.get(i - start).get();
+                    long position = writer.append(data, data.length);
+                    entries.add(new BlockIndexEntry(numbers.get(i), position, data.length));
+                }
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException("Unable to write blocks at resolution " + binSize, e);
+        } finally {
+            deleteSpillFile();
+        }
+        return entries;
+    }
+
+    private LongFloatHashMap getMergedBlock(int number) throws IOException {
+        LongFloatHashMap inMemory = blocks.get(number);
+        List<long[]> runs = spilledRuns.get(number);
+        if (runs == null) {
+            return inMemory;
+        }
+
+        long numRecords = inMemory == null ? 0 : inMemory.size();
+        for (long[] run : runs) {
+            numRecords += run[1];
+        }
+        LongFloatHashMap merged = new LongFloatHashMap((int) Math.min(numRecords, Integer.MAX_VALUE / 2));
+        if (inMemory != null) {
+            for (long key : inMemory.getSortedKeys()) {
+                merged.addTo(key, inMemory.get(key));
+            }
+        }
+        for (long[] run : runs) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) run[1] * SPILL_RECORD_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            long position = run[0];
+            while (buffer.hasRemaining()) {
+                int read = spillChannel.read(buffer, position);
+                if (read < 0) throw new IOException("Truncated spill file " + spillFile);
+                position += read;
+            }
+            buffer.flip();
+            for (long r = 0; r < run[1]; r++) {
+                merged.addTo(buffer.getLong(), buffer.getFloat());
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * v9 block: nRecords, binXOffset, binYOffset, count/x/y width flags, then a list of rows (type 1)
+     */
+    private byte[] compressBlock(int number) throws IOException {
+        LongFloatHashMap pixels = getMergedBlock(number);
+        long[] keys = pixels.getSortedKeys();
+
+        int binXOffset = Integer.MAX_VALUE, maxX = 0;
+        int numRows = 0;
+        int lastY = -1;
+        for (long key : keys) {
+            int x = LongFloatHashMap.getSecond(key);
+            int y = LongFloatHashMap.getFirst(key);
+            binXOffset = Math.min(binXOffset, x);
+            maxX = Math.max(maxX, x);
+            if (y != lastY) {
+                numRows++;
+                lastY = y;
+            }
+        }
+        int binYOffset = LongFloatHashMap.getFirst(keys[0]);
+        int maxY = LongFloatHashMap.getFirst(keys[keys.length - 1]);
+        boolean useShortX = maxX - binXOffset < Short.MAX_VALUE;
+        boolean useShortY = maxY - binYOffset < Short.MAX_VALUE;
+
+        LittleEndianOutput out = new LittleEndianOutput(32 + keys.length * 8);
+        out.writeInt(keys.length);
+        out.writeInt(binXOffset);
+        out.writeInt(binYOffset);
+        out.writeByte(1); // float counts
+        out.writeByte(useShortX ? 0 : 1);
+        out.writeByte(useShortY ? 0 : 1);
+        out.writeByte(1); // list of rows
+        writeShortOrInt(out, numRows, useShortY);
+
+        int i = 0;
+        while (i < keys.length) {
+            int y = LongFloatHashMap.getFirst(keys[i]);
+            int rowEnd = i;
+            while (rowEnd < keys.length && LongFloatHashMap.getFirst(keys[rowEnd]) == y) {
+                rowEnd++;
+            }
+            writeShortOrInt(out, y - binYOffset, useShortY);
+            writeShortOrInt(out, rowEnd - i, useShortX);
+            for (; i < rowEnd; i++) {
+                writeShortOrInt(out, LongFloatHashMap.getSecond(keys[i]) - binXOffset, useShortX);
+                out.writeFloat(pixels.get(keys[i]));
+            }
+        }
+        return compress(out);
+    }
+
+    private static void writeShortOrInt(LittleEndianOutput out, int value, boolean useShort) {
+        if (useShort) {
+            out.writeShort(value);
+        } else {
+            out.writeInt(value);
+        }
+    }
+
+    private static byte[] compress(LittleEndianOutput data) {
+        Deflater deflater = new Deflater();
+        deflater.setInput(data.getBuffer(), 0, data.size());
+        deflater.finish();
+        LittleEndianOutput out = new LittleEndianOutput(data.size() / 2 + 64);
+        byte[] chunk = new byte[1 << 16];
+        while (!deflater.finished()) {
+            int length = deflater.deflate(chunk);
+            out.write(chunk, 0, length);
+        }
+        deflater.end();
+        return Arrays.copyOf(out.getBuffer(), out.size());
+    }
+
+    private void deleteSpillFile() throws IOException {
+        if (spillChannel != null) {
+            spillChannel.close();
+            spillChannel = null;
+            if (!spillFile.delete()) {
+                System.err.println("Unable to delete " + spillFile.getPath());
+            }
+        }
+        blocks.clear();
+        spilledRuns.clear();
+    }
+}
@@ -0,0 +1,123 @@
+package emt.main.hic;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Block layout of one chromosome pair at one resolution, as stored in the matrix metadata of a .hic file
+ */
+public class ZoomIndex {
+
+    private final int chr1Index, chr2Index;
+    private final String unit;
+    private final int binSize;
+    private final float sumCounts;
+    private final int blockBinCount;
+    private final int blockColumnCount;
+    private final List<BlockIndexEntry> blocks;
+
+    public ZoomIndex(int chr1Index, int chr2Index, String unit, int binSize, float sumCounts,
+                     int blockBinCount, int blockColumnCount, List<BlockIndexEntry> blocks) {
+        this.chr1Index = chr1Index;
+        this.chr2Index = chr2Index;
+        this.unit = unit;
+        this.binSize = binSize;
+        this.sumCounts = sumCounts;
+        this.blockBinCount = blockBinCount;
+        this.blockColumnCount = blockColumnCount;
+        this.blocks = blocks;
+    }
+
+    public int getChr1Index() {
+        return chr1Index;
+    }
+
+    public int getChr2Index() {
+        return chr2Index;
+    }
+
+    public String getUnit() {
+        return unit;
+    }
+
+    public int getBinSize() {
+        return binSize;
+    }
+
+    public float getSumCounts() {
+        return sumCounts;
+    }
+
+    public int getBlockBinCount() {
+        return blockBinCount;
+    }
+
+    public int getBlockColumnCount() {
+        return blockColumnCount;
+    }
+
+    public List<BlockIndexEntry> getBlocks() {
+        return blocks;
+    }
+
+    public long getCompressedSize() {
+        long total = 0;
+        for (BlockIndexEntry entry : blocks) {
+            total += entry.getSize();
+        }
+        return total;
+    }
+
+    /**
+     * @param version .hic version; from v9, intra-chromosomal blocks are laid out along the diagonal
+     * @return the stored blocks that may hold contacts in the given rectangle of bins (inclusive)
+     */
+    public List<BlockIndexEntry> getBlocks(long x0, long x1, long y0, long y1, int version) {
+        Set<Integer> numbers = new HashSet<>();
+        if (version > 8 && chr1Index == chr2Index) {
+            int firstPosition = (int) ((x0 + y0) / 2 / blockBinCount);
+            int lastPosition = (int) ((x1 + y1) / 2 / blockBinCount);
+            long minDistance = x1 < y0 ? y0 - x1 : (y1 < x0 ? x0 - y1 : 0);
+            long maxDistance = Math.max(Math.abs(x1 - y0), Math.abs(y1 - x0));
+            for (int depth = getDepth(minDistance); depth <= getDepth(maxDistance); depth++) {
+                for (int position = firstPosition; position <= lastPosition; position++) {
+                    numbers.add(depth * blockColumnCount + position);
+                }
+            }
+        } else {
+            for (long row = y0 / blockBinCount; row <= y1 / blockBinCount; row++) {
+                for (long column = x0 / blockBinCount; column <= x1 / blockBinCount; column++) {
+                    numbers.add((int) (row * blockColumnCount + column));
+                }
+            }
+        }
+
+        List<BlockIndexEntry> selected = new ArrayList<>();
+        for (BlockIndexEntry entry : blocks) {
+            if (numbers.contains(entry.getNumber())) {
+                selected.add(entry);
+            }
+        }
+        return selected;
+    }
+
+    private int getDepth(long distance) {
+        return (int) (Math.log(1 + distance / Math.sqrt(2) / blockBinCount) / Math.log(2));
+    }
+
+    /**
+     * @return compressed size of the given blocks
+     */
+    public long getCompressedSize(Collection<Integer> blockNumbers) {
+        long total = 0;
+        for (BlockIndexEntry entry : blocks) {
+            if (blockNumbers.contains(entry.getNumber())) {
+                total += entry.getSize();
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,97 @@
+package emt.main.mnd;
+
+import emt.utils.io.BGZFOutputChannel;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Text MND compressed as BGZF, readable by pre or zcat, with an {@link MNDIndex} written next to it.
+ * A new index entry starts whenever the chromosome pair changes or a record starts in a new BGZF block.
+ */
+public class BGZFMNDWriter implements MNDWriter {
+
+    private final BGZFOutputChannel bgzf;
+    private final TextMNDWriter textWriter;
+    private final MNDIndex index;
+    private final String indexPath;
+    private final Map<String, Integer> dictionary = new HashMap<>();
+    private int chr1 = -1, chr2 = -1;
+    private long chunkStart = -1, chunkBlock = -1;
+    private int minX, maxX, minY, maxY;
+
+    /**
+     * @param writeEOF false when writing a shard that will be concatenated with others
+     */
+    public BGZFMNDWriter(WritableByteChannel channel, String indexPath, String[] chromosomeNames, boolean writeEOF) {
+        bgzf = new BGZFOutputChannel(channel, writeEOF);
+        textWriter = new TextMNDWriter(bgzf);
+        index = new MNDIndex(chromosomeNames);
+        this.indexPath = indexPath;
+        for (int i = 0; i < chromosomeNames.length; i++) {
+            dictionary.put(chromosomeNames[i], i);
+        }
+    }
+
+    @Override
+    public void setPair(String xChrom, String yChrom) throws IOException {
+        finishChunk();
+        chr1 = lookup(xChrom);
+        chr2 = lookup(yChrom);
+        textWriter.setPair(xChrom, yChrom);
+    }
+
+    private int lookup(String chrom) throws IOException {
+        Integer id = dictionary.get(chrom);
+        if (id == null) {
+            throw new IOException("Chromosome " + chrom + " is not in the MND dictionary");
+        }
+        return id;
+    }
+
+    private void startRecord(int gx, int gy) {
+        long position = textWriter.getPosition();
+        if (position / BGZFOutputChannel.BLOCK_SIZE != chunkBlock) {
+            finishChunk();
+            chunkStart = position;
+            chunkBlock = position / BGZFOutputChannel.BLOCK_SIZE;
+            minX = maxX = gx;
+            minY = maxY = gy;
+        } else {
+            minX = Math.min(minX, gx);
+            maxX = Math.max(maxX, gx);
+            minY = Math.min(minY, gy);
+            maxY = Math.max(maxY, gy);
+        }
+    }
+
+    private void finishChunk() {
+        if (chunkStart >= 0) {
+            index.add(chr1, chr2, minX, maxX, minY, maxY, chunkStart, textWriter.getPosition());
+        }
+        chunkStart = -1;
+        chunkBlock = -1;
+    }
+
+    @Override
+    public void write(int gx, int gy, float counts) throws IOException {
+        startRecord(gx, gy);
+        textWriter.write(gx, gy, counts);
+    }
+
+    @Override
+    public void write(int gx, int gy, int counts) throws IOException {
+        startRecord(gx, gy);
+        textWriter.write(gx, gy, counts);
+    }
+
+    @Override
+    public void close() throws IOException {
+        finishChunk();
+        textWriter.close();
+        index.mapOffsets(bgzf::getVirtualOffset);
+        index.write(indexPath);
+    }
+}
@@ -0,0 +1,169 @@
+package emt.main.mnd;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+
+/**
+ * Streams the records of a binary MND (see {@link BinaryMNDWriter}) without allocating per record.
+ */
+public class BinaryMNDReader implements Closeable {
+
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 22).order(ByteOrder.LITTLE_ENDIAN);
+    private final String[] chromosomeNames;
+    private final boolean isSorted;
+    private int chr1, chr2, countType;
+    private int remainingInChunk = 0;
+    private int chunkEnd;
+    private int gx, gy, intCounts;
+    private float counts;
+
+    public BinaryMNDReader(String path) throws IOException {
+        this(FileChannel.open(Paths.get(path)));
+    }
+
+    public BinaryMNDReader(ReadableByteChannel channel) throws IOException {
+        this.channel = channel;
+        buffer.flip();
+        require(12);
+        if (buffer.getInt() != BinaryMNDWriter.MAGIC) {
+            throw new IOException("Not a binary MND file");
+        }
+        int version = buffer.getInt();
+        if (version != BinaryMNDWriter.VERSION) {
+            throw new IOException("Unsupported binary MND version " + version);
+        }
+        require(8);
+        isSorted = (buffer.getInt() & BinaryMNDWriter.SORTED) != 0;
+        chromosomeNames = new String[buffer.getInt()];
+        for (int i = 0; i < chromosomeNames.length; i++) {
+            require(4);
+            byte[] name = new byte[buffer.getInt()];
+            require(name.length);
+            buffer.get(name);
+            chromosomeNames[i] = new String(name, StandardCharsets.UTF_8);
+        }
+    }
+
+    private boolean fill(int numBytes) throws IOException {
+        if (buffer.remaining() >= numBytes) return true;
+        buffer.compact();
+        while (buffer.position() < numBytes) {
+            if (channel.read(buffer) < 0) break;
+        }
+        buffer.flip();
+        return buffer.remaining() >= numBytes;
+    }
+
+    private void require(int numBytes) throws IOException {
+        if (!fill(numBytes)) {
+            throw new EOFException("Truncated binary MND file");
+        }
+    }
+
+    /**
+     * Advances to the next record
+     *
+     * @return false at the end of the file
+     */
+    public boolean next() throws IOException {
+        while (remainingInChunk == 0) {
+            if (!fill(BinaryMNDWriter.CHUNK_HEADER_BYTES)) {
+                if (buffer.hasRemaining()) {
+                    throw new EOFException("Truncated binary MND file");
+                }
+                return false;
+            }
+            chr1 = buffer.getInt();
+            chr2 = buffer.getInt();
+            remainingInChunk = buffer.getInt();
+            countType = buffer.getInt();
+            // the whole chunk is buffered, so its records are decoded without further checks
+            int numBytes = buffer.getInt();
+            if (numBytes < 0 || numBytes > remainingInChunk * BinaryMNDWriter.MAX_RECORD_BYTES) {
+                throw new IOException("Corrupt binary MND chunk of " + numBytes + " bytes");
+            }
+            require(numBytes);
+            chunkEnd = buffer.position() + numBytes;
+            gx = 0;
+            gy = 0;
+        }
+        gx += getVarint();
+        gy += getVarint();
+        if (countType == BinaryMNDWriter.INTEGER_COUNTS) {
+            intCounts = getVarint();
+            counts = intCounts;
+        } else {
+            counts = buffer.getFloat();
+        }
+        remainingInChunk--;
+        if (remainingInChunk == 0 && buffer.position() != chunkEnd) {
+            throw new IOException("Corrupt binary MND chunk");
+        }
+        return true;
+    }
+
+    private int getVarint() throws IOException {
+        int zigzag = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (buffer.position() == chunkEnd) break;
+            byte b = buffer.get();
+            zigzag |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return (zigzag >>> 1) ^ -(zigzag & 1);
+            }
+        }
+        throw new IOException("Corrupt binary MND chunk");
+    }
+
+    /**
+     * @return whether the header declares the records of each pair sorted by x, then y
+     */
+    public boolean isSorted() {
+        return isSorted;
+    }
+
+    public String[] getChromosomeNames() {
+        return chromosomeNames;
+    }
+
+    public int getChr1() {
+        return chr1;
+    }
+
+    public int getChr2() {
+        return chr2;
+    }
+
+    public int getGx() {
+        return gx;
+    }
+
+    public int getGy() {
+        return gy;
+    }
+
+    public float getCounts() {
+        return counts;
+    }
+
+    public boolean hasIntegerCounts() {
+        return countType == BinaryMNDWriter.INTEGER_COUNTS;
+    }
+
+    public int getIntegerCounts() {
+        return intCounts;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
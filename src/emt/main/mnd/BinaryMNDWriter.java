@@ -0,0 +1,155 @@
+package emt.main.mnd;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compact binary MND. All values are little-endian.
+ * <p>
+ * Header: int magic ("EMND"), int version, int flags ({@link #SORTED} if the records of each pair are sorted
+ * by x, then y), int numChromosomes, then for each chromosome an int byte length followed by its UTF-8 name.
+ * The position in this dictionary is the chromosome id.
+ * <p>
+ * Body: a sequence of chunks, each made of a 20 byte header (int chr1 id, int chr2 id, int numRecords,
+ * int countType, int numBytes of the records) followed by numRecords records: dx and dy as zigzag varints,
+ * then the count as a zigzag varint for integer counts or a 4 byte float. Positions are delta-encoded from the
+ * previous record in the chunk (the first one from 0), so the nearby positions of a pair take one to three bytes
+ * each; a record takes at most {@link #MAX_RECORD_BYTES}. A chunk ends when the pair or count type changes, or
+ * after {@link #RECORDS_PER_CHUNK} records. Shards written without a header can be appended after one.
+ */
+public class BinaryMNDWriter implements MNDWriter {
+
+    public static final int MAGIC = 0x444E4D45;
+    public static final int VERSION = 1;
+    public static final int SORTED = 1;
+    public static final int CHUNK_HEADER_BYTES = 20;
+    public static final int MAX_RECORD_BYTES = 15;
+    public static final int RECORDS_PER_CHUNK = 4096;
+    public static final int INTEGER_COUNTS = 0;
+    public static final int FLOAT_COUNTS = 1;
+
+    private final WritableByteChannel channel;
+    private final Map<String, Integer> dictionary = new HashMap<>();
+    private final ByteBuffer buffer = ByteBuffer.allocate(CHUNK_HEADER_BYTES + MAX_RECORD_BYTES * RECORDS_PER_CHUNK)
+            .order(ByteOrder.LITTLE_ENDIAN);
+    private int chr1 = -1, chr2 = -1;
+    private int countType = -1;
+    private int numRecords = 0;
+    private int lastX, lastY;
+
+    public BinaryMNDWriter(WritableByteChannel channel, String[] chromosomeNames, boolean writeHeader,
+                           boolean isSorted) throws IOException {
+        this.channel = channel;
+        for (int i = 0; i < chromosomeNames.length; i++) {
+            dictionary.put(chromosomeNames[i], i);
+        }
+        if (writeHeader) {
+            writeHeader(channel, chromosomeNames, isSorted);
+        }
+    }
+
+    public static void writeHeader(WritableByteChannel channel, String[] chromosomeNames,
+                                   boolean isSorted) throws IOException {
+        byte[][] names = new byte[chromosomeNames.length][];
+        int size = 16;
+        for (int i = 0; i < names.length; i++) {
+            names[i] = chromosomeNames[i].getBytes(StandardCharsets.UTF_8);
+            size += 4 + names[i].length;
+        }
+        ByteBuffer header = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(isSorted ? SORTED : 0).putInt(names.length);
+        for (byte[] name : names) {
+            header.putInt(name.length).put(name);
+        }
+        header.flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+    }
+
+    @Override
+    public void setPair(String xChrom, String yChrom) throws IOException {
+        flushChunk();
+        chr1 = lookup(xChrom);
+        chr2 = lookup(yChrom);
+    }
+
+    private int lookup(String chrom) throws IOException {
+        Integer id = dictionary.get(chrom);
+        if (id == null) {
+            throw new IOException("Chromosome " + chrom + " is not in the MND dictionary");
+        }
+        return id;
+    }
+
+    @Override
+    public void write(int gx, int gy, float counts) throws IOException {
+        prepareRecord(FLOAT_COUNTS, gx, gy);
+        buffer.putFloat(counts);
+        finishRecord(gx, gy);
+    }
+
+    @Override
+    public void write(int gx, int gy, int counts) throws IOException {
+        prepareRecord(INTEGER_COUNTS, gx, gy);
+        putVarint(counts);
+        finishRecord(gx, gy);
+    }
+
+    private void prepareRecord(int type, int gx, int gy) throws IOException {
+        if (type != countType) {
+            flushChunk();
+            countType = type;
+        }
+        if (numRecords == 0) {
+            buffer.position(CHUNK_HEADER_BYTES);
+            lastX = 0;
+            lastY = 0;
+        }
+        putVarint(gx - lastX);
+        putVarint(gy - lastY);
+    }
+
+    /**
+     * Zigzag encoding maps small values of either sign to small unsigned ones, written 7 bits per byte
+     */
+    private void putVarint(int value) {
+        int zigzag = (value << 1) ^ (value >> 31);
+        while ((zigzag & ~0x7F) != 0) {
+            buffer.put((byte) ((zigzag & 0x7F) | 0x80));
+            zigzag >>>= 7;
+        }
+        buffer.put((byte) zigzag);
+    }
+
+    private void finishRecord(int gx, int gy) throws IOException {
+        lastX = gx;
+        lastY = gy;
+        if (++numRecords == RECORDS_PER_CHUNK) {
+            flushChunk();
+        }
+    }
+
+    private void flushChunk() throws IOException {
+        if (numRecords == 0) return;
+        buffer.putInt(0, chr1).putInt(4, chr2).putInt(8, numRecords).putInt(12, countType)
+                .putInt(16, buffer.position() - CHUNK_HEADER_BYTES);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+        numRecords = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        flushChunk();
+        channel.close();
+    }
+}
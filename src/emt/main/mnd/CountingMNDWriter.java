@@ -0,0 +1,42 @@
+package emt.main.mnd;
+
+import java.io.IOException;
+
+/**
+ * Counts the records passed on to another writer
+ */
+public class CountingMNDWriter implements MNDWriter {
+
+    private final MNDWriter writer;
+    private long numRecords = 0;
+
+    public CountingMNDWriter(MNDWriter writer) {
+        this.writer = writer;
+    }
+
+    public long getNumRecords() {
+        return numRecords;
+    }
+
+    @Override
+    public void setPair(String xChrom, String yChrom) throws IOException {
+        writer.setPair(xChrom, yChrom);
+    }
+
+    @Override
+    public void write(int gx, int gy, float counts) throws IOException {
+        writer.write(gx, gy, counts);
+        numRecords++;
+    }
+
+    @Override
+    public void write(int gx, int gy, int counts) throws IOException {
+        writer.write(gx, gy, counts);
+        numRecords++;
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+}
@@ -0,0 +1,32 @@
+package emt.main.mnd;
+
+import java.io.IOException;
+
+public class MNDConverter {
+
+    /**
+     * Rewrites a binary MND as the text MND expected by pre
+     */
+    public static long binaryToText(String input, String output) throws IOException {
+        long numRecords = 0;
+        try (BinaryMNDReader reader = new BinaryMNDReader(input);
+             MNDWriter writer = MNDFormat.TEXT.openWriter(output, reader.getChromosomeNames(), true, false)) {
+            String[] names = reader.getChromosomeNames();
+            int chr1 = -1, chr2 = -1;
+            while (reader.next()) {
+                if (reader.getChr1() != chr1 || reader.getChr2() != chr2) {
+                    chr1 = reader.getChr1();
+                    chr2 = reader.getChr2();
+                    writer.setPair(names[chr1], names[chr2]);
+                }
+                if (reader.hasIntegerCounts()) {
+                    writer.write(reader.getGx(), reader.getGy(), reader.getIntegerCounts());
+                } else {
+                    writer.write(reader.getGx(), reader.getGy(), reader.getCounts());
+                }
+                numRecords++;
+            }
+        }
+        return numRecords;
+    }
+}
@@ -0,0 +1,60 @@
+package emt.main.mnd;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+public enum MNDFormat {
+    TEXT(".mnd.txt"),
+    BINARY(".mnd.bin"),
+    BGZF(".mnd.txt.gz");
+
+    private final String extension;
+
+    MNDFormat(String extension) {
+        this.extension = extension;
+    }
+
+    public static MNDFormat fromString(String format) {
+        if (format == null || format.equalsIgnoreCase("text")) {
+            return TEXT;
+        } else if (format.equalsIgnoreCase("binary")) {
+            return BINARY;
+        } else if (format.equalsIgnoreCase("bgzf")) {
+            return BGZF;
+        }
+        throw new IllegalArgumentException("MND format must be one of \"text\", \"binary\" or \"bgzf\"");
+    }
+
+    public String getExtension() {
+        return extension;
+    }
+
+    /**
+     * @param chromosomeNames dictionary for the binary format
+     * @param writeHeader     false when writing a shard that will be appended after a header
+     *                        (or, for BGZF, followed by other shards and the end-of-file marker)
+     * @param isSorted        declared in the binary header when the records of each pair are sorted
+     */
+    public MNDWriter openWriter(String path, String[] chromosomeNames, boolean writeHeader,
+                                boolean isSorted) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        return openWriter(channel, path, chromosomeNames, writeHeader, isSorted);
+    }
+
+    /**
+     * @param path location the channel writes to, used to place the BGZF index
+     */
+    public MNDWriter openWriter(WritableByteChannel channel, String path, String[] chromosomeNames,
+                                boolean writeHeader, boolean isSorted) throws IOException {
+        if (this == BINARY) {
+            return new BinaryMNDWriter(channel, chromosomeNames, writeHeader, isSorted);
+        } else if (this == BGZF) {
+            return new BGZFMNDWriter(channel, MNDIndex.getIndexPath(path), chromosomeNames, writeHeader);
+        }
+        return new TextMNDWriter(channel);
+    }
+}
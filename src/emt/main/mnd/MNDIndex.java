@@ -0,0 +1,172 @@
+package emt.main.mnd;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * Companion index of a BGZF MND, in the spirit of pairix: each entry covers a run of records of one
+ * chromosome pair (at most one BGZF block's worth) with the range of x and y positions it contains
+ * and the virtual offsets at which it starts and ends. All values are little-endian.
+ * <p>
+ * Layout: int magic ("EMNI"), int version, int numChromosomes, then for each chromosome an int byte length
+ * followed by its UTF-8 name; long numEntries, then for each entry int chr1 id, int chr2 id, int minX,
+ * int maxX, int minY, int maxY, long start and long end virtual offset.
+ */
+public class MNDIndex {
+
+    public static final int MAGIC = 0x494E4D45;
+    public static final int VERSION = 1;
+    private static final int INTS_PER_ENTRY = 6;
+
+    private final String[] chromosomeNames;
+    private int[] ranges = new int[INTS_PER_ENTRY * 256];
+    private long[] offsets = new long[2 * 256];
+    private int numEntries = 0;
+
+    public MNDIndex(String[] chromosomeNames) {
+        this.chromosomeNames = chromosomeNames;
+    }
+
+    public static String getIndexPath(String mndPath) {
+        return mndPath + ".idx";
+    }
+
+    public String[] getChromosomeNames() {
+        return chromosomeNames;
+    }
+
+    public int size() {
+        return numEntries;
+    }
+
+    public void add(int chr1, int chr2, int minX, int maxX, int minY, int maxY, long start, long end) {
+        if (numEntries * INTS_PER_ENTRY == ranges.length) {
+            ranges = Arrays.copyOf(ranges, 2 * ranges.length);
+            offsets = Arrays.copyOf(offsets, 2 * offsets.length);
+        }
+        int r = numEntries * INTS_PER_ENTRY;
+        ranges[r] = chr1;
+        ranges[r + 1] = chr2;
+        ranges[r + 2] = minX;
+        ranges[r + 3] = maxX;
+        ranges[r + 4] = minY;
+        ranges[r + 5] = maxY;
+        offsets[2 * numEntries] = start;
+        offsets[2 * numEntries + 1] = end;
+        numEntries++;
+    }
+
+    /**
+     * Converts the start and end of every entry, e.g. from uncompressed positions to virtual offsets
+     */
+    public void mapOffsets(LongUnaryOperator mapping) {
+        for (int i = 0; i < 2 * numEntries; i++) {
+            offsets[i] = mapping.applyAsLong(offsets[i]);
+        }
+    }
+
+    /**
+     * Appends the entries of an index whose BGZF file was concatenated at the given compressed position
+     */
+    public void append(MNDIndex other, long compressedShift) {
+        for (int i = 0; i < other.numEntries; i++) {
+            int r = i * INTS_PER_ENTRY;
+            add(other.ranges[r], other.ranges[r + 1], other.ranges[r + 2], other.ranges[r + 3],
+                    other.ranges[r + 4], other.ranges[r + 5],
+                    other.offsets[2 * i] + (compressedShift << 16), other.offsets[2 * i + 1] + (compressedShift << 16));
+        }
+    }
+
+    /**
+     * @return {start, end} virtual offsets of the runs of the pair that may contain contacts in the given ranges
+     */
+    public List<long[]> query(String xChrom, String yChrom, int xStart, int xEnd, int yStart, int yEnd) {
+        int chr1 = Arrays.asList(chromosomeNames).indexOf(xChrom);
+        int chr2 = Arrays.asList(chromosomeNames).indexOf(yChrom);
+        List<long[]> result = new ArrayList<>();
+        for (int i = 0; i < numEntries; i++) {
+            int r = i * INTS_PER_ENTRY;
+            if (ranges[r] == chr1 && ranges[r + 1] == chr2
+                    && ranges[r + 2] < xEnd && ranges[r + 3] >= xStart
+                    && ranges[r + 4] < yEnd && ranges[r + 5] >= yStart) {
+                result.add(new long[]{offsets[2 * i], offsets[2 * i + 1]});
+            }
+        }
+        return result;
+    }
+
+    public List<long[]> query(String xChrom, String yChrom) {
+        return query(xChrom, yChrom, Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE);
+    }
+
+    public void write(String path) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path), 1 << 16))) {
+            writeIntLE(out, MAGIC);
+            writeIntLE(out, VERSION);
+            writeIntLE(out, chromosomeNames.length);
+            for (String name : chromosomeNames) {
+                byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                writeIntLE(out, bytes.length);
+                out.write(bytes);
+            }
+            writeLongLE(out, numEntries);
+            for (int i = 0; i < numEntries; i++) {
+                for (int j = 0; j < INTS_PER_ENTRY; j++) {
+                    writeIntLE(out, ranges[i * INTS_PER_ENTRY + j]);
+                }
+                writeLongLE(out, offsets[2 * i]);
+                writeLongLE(out, offsets[2 * i + 1]);
+            }
+        }
+    }
+
+    public static MNDIndex read(String path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path), 1 << 16))) {
+            if (readIntLE(in) != MAGIC) {
+                throw new IOException(path + " is not an MND index");
+            }
+            int version = readIntLE(in);
+            if (version != VERSION) {
+                throw new IOException("Unsupported MND index version " + version);
+            }
+            String[] names = new String[readIntLE(in)];
+            for (int i = 0; i < names.length; i++) {
+                byte[] bytes = new byte[readIntLE(in)];
+                in.readFully(bytes);
+                names[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+            MNDIndex index = new MNDIndex(names);
+            long numEntries = readLongLE(in);
+            int[] entry = new int[INTS_PER_ENTRY];
+            for (long i = 0; i < numEntries; i++) {
+                for (int j = 0; j < INTS_PER_ENTRY; j++) {
+                    entry[j] = readIntLE(in);
+                }
+                long start = readLongLE(in);
+                long end = readLongLE(in);
+                index.add(entry[0], entry[1], entry[2], entry[3], entry[4], entry[5], start, end);
+            }
+            return index;
+        }
+    }
+
+    private static void writeIntLE(DataOutputStream out, int value) throws IOException {
+        out.writeInt(Integer.reverseBytes(value));
+    }
+
+    private static void writeLongLE(DataOutputStream out, long value) throws IOException {
+        out.writeLong(Long.reverseBytes(value));
+    }
+
+    private static int readIntLE(DataInputStream in) throws IOException {
+        return Integer.reverseBytes(in.readInt());
+    }
+
+    private static long readLongLE(DataInputStream in) throws IOException {
+        return Long.reverseBytes(in.readLong());
+    }
+}
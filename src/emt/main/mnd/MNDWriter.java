@@ -0,0 +1,16 @@
+package emt.main.mnd;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Sink for contacts in merged_nodups (MND) order: a chromosome pair is selected, then its contacts are written.
+ */
+public interface MNDWriter extends Closeable {
+
+    void setPair(String xChrom, String yChrom) throws IOException;
+
+    void write(int gx, int gy, float counts) throws IOException;
+
+    void write(int gx, int gy, int counts) throws IOException;
+}
@@ -0,0 +1,223 @@
+package emt.main.mnd;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writer stage of the extraction pipeline: the threads that read, decode and subsample contacts hand them over
+ * in batches, through bounded queues, to a fixed set of writer threads that format and write them. Producers
+ * block when their queue is full. Each staged writer is served by a single writer thread, so its records are
+ * written in order.
+ */
+public class MNDWriterStage implements Closeable {
+
+    private static final int BATCH_SIZE = 1 << 12;
+    private static final int QUEUE_CAPACITY = 16;
+    private static final Batch END = new Batch(null);
+
+    private final List<BlockingQueue<Batch>> queues = new ArrayList<>();
+    private final ExecutorService pool;
+    private final AtomicInteger nextLane = new AtomicInteger(0);
+
+    public MNDWriterStage(int numThreads) {
+        int n = Math.max(1, numThreads);
+        pool = Executors.newFixedThreadPool(n);
+        for (int i = 0; i < n; i++) {
+            BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+            queues.add(queue);
+            pool.execute(() -> drain(queue));
+        }
+    }
+
+    private static void drain(BlockingQueue<Batch> queue) {
+        try {
+            Batch batch = queue.take();
+            while (batch != END) {
+                batch.apply();
+                batch = queue.take();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return a writer that passes everything on to the given writer from a writer thread;
+     * call finish before closing or reusing the given writer
+     */
+    public StagedMNDWriter open(MNDWriter writer) {
+        return new StagedMNDWriter(writer, queues.get(Math.floorMod(nextLane.getAndIncrement(), queues.size())));
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            for (BlockingQueue<Batch> queue : queues) {
+                queue.put(END);
+            }
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            throw new InterruptedIOException("Interrupted while stopping the writers");
+        }
+    }
+
+    public static class StagedMNDWriter implements MNDWriter {
+
+        private final MNDWriter writer;
+        private final BlockingQueue<Batch> queue;
+        private volatile IOException failure = null;
+        private Batch batch;
+
+        private StagedMNDWriter(MNDWriter writer, BlockingQueue<Batch> queue) {
+            this.writer = writer;
+            this.queue = queue;
+            this.batch = new Batch(this);
+        }
+
+        @Override
+        public void setPair(String xChrom, String yChrom) throws IOException {
+            if (batch.size > 0 || batch.xChrom != null) {
+                submit();
+            }
+            batch.xChrom = xChrom;
+            batch.yChrom = yChrom;
+        }
+
+        @Override
+        public void write(int gx, int gy, float counts) throws IOException {
+            batch.addFloat(gx, gy, counts);
+            if (batch.size == BATCH_SIZE) {
+                submit();
+            }
+        }
+
+        @Override
+        public void write(int gx, int gy, int counts) throws IOException {
+            batch.addInt(gx, gy, counts);
+            if (batch.size == BATCH_SIZE) {
+                submit();
+            }
+        }
+
+        private void submit() throws IOException {
+            checkFailure();
+            put(batch);
+            batch = new Batch(this);
+        }
+
+        private void put(Batch next) throws IOException {
+            try {
+                queue.put(next);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while handing over contacts");
+            }
+        }
+
+        private void checkFailure() throws IOException {
+            if (failure != null) {
+                throw new IOException("Unable to write contacts", failure);
+            }
+        }
+
+        /**
+         * Waits until everything written so far has been passed on to the underlying writer
+         */
+        public void finish() throws IOException {
+            if (batch.size > 0 || batch.xChrom != null) {
+                put(batch);
+                batch = new Batch(this);
+            }
+            Batch marker = new Batch(this);
+            marker.done = new CountDownLatch(1);
+            put(marker);
+            try {
+                marker.done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the writer");
+            }
+            checkFailure();
+        }
+
+        @Override
+        public void close() throws IOException {
+            finish();
+            writer.close();
+        }
+    }
+
+    private static class Batch {
+
+        private final StagedMNDWriter owner;
+        private String xChrom = null, yChrom = null;
+        private int size = 0;
+        private int[] gx, gy, intCounts;
+        private float[] counts;
+        private boolean[] isInt;
+        private CountDownLatch done = null;
+
+        private Batch(StagedMNDWriter owner) {
+            this.owner = owner;
+        }
+
+        private void addFloat(int x, int y, float count) {
+            int i = next(x, y);
+            counts[i] = count;
+            isInt[i] = false;
+        }
+
+        private void addInt(int x, int y, int count) {
+            int i = next(x, y);
+            intCounts[i] = count;
+            isInt[i] = true;
+        }
+
+        private int next(int x, int y) {
+            if (gx == null) {
+                gx = new int[BATCH_SIZE];
+                gy = new int[BATCH_SIZE];
+                counts = new float[BATCH_SIZE];
+                intCounts = new int[BATCH_SIZE];
+                isInt = new boolean[BATCH_SIZE];
+            }
+            gx[size] = x;
+            gy[size] = y;
+            return size++;
+        }
+
+        private void apply() {
+            if (owner.failure == null) {
+                try {
+                    if (xChrom != null) {
+                        owner.writer.setPair(xChrom, yChrom);
+                    }
+                    for (int i = 0; i < size; i++) {
+                        if (isInt[i]) {
+                            owner.writer.write(gx[i], gy[i], intCounts[i]);
+                        } else {
+                            owner.writer.write(gx[i], gy[i], counts[i]);
+                        }
+                    }
+                } catch (IOException | RuntimeException e) {
+                    owner.failure = e instanceof IOException ? (IOException) e : new IOException(e);
+                }
+            }
+            if (done != null) {
+                done.countDown();
+            }
+        }
+    }
+}
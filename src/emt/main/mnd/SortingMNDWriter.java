@@ -0,0 +1,230 @@
+package emt.main.mnd;
+
+import emt.utils.io.SortedRunFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.util.PriorityQueue;
+
+/**
+ * Passes the records of each chromosome pair on sorted by x, then y. The records of a pair are kept in an
+ * off-heap buffer of 16 byte entries (position key, count) and sorted in place; whenever the buffer reaches the
+ * memory budget it is spilled to a temporary file as a sorted run, and the runs are k-way merged when the pair
+ * ends. Records that already arrive in order are passed on without sorting. Successive setPair calls with the
+ * same pair continue it.
+ */
+public class SortingMNDWriter implements MNDWriter {
+
+    private static final int ENTRY_BYTES = 16;
+    private static final int INITIAL_ENTRIES = 1 << 14;
+    private static final int INSERTION_SORT_THRESHOLD = 24;
+    private static final long INT_COUNTS = 1L << 32;
+
+    private final MNDWriter writer;
+    private final long memoryBudget;
+    private final int maxEntries;
+    private final SortedRunFile runs;
+    private LongBuffer entries;
+    private int size = 0;
+    private boolean isOrdered = true;
+    private String xChrom = null, yChrom = null;
+
+    /**
+     * @param memoryBudget bytes of off-heap memory used for the records of a pair
+     * @param tempFolder   folder of the sorted runs spilled to disk
+     */
+    public SortingMNDWriter(MNDWriter writer, long memoryBudget, File tempFolder) {
+        this.writer = writer;
+        this.memoryBudget = memoryBudget;
+        // a direct buffer holds at most Integer.MAX_VALUE bytes
+        this.maxEntries = (int) Math.max(1024, Math.min(memoryBudget / ENTRY_BYTES, Integer.MAX_VALUE / ENTRY_BYTES));
+        this.runs = new SortedRunFile(tempFolder, "emt_sort_", 8);
+    }
+
+    /**
+     * @return position key ordered by x, then y, for any sign of either
+     */
+    private static long getKey(int gx, int gy) {
+        return ((long) gx << 32) | ((gy ^ Integer.MIN_VALUE) & 0xFFFFFFFFL);
+    }
+
+    private static int getX(long key) {
+        return (int) (key >> 32);
+    }
+
+    private static int getY(long key) {
+        return (int) key ^ Integer.MIN_VALUE;
+    }
+
+    @Override
+    public void setPair(String xChrom, String yChrom) throws IOException {
+        if (xChrom.equals(this.xChrom) && yChrom.equals(this.yChrom)) return;
+        flushPair();
+        this.xChrom = xChrom;
+        this.yChrom = yChrom;
+    }
+
+    @Override
+    public void write(int gx, int gy, float counts) throws IOException {
+        add(getKey(gx, gy), Float.floatToRawIntBits(counts) & 0xFFFFFFFFL);
+    }
+
+    @Override
+    public void write(int gx, int gy, int counts) throws IOException {
+        add(getKey(gx, gy), INT_COUNTS | (counts & 0xFFFFFFFFL));
+    }
+
+    private void add(long key, long value) throws IOException {
+        if (entries == null || 2 * size == entries.capacity()) {
+            if (size == maxEntries) {
+                spill();
+            } else {
+                grow();
+            }
+        }
+        if (size > 0 && key < entries.get(2 * size - 2)) {
+            isOrdered = false;
+        }
+        entries.put(2 * size, key);
+        entries.put(2 * size + 1, value);
+        size++;
+    }
+
+    private void grow() {
+        int capacity = entries == null ? Math.min(INITIAL_ENTRIES, maxEntries)
+                : (int) Math.min(2L * size, maxEntries);
+        LongBuffer larger = ByteBuffer.allocateDirect((int) ((long) capacity * ENTRY_BYTES))
+                .order(ByteOrder.nativeOrder()).asLongBuffer();
+        for (int i = 0; i < 2 * size; i++) {
+            larger.put(i, entries.get(i));
+        }
+        entries = larger;
+    }
+
+    private void sortEntries() {
+        if (!isOrdered) {
+            sort(0, size - 1);
+        }
+    }
+
+    private void spill() throws IOException {
+        if (size == 0) return;
+        sortEntries();
+        runs.startRun();
+        for (int i = 0; i < size; i++) {
+            runs.add(entries.get(2 * i), entries.get(2 * i + 1));
+        }
+        runs.finishRun();
+        size = 0;
+        isOrdered = true;
+    }
+
+    private void flushPair() throws IOException {
+        if (xChrom == null) return;
+        writer.setPair(xChrom, yChrom);
+        if (runs.isEmpty()) {
+            sortEntries();
+            for (int i = 0; i < size; i++) {
+                pass(entries.get(2 * i), entries.get(2 * i + 1));
+            }
+        } else {
+            spill();
+            merge();
+        }
+        size = 0;
+        isOrdered = true;
+        runs.clear();
+        xChrom = null;
+        yChrom = null;
+    }
+
+    private void pass(long key, long value) throws IOException {
+        if ((value & INT_COUNTS) != 0) {
+            writer.write(getX(key), getY(key), (int) value);
+        } else {
+            writer.write(getX(key), getY(key), Float.intBitsToFloat((int) value));
+        }
+    }
+
+    private void merge() throws IOException {
+        PriorityQueue<SortedRunFile.Reader> queue = runs.merge(memoryBudget);
+        while (!queue.isEmpty()) {
+            SortedRunFile.Reader reader = queue.poll();
+            pass(reader.getKey(), reader.getValue());
+            if (reader.advance()) {
+                queue.add(reader);
+            }
+        }
+    }
+
+    /**
+     * In-place quicksort of the entries by key, with median-of-three pivots and insertion sort for short ranges
+     */
+    private void sort(int low, int high) {
+        while (high - low > INSERTION_SORT_THRESHOLD) {
+            int middle = (low + high) >>> 1;
+            if (key(middle) < key(low)) swap(middle, low);
+            if (key(high) < key(low)) swap(high, low);
+            if (key(high) < key(middle)) swap(high, middle);
+            long pivot = key(middle);
+            int i = low, j = high;
+            while (i <= j) {
+                while (key(i) < pivot) i++;
+                while (key(j) > pivot) j--;
+                if (i <= j) {
+                    swap(i++, j--);
+                }
+            }
+            // recurse into the smaller side to bound the stack depth
+            if (j - low < high - i) {
+                sort(low, j);
+                low = i;
+            } else {
+                sort(i, high);
+                high = j;
+            }
+        }
+        for (int i = low + 1; i <= high; i++) {
+            long key = key(i);
+            long value = entries.get(2 * i + 1);
+            int j = i - 1;
+            while (j >= low && key(j) > key) {
+                entries.put(2 * j + 2, entries.get(2 * j));
+                entries.put(2 * j + 3, entries.get(2 * j + 1));
+                j--;
+            }
+            entries.put(2 * j + 2, key);
+            entries.put(2 * j + 3, value);
+        }
+    }
+
+    private long key(int i) {
+        return entries.get(2 * i);
+    }
+
+    private void swap(int a, int b) {
+        long key = entries.get(2 * a);
+        long value = entries.get(2 * a + 1);
+        entries.put(2 * a, entries.get(2 * b));
+        entries.put(2 * a + 1, entries.get(2 * b + 1));
+        entries.put(2 * b, key);
+        entries.put(2 * b + 1, value);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flushPair();
+        } finally {
+            entries = null;
+            try {
+                runs.close();
+            } finally {
+                writer.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package emt.main.mnd;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Space-separated "chr1 pos1 chr2 pos2 count" lines, as read by pre.
+ * <p>
+ * Records are encoded straight into a reusable byte buffer: chromosome names are encoded once,
+ * ints are formatted digit by digit, and integral float counts (i.e. all raw counts) are written
+ * as "N.0" exactly as {@link Float#toString(float)} would. Other floats fall back to Float.toString.
+ */
+public class TextMNDWriter implements MNDWriter {
+
+    private static final byte[] NEW_LINE = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+    private static final int MAX_NUMBER_LENGTH = 24;
+    private static final float MAX_PLAIN_FLOAT = 1e7f;
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+    private final Map<String, byte[]> encodedNames = new HashMap<>();
+    private final byte[] digits = new byte[11];
+    private byte[] xChrom, yChrom;
+    private int maxRecordLength;
+    private long flushedBytes = 0;
+
+    public TextMNDWriter(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    @Override
+    public void setPair(String xChrom, String yChrom) {
+        this.xChrom = encode(xChrom);
+        this.yChrom = encode(yChrom);
+        maxRecordLength = this.xChrom.length + this.yChrom.length + 4 + 3 * MAX_NUMBER_LENGTH + NEW_LINE.length;
+    }
+
+    private byte[] encode(String chrom) {
+        byte[] name = encodedNames.get(chrom);
+        if (name == null) {
+            name = chrom.getBytes(StandardCharsets.UTF_8);
+            encodedNames.put(chrom, name);
+        }
+        return name;
+    }
+
+    @Override
+    public void write(int gx, int gy, float counts) throws IOException {
+        putPositions(gx, gy);
+        if (counts >= 1 && counts < MAX_PLAIN_FLOAT && counts == (int) counts) {
+            putInt((int) counts);
+            buffer.put((byte) '.').put((byte) '0');
+        } else {
+            String value = Float.toString(counts);
+            for (int i = 0; i < value.length(); i++) {
+                buffer.put((byte) value.charAt(i));
+            }
+        }
+        buffer.put(NEW_LINE);
+    }
+
+    @Override
+    public void write(int gx, int gy, int counts) throws IOException {
+        putPositions(gx, gy);
+        putInt(counts);
+        buffer.put(NEW_LINE);
+    }
+
+    private void putPositions(int gx, int gy) throws IOException {
+        if (buffer.remaining() < maxRecordLength) {
+            flush();
+        }
+        buffer.put(xChrom).put((byte) ' ');
+        putInt(gx);
+        buffer.put((byte) ' ').put(yChrom).put((byte) ' ');
+        putInt(gy);
+        buffer.put((byte) ' ');
+    }
+
+    private void putInt(int value) {
+        long v = value;
+        if (v < 0) {
+            buffer.put((byte) '-');
+            v = -v;
+        }
+        int start = digits.length;
+        do {
+            digits[--start] = (byte) ('0' + (v % 10));
+            v /= 10;
+        } while (v > 0);
+        buffer.put(digits, start, digits.length - start);
+    }
+
+    /**
+     * @return number of bytes written so far, including buffered ones
+     */
+    public long getPosition() {
+        return flushedBytes + buffer.position();
+    }
+
+    private void flush() throws IOException {
+        flushedBytes += buffer.position();
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        channel.close();
+    }
+}
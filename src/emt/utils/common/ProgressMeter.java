@@ -0,0 +1,261 @@
+package emt.utils.common;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress and throughput of a task split into units of work (e.g. chromosome pairs), safe to update from
+ * several threads. A line with the rates and the ETA is logged periodically; the ETA weighs each unit by its
+ * estimated size, so one large pair does not look like one small one. The per-unit wall times are kept for
+ * the final JSON summary, slowest first.
+ */
+public class ProgressMeter implements AutoCloseable {
+
+    private static final long LOG_INTERVAL_SECONDS = 10;
+    private static final long RECORD_FLUSH = 1 << 12;
+
+    private final String task;
+    private final String unitLabel;
+    private final int numUnits;
+    private final long totalWeight;
+    private final long startTime = System.nanoTime();
+    private final AtomicInteger completedUnits = new AtomicInteger(0);
+    private final AtomicLong completedWeight = new AtomicLong(0);
+    private final AtomicLong records = new AtomicLong(0);
+    private final AtomicLong blocks = new AtomicLong(0);
+    private final AtomicLong bytesRead = new AtomicLong(0);
+    private final AtomicLong bytesWritten = new AtomicLong(0);
+    private final ConcurrentLinkedQueue<Unit> finished = new ConcurrentLinkedQueue<>();
+    private final ScheduledExecutorService logger;
+    private long endTime = -1;
+
+    /**
+     * @param task        lowercase name of the task, e.g. "excise", printed at the start of each progress line
+     * @param totalWeight sum of the weights of all the units, used for the ETA;
+     *                    every unit counts one more so that empty units still advance it
+     */
+    public ProgressMeter(String task, String unitLabel, int numUnits, long totalWeight) {
+        this.task = task;
+        this.unitLabel = unitLabel;
+        this.numUnits = numUnits;
+        this.totalWeight = totalWeight + numUnits;
+        logger = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "progress-" + task);
+            thread.setDaemon(true);
+            return thread;
+        });
+        logger.scheduleAtFixedRate(() -> System.out.println(getStatus()),
+                LOG_INTERVAL_SECONDS, LOG_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @param weight estimated size of the unit, in the same scale as the total weight
+     */
+    public Unit start(String name, long weight) {
+        return new Unit(name, weight);
+    }
+
+    public void addBytesWritten(long bytes) {
+        bytesWritten.addAndGet(bytes);
+    }
+
+    public long getRecords() {
+        return records.get();
+    }
+
+    private double getElapsedSeconds() {
+        long end = endTime < 0 ? System.nanoTime() : endTime;
+        return (end - startTime) / 1e9;
+    }
+
+    /**
+     * @return estimated seconds left, or -1 before any weight is complete
+     */
+    private double getSecondsLeft() {
+        long done = completedWeight.get();
+        if (done <= 0) return -1;
+        return getElapsedSeconds() * (totalWeight - done) / done;
+    }
+
+    public String getStatus() {
+        double elapsed = Math.max(getElapsedSeconds(), 1e-9);
+        int completed = completedUnits.get();
+        double secondsLeft = getSecondsLeft();
+        return String.format(Locale.ROOT, "%s: %d/%d %s (%.1f%%), %d records (%.0f/s), %d blocks, " +
+                        "read %s, wrote %s, elapsed %s, ETA %s", task, completed, numUnits, unitLabel,
+                totalWeight > 0 ? 100.0 * completedWeight.get() / totalWeight : 100.0,
+                records.get(), records.get() / elapsed, blocks.get(), formatBytes(bytesRead.get()),
+                formatBytes(bytesWritten.get()), formatSeconds(elapsed),
+                secondsLeft < 0 ? "unknown" : formatSeconds(secondsLeft));
+    }
+
+    /**
+     * Stops the periodic log and prints the final status
+     */
+    @Override
+    public void close() {
+        if (endTime >= 0) return;
+        endTime = System.nanoTime();
+        logger.shutdownNow();
+        System.out.println(getStatus());
+    }
+
+    public String toJson() {
+        double elapsed = Math.max(getElapsedSeconds(), 1e-9);
+        List<Unit> units = new ArrayList<>(finished);
+        units.sort(Comparator.comparingLong((Unit unit) -> unit.nanos).reversed());
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"task\": ").append(quote(task)).append(",\n");
+        json.append("  \"elapsedSeconds\": ").append(formatDouble(getElapsedSeconds())).append(",\n");
+        json.append("  \"numUnits\": ").append(numUnits).append(",\n");
+        json.append("  \"completedUnits\": ").append(completedUnits.get()).append(",\n");
+        json.append("  \"records\": ").append(records.get()).append(",\n");
+        json.append("  \"recordsPerSecond\": ").append(formatDouble(records.get() / elapsed)).append(",\n");
+        json.append("  \"blocks\": ").append(blocks.get()).append(",\n");
+        json.append("  \"bytesRead\": ").append(bytesRead.get()).append(",\n");
+        json.append("  \"bytesWritten\": ").append(bytesWritten.get()).append(",\n");
+        json.append("  \"units\": [");
+        for (int i = 0; i < units.size(); i++) {
+            Unit unit = units.get(i);
+            json.append(i == 0 ? "\n" : ",\n");
+            json.append("    {\"name\": ").append(quote(unit.name))
+                    .append(", \"weight\": ").append(unit.weight)
+                    .append(", \"seconds\": ").append(formatDouble(unit.nanos / 1e9))
+                    .append(", \"records\": ").append(unit.records)
+                    .append(", \"blocks\": ").append(unit.blocks)
+                    .append(", \"bytesRead\": ").append(unit.bytesRead)
+                    .append(", \"bytesWritten\": ").append(unit.bytesWritten).append("}");
+        }
+        json.append(units.isEmpty() ? "]\n" : "\n  ]\n");
+        json.append("}\n");
+        return json.toString();
+    }
+
+    public void writeJson(File file) {
+        try (Writer writer = new FileWriter(file)) {
+            writer.write(toJson());
+        } catch (IOException e) {
+            System.err.println("Unable to save metrics to " + file.getPath() + ": " + e.getMessage());
+        }
+    }
+
+    private static String quote(String text) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (char c : text.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    private static String formatDouble(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    private static String formatBytes(long bytes) {
+        if (bytes < 1 << 20) return String.format(Locale.ROOT, "%.1f KB", bytes / 1024.0);
+        if (bytes < 1 << 30) return String.format(Locale.ROOT, "%.1f MB", bytes / (1024.0 * 1024));
+        return String.format(Locale.ROOT, "%.2f GB", bytes / (1024.0 * 1024 * 1024));
+    }
+
+    private static String formatSeconds(double seconds) {
+        long s = Math.round(seconds);
+        if (s < 60) return s + "s";
+        if (s < 3600) return (s / 60) + "m" + (s % 60) + "s";
+        return (s / 3600) + "h" + ((s % 3600) / 60) + "m";
+    }
+
+    /**
+     * One unit of work, updated by the thread processing it; its counts are added to the totals as they come in
+     */
+    public class Unit {
+
+        private final String name;
+        private final long weight;
+        private final long start = System.nanoTime();
+        private long nanos = -1;
+        private long records = 0, blocks = 0, bytesRead = 0, bytesWritten = 0;
+        private long unflushedRecords = 0;
+
+        private Unit(String name, long weight) {
+            this.name = name;
+            this.weight = weight;
+        }
+
+        public void addRecords(long n) {
+            records += n;
+            unflushedRecords += n;
+            if (unflushedRecords >= RECORD_FLUSH) {
+                flushRecords();
+            }
+        }
+
+        private void flushRecords() {
+            ProgressMeter.this.records.addAndGet(unflushedRecords);
+            unflushedRecords = 0;
+        }
+
+        public void addBlocks(long n) {
+            blocks += n;
+            ProgressMeter.this.blocks.addAndGet(n);
+        }
+
+        public void addBytesRead(long n) {
+            bytesRead += n;
+            ProgressMeter.this.bytesRead.addAndGet(n);
+        }
+
+        public void addBytesWritten(long n) {
+            bytesWritten += n;
+            ProgressMeter.this.bytesWritten.addAndGet(n);
+        }
+
+        /**
+         * @return the iterator, counting the records it returns
+         */
+        public <T> Iterator<T> count(Iterator<T> iterator) {
+            return new Iterator<T>() {
+                @Override
+                public boolean hasNext() {
+                    return iterator.hasNext();
+                }
+
+                @Override
+                public T next() {
+                    T next = iterator.next();
+                    addRecords(1);
+                    return next;
+                }
+            };
+        }
+
+        public void finish() {
+            if (nanos >= 0) return;
+            nanos = System.nanoTime() - start;
+            flushRecords();
+            completedUnits.incrementAndGet();
+            completedWeight.addAndGet(weight + 1);
+            finished.add(this);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package emt.utils.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a local BGZF file block by block, with random access through virtual offsets
+ * (compressed block start << 16 | offset within the uncompressed block).
+ */
+public class BGZFInputStream extends InputStream {
+
+    private static final int HEADER_SIZE = 18;
+
+    private final RandomAccessFile file;
+    private final Inflater inflater = new Inflater(true);
+    private final byte[] compressed = new byte[1 << 16];
+    private final byte[] block = new byte[1 << 16];
+    private int blockLength = 0;
+    private int blockPosition = 0;
+    private long blockAddress = 0;
+    private long nextBlockAddress = 0;
+
+    public BGZFInputStream(String path) throws IOException {
+        file = new RandomAccessFile(path, "r");
+    }
+
+    public void seek(long virtualOffset) throws IOException {
+        nextBlockAddress = virtualOffset >>> 16;
+        readBlock();
+        blockPosition = (int) (virtualOffset & 0xffff);
+    }
+
+    public long getVirtualOffset() {
+        if (blockPosition == blockLength) {
+            return nextBlockAddress << 16;
+        }
+        return (blockAddress << 16) | blockPosition;
+    }
+
+    /**
+     * @return false at the end of the file
+     */
+    private boolean readBlock() throws IOException {
+        blockAddress = nextBlockAddress;
+        blockLength = 0;
+        blockPosition = 0;
+        file.seek(blockAddress);
+        int read = file.read(compressed, 0, HEADER_SIZE);
+        if (read <= 0) return false;
+        if (read < HEADER_SIZE) {
+            file.readFully(compressed, read, HEADER_SIZE - read);
+        }
+        if (compressed[0] != 0x1f || compressed[1] != (byte) 0x8b || compressed[12] != 'B' || compressed[13] != 'C') {
+            throw new IOException("Invalid BGZF block at " + blockAddress);
+        }
+        int blockSize = ((compressed[16] & 0xff) | ((compressed[17] & 0xff) << 8)) + 1;
+        file.readFully(compressed, HEADER_SIZE, blockSize - HEADER_SIZE);
+        nextBlockAddress = blockAddress + blockSize;
+
+        inflater.reset();
+        inflater.setInput(compressed, HEADER_SIZE, blockSize - HEADER_SIZE - 8);
+        try {
+            blockLength = inflater.inflate(block);
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt BGZF block at " + blockAddress, e);
+        }
+        return true;
+    }
+
+    /**
+     * @return false at the end of the file; skips empty blocks such as the EOF marker
+     */
+    private boolean ensureData() throws IOException {
+        while (blockPosition == blockLength) {
+            if (!readBlock()) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureData()) return -1;
+        return block[blockPosition++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (!ensureData()) return -1;
+        int n = Math.min(len, blockLength - blockPosition);
+        System.arraycopy(block, blockPosition, b, off, n);
+        blockPosition += n;
+        return n;
+    }
+
+    /**
+     * @return the next line without its terminator, or null at the end of the file
+     */
+    public String readLine() throws IOException {
+        int c = read();
+        if (c < 0) return null;
+        StringBuilder line = new StringBuilder();
+        while (c >= 0 && c != '\n') {
+            if (c != '\r') {
+                line.append((char) c);
+            }
+            c = read();
+        }
+        return line.toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        file.close();
+    }
+}
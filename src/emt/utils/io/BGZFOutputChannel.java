@@ -0,0 +1,196 @@
+package emt.utils.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes BGZF (blocked gzip, as used by bgzip/tabix/pairix): a series of independent gzip members,
+ * each holding at most {@link #BLOCK_SIZE} uncompressed bytes and recording its own compressed size.
+ * Blocks are compressed in parallel on a thread pool and written in order.
+ * <p>
+ * Every block holds exactly BLOCK_SIZE bytes except the last, so the virtual offset
+ * (compressed block start << 16 | offset within block) of any uncompressed position can be
+ * resolved once that block has been written.
+ */
+public class BGZFOutputChannel implements WritableByteChannel {
+
+    public static final int BLOCK_SIZE = 0xff00;
+    private static final int HEADER_SIZE = 18;
+    private static final int FOOTER_SIZE = 8;
+    private static final int MAX_BLOCK_SIZE = 1 << 16;
+    public static final byte[] EOF_BLOCK = {
+            0x1f, (byte) 0x8b, 0x08, 0x04, 0x00, 0x00, 0x00, 0x00, 0x00, (byte) 0xff, 0x06, 0x00, 0x42, 0x43,
+            0x02, 0x00, 0x1b, 0x00, 0x03, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00};
+
+    private final WritableByteChannel channel;
+    private final boolean writeEOF;
+    private final ExecutorService pool;
+    private final int maxPending;
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+    private byte[] block = new byte[BLOCK_SIZE];
+    private int blockLength = 0;
+    private long[] blockOffsets = new long[1024];
+    private int numBlocksWritten = 0;
+    private long compressedPosition = 0;
+    private long dataEnd = 0;
+    private boolean open = true;
+
+    /**
+     * @param writeEOF false for shards that will be concatenated before the end-of-file marker
+     */
+    public BGZFOutputChannel(WritableByteChannel channel, boolean writeEOF) {
+        this(channel, writeEOF, ForkJoinPool.commonPool(), 2 * ForkJoinPool.getCommonPoolParallelism() + 2);
+    }
+
+    public BGZFOutputChannel(WritableByteChannel channel, boolean writeEOF, ExecutorService pool, int maxPending) {
+        this.channel = channel;
+        this.writeEOF = writeEOF;
+        this.pool = pool;
+        this.maxPending = Math.max(1, maxPending);
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        int length = src.remaining();
+        while (src.hasRemaining()) {
+            int n = Math.min(src.remaining(), BLOCK_SIZE - blockLength);
+            src.get(block, blockLength, n);
+            blockLength += n;
+            if (blockLength == BLOCK_SIZE) {
+                submitBlock();
+            }
+        }
+        return length;
+    }
+
+    private void submitBlock() throws IOException {
+        if (blockLength == 0) return;
+        final byte[] data = block;
+        final int dataLength = blockLength;
+        pending.addLast(pool.submit(() -> compress(data, dataLength)));
+        block = new byte[BLOCK_SIZE];
+        blockLength = 0;
+        while (pending.size() > maxPending) {
+            writeNextBlock();
+        }
+    }
+
+    private void writeNextBlock() throws IOException {
+        byte[] compressed;
+        try {
+            compressed = pending.removeFirst().get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException("Unable to compress BGZF block", e);
+        }
+        if (numBlocksWritten == blockOffsets.length) {
+            blockOffsets = Arrays.copyOf(blockOffsets, 2 * blockOffsets.length);
+        }
+        blockOffsets[numBlocksWritten++] = compressedPosition;
+        writeFully(compressed);
+        dataEnd = compressedPosition;
+    }
+
+    private void writeFully(byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            compressedPosition += channel.write(buffer);
+        }
+    }
+
+    static byte[] compress(byte[] data, int length) {
+        byte[] compressed = deflate(data, length, Deflater.DEFAULT_COMPRESSION);
+        if (compressed == null) {
+            compressed = deflate(data, length, Deflater.NO_COMPRESSION);
+        }
+        return compressed;
+    }
+
+    /**
+     * @return the complete gzip member, or null if it would exceed the 64 KB BGZF limit
+     */
+    private static byte[] deflate(byte[] data, int length, int level) {
+        Deflater deflater = new Deflater(level, true);
+        deflater.setInput(data, 0, length);
+        deflater.finish();
+        byte[] member = new byte[MAX_BLOCK_SIZE];
+        int cdataLength = deflater.deflate(member, HEADER_SIZE, MAX_BLOCK_SIZE - HEADER_SIZE - FOOTER_SIZE);
+        boolean fits = deflater.finished();
+        deflater.end();
+        if (!fits) return null;
+
+        int blockSize = HEADER_SIZE + cdataLength + FOOTER_SIZE;
+        byte[] header = {0x1f, (byte) 0x8b, 0x08, 0x04, 0, 0, 0, 0, 0, (byte) 0xff, 6, 0, 'B', 'C', 2, 0,
+                (byte) (blockSize - 1), (byte) ((blockSize - 1) >>> 8)};
+        System.arraycopy(header, 0, member, 0, HEADER_SIZE);
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        putIntLE(member, HEADER_SIZE + cdataLength, (int) crc.getValue());
+        putIntLE(member, HEADER_SIZE + cdataLength + 4, length);
+        return Arrays.copyOf(member, blockSize);
+    }
+
+    private static void putIntLE(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) value;
+        bytes[offset + 1] = (byte) (value >>> 8);
+        bytes[offset + 2] = (byte) (value >>> 16);
+        bytes[offset + 3] = (byte) (value >>> 24);
+    }
+
+    /**
+     * @param uncompressedPosition position in the uncompressed stream, in a block that has been written
+     *                             or at the very end of the data
+     */
+    public long getVirtualOffset(long uncompressedPosition) {
+        int blockIndex = (int) (uncompressedPosition / BLOCK_SIZE);
+        if (blockIndex == numBlocksWritten) {
+            return dataEnd << 16;
+        }
+        return (blockOffsets[blockIndex] << 16) | (uncompressedPosition % BLOCK_SIZE);
+    }
+
+    /**
+     * @return compressed bytes written so far; the final size once closed
+     */
+    public long getCompressedSize() {
+        return compressedPosition;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Writes the remaining blocks without closing the underlying channel
+     */
+    public void finish() throws IOException {
+        if (!open) return;
+        submitBlock();
+        while (!pending.isEmpty()) {
+            writeNextBlock();
+        }
+        if (writeEOF) {
+            writeFully(EOF_BLOCK);
+        }
+        open = false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package emt.utils.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Passes writes through to another channel while counting the bytes and computing their CRC32
+ */
+public class ChecksumChannel implements WritableByteChannel {
+
+    private final WritableByteChannel channel;
+    private final CRC32 crc = new CRC32();
+    private long bytesWritten = 0;
+
+    public ChecksumChannel(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        ByteBuffer written = src.duplicate();
+        int n = channel.write(src);
+        written.limit(written.position() + n);
+        crc.update(written);
+        bytesWritten += n;
+        return n;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public long getChecksum() {
+        return crc.getValue();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,182 @@
+package emt.utils.io;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Temporary file of sorted runs spilled by a bounded-memory sort. Each run is a sequence of little-endian
+ * (long key, value) entries in increasing key order, with 4 or 8 byte values; the runs are read back together
+ * for a k-way merge. The file is created with the first run and deleted on close.
+ */
+public class SortedRunFile implements Closeable {
+
+    private static final int WRITE_BUFFER_BYTES = 1 << 20;
+    private static final int READ_BUFFER_ENTRIES = 1 << 14;
+
+    private final File tempFolder;
+    private final String prefix;
+    private final int valueBytes;
+    private final int entryBytes;
+    private final List<long[]> runs = new ArrayList<>();
+    private File file = null;
+    private FileChannel channel = null;
+    private ByteBuffer out = null;
+    private long position = 0;
+    private long runStart, runSize;
+
+    /**
+     * @param prefix     prefix of the temporary file name
+     * @param valueBytes 4 or 8
+     */
+    public SortedRunFile(File tempFolder, String prefix, int valueBytes) {
+        this.tempFolder = tempFolder;
+        this.prefix = prefix;
+        this.valueBytes = valueBytes;
+        this.entryBytes = 8 + valueBytes;
+    }
+
+    /**
+     * Starts a run; its entries must be added in increasing key order
+     */
+    public void startRun() throws IOException {
+        if (channel == null) {
+            file = File.createTempFile(prefix, ".tmp", tempFolder);
+            file.deleteOnExit();
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            out = ByteBuffer.allocate(WRITE_BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        runStart = position;
+        runSize = 0;
+    }
+
+    /**
+     * @param value written as an int if values take 4 bytes
+     */
+    public void add(long key, long value) throws IOException {
+        if (out.remaining() < entryBytes) {
+            writeFully();
+        }
+        out.putLong(key);
+        if (valueBytes == 8) {
+            out.putLong(value);
+        } else {
+            out.putInt((int) value);
+        }
+        runSize++;
+    }
+
+    public void finishRun() throws IOException {
+        writeFully();
+        runs.add(new long[]{runStart, runSize});
+    }
+
+    private void writeFully() throws IOException {
+        out.flip();
+        while (out.hasRemaining()) {
+            position += channel.write(out, position);
+        }
+        out.clear();
+    }
+
+    public boolean isEmpty() {
+        return runs.isEmpty();
+    }
+
+    /**
+     * @param memoryBudget bytes shared by the read buffers of the runs
+     * @return a reader per non-empty run, each on its first entry, ordered by key, then by run
+     */
+    public PriorityQueue<Reader> merge(long memoryBudget) throws IOException {
+        long bufferEntries = Math.max(64, Math.min(READ_BUFFER_ENTRIES,
+                memoryBudget / ((long) entryBytes * Math.max(1, runs.size()))));
+        PriorityQueue<Reader> queue = new PriorityQueue<>(Math.max(1, runs.size()), (a, b) -> a.key != b.key
+                ? Long.compare(a.key, b.key) : Integer.compare(a.run, b.run));
+        for (int r = 0; r < runs.size(); r++) {
+            long[] run = runs.get(r);
+            Reader reader = new Reader(r, run[0], run[1], (int) Math.min(bufferEntries, run[1]));
+            if (reader.advance()) {
+                queue.add(reader);
+            }
+        }
+        return queue;
+    }
+
+    /**
+     * Forgets the runs; the file is overwritten by the next ones
+     */
+    public void clear() {
+        runs.clear();
+        position = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        runs.clear();
+        out = null;
+        if (channel != null) {
+            channel.close();
+            channel = null;
+            if (!file.delete()) {
+                System.err.println("Unable to delete " + file.getPath());
+            }
+        }
+    }
+
+    public class Reader {
+
+        private final int run;
+        private final ByteBuffer buffer;
+        private long readPosition;
+        private long remaining;
+        private long key;
+        private long value;
+
+        private Reader(int run, long position, long numEntries, int bufferEntries) {
+            this.run = run;
+            this.buffer = ByteBuffer.allocate(bufferEntries * entryBytes).order(ByteOrder.LITTLE_ENDIAN);
+            this.readPosition = position;
+            this.remaining = numEntries;
+            buffer.limit(0);
+        }
+
+        /**
+         * @return false once the run is exhausted
+         */
+        public boolean advance() throws IOException {
+            if (remaining == 0) return false;
+            if (!buffer.hasRemaining()) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), remaining * entryBytes));
+                while (buffer.hasRemaining()) {
+                    int read = channel.read(buffer, readPosition);
+                    if (read < 0) throw new IOException("Truncated spill file " + file);
+                    readPosition += read;
+                }
+                buffer.flip();
+            }
+            key = buffer.getLong();
+            value = valueBytes == 8 ? buffer.getLong() : buffer.getInt();
+            remaining--;
+            return true;
+        }
+
+        public long getKey() {
+            return key;
+        }
+
+        /**
+         * @return the value, sign-extended if it takes 4 bytes
+         */
+        public long getValue() {
+            return value;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package emt.utils.sampling;
+
+import java.util.SplittableRandom;
+
+/**
+ * Draws from Binomial(n, p) in expected constant time: inversion when n * min(p, 1 - p) is small,
+ * otherwise the BTPE algorithm of Kachitvichyanukul and Schmeiser (1988).
+ */
+public class BinomialSampler {
+
+    private static final double INVERSION_LIMIT = 30.0;
+
+    private final SplittableRandom random;
+
+    // BTPE setup, cached for the last (n, p) seen
+    private int savedN = -1;
+    private double savedP = -1;
+    private double r, q, fm, p1, xm, xl, xr, c, laml, lamr, p2, p3, p4;
+    private int m;
+
+    public BinomialSampler(SplittableRandom random) {
+        this.random = random;
+    }
+
+    public BinomialSampler(long seed) {
+        this(new SplittableRandom(seed));
+    }
+
+    public SplittableRandom getRandom() {
+        return random;
+    }
+
+    public int sample(int n, double p) {
+        if (n <= 0 || p <= 0) return 0;
+        if (p >= 1) return n;
+
+        if (p <= 0.5) {
+            if (p * n <= INVERSION_LIMIT) {
+                return inversion(n, p);
+            }
+            return btpe(n, p);
+        } else {
+            double q = 1.0 - p;
+            if (q * n <= INVERSION_LIMIT) {
+                return n - inversion(n, q);
+            }
+            return n - btpe(n, q);
+        }
+    }
+
+    private int inversion(int n, double p) {
+        double q = 1.0 - p;
+        double qn = Math.exp(n * Math.log(q));
+        double np = n * p;
+        int bound = (int) Math.min(n, np + 10.0 * Math.sqrt(np * q + 1));
+
+        int x = 0;
+        double px = qn;
+        double u = random.nextDouble();
+        while (u > px) {
+            x++;
+            if (x > bound) {
+                x = 0;
+                px = qn;
+                u = random.nextDouble();
+            } else {
+                u -= px;
+                px = ((n - x + 1) * p * px) / (x * q);
+            }
+        }
+        return x;
+    }
+
+    private void setupBTPE(int n, double p) {
+        savedN = n;
+        savedP = p;
+        r = Math.min(p, 1.0 - p);
+        q = 1.0 - r;
+        fm = n * r + r;
+        m = (int) Math.floor(fm);
+        p1 = Math.floor(2.195 * Math.sqrt(n * r * q) - 4.6 * q) + 0.5;
+        xm = m + 0.5;
+        xl = xm - p1;
+        xr = xm + p1;
+        c = 0.134 + 20.5 / (15.3 + m);
+        double a = (fm - xl) / (fm - xl * r);
+        laml = a * (1.0 + a / 2.0);
+        a = (xr - fm) / (xr * q);
+        lamr = a * (1.0 + a / 2.0);
+        p2 = p1 * (1.0 + 2.0 * c);
+        p3 = p2 + c / laml;
+        p4 = p3 + c / lamr;
+    }
+
+    /**
+     * Requires p <= 0.5 and n * p > 30
+     */
+    private int btpe(int n, double p) {
+        if (n != savedN || p != savedP) {
+            setupBTPE(n, p);
+        }
+        double nrq = n * r * q;
+
+        while (true) {
+            double u = random.nextDouble() * p4;
+            double v = random.nextDouble();
+            int y;
+
+            if (u <= p1) {
+                // triangular region, always accepted
+                return (int) Math.floor(xm - p1 * v + u);
+            } else if (u <= p2) {
+                // parallelograms
+                double x = xl + (u - p1) / c;
+                v = v * c + 1.0 - Math.abs(m - x + 0.5) / p1;
+                if (v > 1.0) continue;
+                y = (int) Math.floor(x);
+            } else if (u <= p3) {
+                // left exponential tail
+                y = (int) Math.floor(xl + Math.log(v) / laml);
+                if (y < 0 || v == 0.0) continue;
+                v = v * (u - p2) * laml;
+            } else {
+                // right exponential tail
+                y = (int) Math.floor(xr - Math.log(v) / lamr);
+                if (y > n || v == 0.0) continue;
+                v = v * (u - p3) * lamr;
+            }
+
+            int k = Math.abs(y - m);
+            if (k <= 20 || k >= nrq / 2.0 - 1) {
+                // explicit evaluation of f(y) / f(m)
+                double s = r / q;
+                double a = s * (n + 1);
+                double f = 1.0;
+                if (m < y) {
+                    for (int i = m + 1; i <= y; i++) {
+                        f *= (a / i - s);
+                    }
+                } else if (m > y) {
+                    for (int i = y + 1; i <= m; i++) {
+                        f /= (a / i - s);
+                    }
+                }
+                if (v <= f) return y;
+                continue;
+            }
+
+            // squeeze using upper and lower bounds on log(f(y))
+            double rho = (k / nrq) * ((k * (k / 3.0 + 0.625) + 0.16666666666666666) / nrq + 0.5);
+            double t = -((double) k * k) / (2 * nrq);
+            double logV = Math.log(v);
+            if (logV < t - rho) return y;
+            if (logV > t + rho) continue;
+
+            double x1 = y + 1;
+            double f1 = m + 1;
+            double z = n + 1 - m;
+            double w = n - y + 1;
+            if (logV <= xm * Math.log(f1 / x1)
+                    + (n - m + 0.5) * Math.log(z / w)
+                    + (y - m) * Math.log(w * r / (x1 * q))
+                    + stirlingCorrection(f1) + stirlingCorrection(z)
+                    + stirlingCorrection(x1) + stirlingCorrection(w)) {
+                return y;
+            }
+        }
+    }
+
+    private static double stirlingCorrection(double x) {
+        double x2 = x * x;
+        return (13680. - (462. - (132. - (99. - 140. / x2) / x2) / x2) / x2) / x / 166320.;
+    }
+}
@@ -0,0 +1,104 @@
+package emt.utils.sampling;
+
+import org.apache.commons.math3.special.Gamma;
+
+import java.util.SplittableRandom;
+
+/**
+ * Draws from the hypergeometric distribution: the number of "good" items among {@code sample} items
+ * drawn without replacement from {@code good + bad}. Small samples are drawn item by item; larger ones use
+ * the ratio-of-uniforms method HRUA of Stadlober (1989), following numpy's implementation.
+ */
+public class HypergeometricSampler {
+
+    private static final double D1 = 1.7155277699214135;
+    private static final double D2 = 0.8989161620588988;
+
+    private final SplittableRandom random;
+
+    public HypergeometricSampler(SplittableRandom random) {
+        this.random = random;
+    }
+
+    public HypergeometricSampler(long seed) {
+        this(new SplittableRandom(seed));
+    }
+
+    public long sample(long good, long bad, long sample) {
+        if (sample <= 0 || good <= 0) return 0;
+        if (bad <= 0) return Math.min(good, sample);
+        if (sample >= good + bad) return good;
+
+        if (sample >= 10 && sample <= good + bad - 10) {
+            return hrua(good, bad, sample);
+        }
+        return sequential(good, bad, sample);
+    }
+
+    private long sequential(long good, long bad, long sample) {
+        long total = good + bad;
+        long computedSample = sample > total / 2 ? total - sample : sample;
+        long remainingTotal = total;
+        long remainingGood = good;
+
+        while (computedSample > 0 && remainingGood > 0 && remainingTotal > remainingGood) {
+            if (random.nextLong(remainingTotal) < remainingGood) {
+                remainingGood--;
+            }
+            remainingTotal--;
+            computedSample--;
+        }
+        if (remainingTotal == remainingGood) {
+            // only good items are left
+            remainingGood -= computedSample;
+        }
+        return sample > total / 2 ? remainingGood : good - remainingGood;
+    }
+
+    private long hrua(long good, long bad, long sample) {
+        long popSize = good + bad;
+        long computedSample = Math.min(sample, popSize - sample);
+        long minGoodBad = Math.min(good, bad);
+        long maxGoodBad = Math.max(good, bad);
+
+        double p = ((double) minGoodBad) / popSize;
+        double q = ((double) maxGoodBad) / popSize;
+        double mu = computedSample * p;
+        double a = mu + 0.5;
+        double var = ((double) (popSize - computedSample)) * computedSample * p * q / (popSize - 1);
+        double c = Math.sqrt(var + 0.5);
+        double h = D1 * c + D2;
+        long m = (long) Math.floor((double) (computedSample + 1) * (minGoodBad + 1) / (popSize + 2));
+        double g = logFactorial(m) + logFactorial(minGoodBad - m) + logFactorial(computedSample - m)
+                + logFactorial(maxGoodBad - computedSample + m);
+        double b = Math.min(Math.min(computedSample, minGoodBad) + 1, Math.floor(a + 16 * c));
+
+        long k;
+        while (true) {
+            double u = random.nextDouble();
+            double v = random.nextDouble();
+            double x = a + h * (v - 0.5) / u;
+            if (x < 0.0 || x >= b) continue;
+
+            k = (long) Math.floor(x);
+            double gp = logFactorial(k) + logFactorial(minGoodBad - k) + logFactorial(computedSample - k)
+                    + logFactorial(maxGoodBad - computedSample + k);
+            double t = g - gp;
+            if (u * (4.0 - u) - 3.0 <= t) break;
+            if (u * (u - t) >= 1) continue;
+            if (2.0 * Math.log(u) <= t) break;
+        }
+
+        if (good > bad) {
+            k = computedSample - k;
+        }
+        if (computedSample < sample) {
+            k = good - k;
+        }
+        return k;
+    }
+
+    private static double logFactorial(long k) {
+        return Gamma.logGamma(k + 1.0);
+    }
+}
@@ -0,0 +1,274 @@
+package emt.utils.validation;
+
+import emt.main.hic.BlockIndexEntry;
+import emt.main.hic.BlockRecords;
+import emt.main.hic.HiCFileIndex;
+import emt.main.hic.ZoomIndex;
+import emt.utils.common.ProgressMeter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.DoubleAdder;
+
+/**
+ * Checks every block of every matrix and zoom (base-pair and fragment) of a local .hic file. The blocks are
+ * read in file order, a batch of neighbouring blocks per read, by a single thread, and the batches are
+ * decompressed and decoded on a pool of threads. The compressed bytes in flight are capped by a memory budget,
+ * so the reader waits for the decoders rather than buffering the file.
+ * <p>
+ * The block index must not point outside of the file or to overlapping blocks; each block must decode to the
+ * number of records stated in its header, with its contacts inside their chromosomes; and the counts of each
+ * zoom must add up to the total stored in the matrix header.
+ */
+public class BlockScanner {
+
+    private static final int BATCH_BYTES = 8 << 20;
+    private static final long MAX_GAP = 1 << 16;
+    private static final double SUM_TOLERANCE = 1e-4;
+
+    private final HiCFileIndex hicIndex;
+    private final int numThreads;
+    private final int memoryBudget;
+
+    /**
+     * @param memoryBudget bytes of compressed blocks read but not yet decoded
+     */
+    public BlockScanner(HiCFileIndex hicIndex, int numThreads, long memoryBudget) {
+        this.hicIndex = hicIndex;
+        this.numThreads = numThreads;
+        this.memoryBudget = (int) Math.max(BATCH_BYTES, Math.min(memoryBudget, Integer.MAX_VALUE));
+    }
+
+    public void scan(ValidationReport report) throws IOException {
+        List<ZoomState> zooms = new ArrayList<>();
+        List<ScanBlock> blocks = new ArrayList<>();
+        for (String key : hicIndex.getMatrixKeys()) {
+            for (ZoomIndex zoomIndex : hicIndex.getMatrix(key)) {
+                ZoomState zoom = new ZoomState(zoomIndex);
+                zooms.add(zoom);
+                for (BlockIndexEntry entry : zoomIndex.getBlocks()) {
+                    blocks.add(new ScanBlock(entry, zoom));
+                }
+            }
+        }
+        blocks.sort(Comparator.comparingLong(block -> block.entry.getPosition()));
+        List<List<ScanBlock>> batches = getBatches(blocks, report);
+        for (ZoomState zoom : zooms) {
+            if (zoom.remaining.get() == 0) {
+                zoom.checkSum(report);
+            }
+        }
+
+        long totalBytes = 0;
+        for (List<ScanBlock> batch : batches) {
+            totalBytes += getSpan(batch);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        Semaphore memory = new Semaphore(memoryBudget);
+        try (ProgressMeter progress = new ProgressMeter("scan", "block batches", batches.size(), totalBytes);
+             FileChannel channel = FileChannel.open(new File(hicIndex.getPath()).toPath(), StandardOpenOption.READ)) {
+            try {
+                for (List<ScanBlock> batch : batches) {
+                    int span = (int) getSpan(batch);
+                    int cost = Math.min(span, memoryBudget);
+                    memory.acquireUninterruptibly(cost);
+                    byte[] data = new byte[span];
+                    try {
+                        readFully(channel, data, batch.get(0).entry.getPosition());
+                    } catch (IOException e) {
+                        memory.release(cost);
+                        throw e;
+                    }
+                    pool.execute(() -> {
+                        try {
+                            checkBatch(batch, data, progress, report);
+                        } finally {
+                            memory.release(cost);
+                        }
+                    });
+                }
+            } finally {
+                pool.shutdown();
+                try {
+                    pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Groups the blocks, in file order, into runs close enough to be read at once, reporting (and leaving out)
+     * those that lie outside of the file or overlap the previous one
+     */
+    private List<List<ScanBlock>> getBatches(List<ScanBlock> blocks, ValidationReport report) {
+        long fileLength = new File(hicIndex.getPath()).length();
+        List<List<ScanBlock>> batches = new ArrayList<>();
+        List<ScanBlock> batch = new ArrayList<>();
+        long batchStart = 0, previousEnd = 0;
+        for (int i = 0; i < blocks.size(); i++) {
+            ScanBlock block = blocks.get(i);
+            block.order = i;
+            if (block.zoom.order < 0) {
+                block.zoom.order = i;
+            }
+            long start = block.entry.getPosition(), end = start + block.entry.getSize();
+            if (start < 0 || block.entry.getSize() < 0 || end > fileLength) {
+                report.error(i, block.getDescription() + " lies outside of the file");
+                block.zoom.skip(report);
+                continue;
+            }
+            if (start < previousEnd) {
+                report.error(i, block.getDescription() + " overlaps the previous block");
+                block.zoom.skip(report);
+                continue;
+            }
+            if (!batch.isEmpty() && (start - previousEnd > MAX_GAP || end - batchStart > BATCH_BYTES)) {
+                batches.add(batch);
+                batch = new ArrayList<>();
+            }
+            if (batch.isEmpty()) {
+                batchStart = start;
+            }
+            batch.add(block);
+            previousEnd = end;
+        }
+        if (!batch.isEmpty()) {
+            batches.add(batch);
+        }
+        return batches;
+    }
+
+    private static long getSpan(List<ScanBlock> batch) {
+        BlockIndexEntry last = batch.get(batch.size() - 1).entry;
+        return last.getPosition() + last.getSize() - batch.get(0).entry.getPosition();
+    }
+
+    private static void readFully(FileChannel channel, byte[] data, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) throw new IOException("Unexpected end of file at " + (position + buffer.position()));
+        }
+    }
+
+    private void checkBatch(List<ScanBlock> batch, byte[] data, ProgressMeter progress, ValidationReport report) {
+        long start = batch.get(0).entry.getPosition();
+        ProgressMeter.Unit unit = progress.start("blocks at " + start, getSpan(batch));
+        for (ScanBlock block : batch) {
+            unit.addBlocks(1);
+            unit.addBytesRead(block.entry.getSize());
+            try {
+                int offset = (int) (block.entry.getPosition() - start);
+                BlockRecords records = hicIndex.decodeBlock(block.entry, data, offset);
+                unit.addRecords(records.size());
+                block.zoom.check(block, records, report);
+            } catch (Exception e) {
+                report.error(block.order, "unable to read " + block.getDescription() + ": "
+                        + e.getLocalizedMessage());
+                block.zoom.skip(report);
+            }
+        }
+        unit.finish();
+    }
+
+    private static class ScanBlock {
+        private final BlockIndexEntry entry;
+        private final ZoomState zoom;
+        private int order;
+
+        private ScanBlock(BlockIndexEntry entry, ZoomState zoom) {
+            this.entry = entry;
+            this.zoom = zoom;
+        }
+
+        private String getDescription() {
+            return "block " + entry.getNumber() + " of " + zoom.getDescription();
+        }
+    }
+
+    /**
+     * Counts of a zoom, summed as its blocks are decoded; the sum is checked once the last one is done
+     */
+    private class ZoomState {
+        private final ZoomIndex zoomIndex;
+        private final long maxBinX, maxBinY;
+        private final DoubleAdder sum = new DoubleAdder();
+        private final AtomicInteger remaining;
+        private volatile boolean isComplete = true;
+        private long order = -1;
+
+        private ZoomState(ZoomIndex zoomIndex) {
+            this.zoomIndex = zoomIndex;
+            long[] lengths = hicIndex.getChromosomeLengths();
+            boolean isBP = zoomIndex.getUnit().equals("BP");
+            maxBinX = isBP ? lengths[zoomIndex.getChr1Index()] / zoomIndex.getBinSize() : Integer.MAX_VALUE;
+            maxBinY = isBP ? lengths[zoomIndex.getChr2Index()] / zoomIndex.getBinSize() : Integer.MAX_VALUE;
+            remaining = new AtomicInteger(zoomIndex.getBlocks().size());
+        }
+
+        private String getDescription() {
+            String[] names = hicIndex.getChromosomeNames();
+            return names[zoomIndex.getChr1Index()] + "-" + names[zoomIndex.getChr2Index()] + " at "
+                    + zoomIndex.getBinSize() + " " + zoomIndex.getUnit();
+        }
+
+        private void check(ScanBlock block, BlockRecords records, ValidationReport report) {
+            double blockSum = 0;
+            for (int i = 0; i < records.size(); i++) {
+                int x = records.getBinX(i), y = records.getBinY(i);
+                float counts = records.getCounts(i);
+                if (x < 0 || x > maxBinX || y < 0 || y > maxBinY) {
+                    report.error(block.order, block.getDescription() + ": bin (" + x + ", " + y
+                            + ") outside of the chromosomes");
+                    skip(report);
+                    return;
+                }
+                if (Float.isNaN(counts) || Float.isInfinite(counts)) {
+                    report.error(block.order, block.getDescription() + ": invalid counts " + counts + " at bin ("
+                            + x + ", " + y + ")");
+                    skip(report);
+                    return;
+                }
+                blockSum += counts;
+            }
+            sum.add(blockSum);
+            if (remaining.decrementAndGet() == 0) {
+                checkSum(report);
+            }
+        }
+
+        /**
+         * Counts a block that could not be checked; the sum of the zoom is then unknown
+         */
+        private void skip(ValidationReport report) {
+            isComplete = false;
+            if (remaining.decrementAndGet() == 0) {
+                checkSum(report);
+            }
+        }
+
+        private void checkSum(ValidationReport report) {
+            if (!isComplete) return;
+            double expected = zoomIndex.getSumCounts();
+            double actual = sum.sum();
+            if (Math.abs(actual - expected) > SUM_TOLERANCE * Math.max(1, Math.abs(expected))) {
+                report.error(order, getDescription() + ": the blocks hold " + actual
+                        + " counts but the matrix header states " + expected);
+            }
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package emt.utils.validation;
+
+import emt.main.hic.BlockIndexEntry;
+import emt.main.hic.BlockRecords;
+import emt.main.hic.HiCFileIndex;
+import emt.main.hic.ZoomIndex;
+import emt.utils.common.ProgressMeter;
+import javastraw.reader.Dataset;
+import javastraw.reader.DatasetReader;
+import javastraw.reader.basics.Chromosome;
+import javastraw.reader.block.Block;
+import javastraw.reader.block.ContactRecord;
+import javastraw.reader.mzd.Matrix;
+import javastraw.reader.mzd.MatrixZoomData;
+import javastraw.reader.type.HiCZoom;
+import javastraw.reader.type.NormalizationType;
+import javastraw.tools.ParallelizationTools;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decodes blocks of every chromosome pair and zoom on a pool of threads, checking that each block can be
+ * decompressed and decoded and that its contacts lie inside their chromosomes. Failures are added to a report
+ * instead of stopping the check. Blocks are split into small batches, so one large matrix is checked by all
+ * the threads. Local files are read through their block index, each block being decoded independently of the
+ * caches of the reader; remote files go through the reader.
+ */
+public class BlockValidator {
+
+    private static final int BLOCKS_PER_TASK = 64;
+
+    private final Dataset ds;
+    private final DatasetReader reader;
+    private final HiCFileIndex hicIndex;
+    private final NormalizationType none;
+    private final int numThreads;
+    private final int blocksPerZoom;
+
+    /**
+     * @param hicIndex      block index of the file, or null to read the blocks through the reader
+     * @param blocksPerZoom number of blocks checked per zoom of each pair, evenly spread; 0 checks all of them
+     */
+    public BlockValidator(Dataset ds, DatasetReader reader, HiCFileIndex hicIndex, int numThreads,
+                          int blocksPerZoom) {
+        this.ds = ds;
+        this.reader = reader;
+        this.hicIndex = hicIndex;
+        this.none = ds.getNormalizationHandler().getNormTypeFromString("NONE");
+        this.numThreads = numThreads;
+        this.blocksPerZoom = blocksPerZoom;
+    }
+
+    /**
+     * @param chromosomes chromosomes sorted by index
+     */
+    public void validate(Chromosome[] chromosomes, List<HiCZoom> zooms, ValidationReport report) {
+        List<BlockTask> tasks = listBlocks(chromosomes, zooms, report);
+        long totalWeight = 0;
+        for (BlockTask task : tasks) {
+            totalWeight += task.getWeight();
+        }
+
+        AtomicInteger index = new AtomicInteger(0);
+        try (ProgressMeter progress = new ProgressMeter("validation", "block batches", tasks.size(), totalWeight)) {
+            ParallelizationTools.launchParallelizedCode(numThreads, () -> {
+                int i = index.getAndIncrement();
+                while (i < tasks.size()) {
+                    BlockTask task = tasks.get(i);
+                    ProgressMeter.Unit unit = progress.start(task.getDescription(), task.getWeight());
+                    for (int b = 0; b < task.numbers.size(); b++) {
+                        checkBlock(task, b, unit, report);
+                    }
+                    unit.finish();
+                    i = index.getAndIncrement();
+                }
+            });
+        }
+    }
+
+    /**
+     * Looks up the matrix and blocks of every pair and zoom in parallel, warning about the missing ones
+     *
+     * @return batches of blocks to check, in the order of the pairs and zooms
+     */
+    private List<BlockTask> listBlocks(Chromosome[] chromosomes, List<HiCZoom> zooms, ValidationReport report) {
+        List<Chromosome[]> pairs = new ArrayList<>();
+        for (int i = 0; i < chromosomes.length; i++) {
+            for (int j = i; j < chromosomes.length; j++) {
+                pairs.add(new Chromosome[]{chromosomes[i], chromosomes[j]});
+            }
+        }
+
+        ConcurrentLinkedQueue<BlockTask> tasks = new ConcurrentLinkedQueue<>();
+        AtomicInteger index = new AtomicInteger(0);
+        ParallelizationTools.launchParallelizedCode(numThreads, () -> {
+            int i = index.getAndIncrement();
+            while (i < pairs.size()) {
+                Chromosome chr1 = pairs.get(i)[0], chr2 = pairs.get(i)[1];
+                String name = chr1.getName() + "-" + chr2.getName();
+                try {
+                    Matrix matrix = ds.getMatrix(chr1, chr2);
+                    if (matrix == null) {
+                        report.warn((long) i * zooms.size(), "no reads in " + name);
+                    } else {
+                        for (int z = 0; z < zooms.size(); z++) {
+                            HiCZoom zoom = zooms.get(z);
+                            long order = (long) i * zooms.size() + z;
+                            MatrixZoomData zd = matrix.getZoomData(zoom);
+                            if (zd == null) {
+                                report.warn(order, "no reads in " + name + " at resolution " + zoom.getBinSize());
+                            } else {
+                                addTasks(tasks, order, chr1, chr2, zoom, zd.getKey());
+                            }
+                        }
+                    }
+                } catch (Exception e) {
+                    report.error((long) i * zooms.size(), "unable to read the matrix of " + name + ": "
+                            + e.getLocalizedMessage());
+                }
+                i = index.getAndIncrement();
+            }
+        });
+
+        List<BlockTask> sorted = new ArrayList<>(tasks);
+        sorted.sort(Comparator.comparingLong((BlockTask task) -> task.order).thenComparingInt(task -> task.batch));
+        return sorted;
+    }
+
+    private void addTasks(ConcurrentLinkedQueue<BlockTask> tasks, long order, Chromosome chr1, Chromosome chr2,
+                          HiCZoom zoom, String key) throws IOException {
+        List<Integer> numbers = new ArrayList<>();
+        List<BlockIndexEntry> entries = null;
+        ZoomIndex zoomIndex = hicIndex == null ? null
+                : hicIndex.getZoomIndex(chr1.getIndex(), chr2.getIndex(), zoom.getBinSize());
+        if (zoomIndex != null) {
+            entries = sample(zoomIndex.getBlocks());
+            for (BlockIndexEntry entry : entries) {
+                numbers.add(entry.getNumber());
+            }
+        } else {
+            numbers = sample(reader.getBlockNumbers(key));
+        }
+
+        for (int start = 0, batch = 0; start < numbers.size(); start += BLOCKS_PER_TASK, batch++) {
+            int end = Math.min(start + BLOCKS_PER_TASK, numbers.size());
+            tasks.add(new BlockTask(order, batch, chr1, chr2, zoom, key, numbers.subList(start, end),
+                    entries == null ? null : entries.subList(start, end)));
+        }
+    }
+
+    /**
+     * @return blocksPerZoom items evenly spread from the first to the last, or all of them
+     */
+    private <T> List<T> sample(List<T> items) {
+        if (blocksPerZoom < 1 || items.size() <= blocksPerZoom) {
+            return new ArrayList<>(items);
+        }
+        List<T> sample = new ArrayList<>(blocksPerZoom);
+        for (int k = 0; k < blocksPerZoom; k++) {
+            int i = blocksPerZoom == 1 ? 0 : (int) ((long) k * (items.size() - 1) / (blocksPerZoom - 1));
+            sample.add(items.get(i));
+        }
+        return sample;
+    }
+
+    private void checkBlock(BlockTask task, int b, ProgressMeter.Unit unit, ValidationReport report) {
+        int number = task.numbers.get(b);
+        String description = "block " + number + " of " + task.getDescription();
+        long maxBinX = task.chr1.getLength() / task.zoom.getBinSize();
+        long maxBinY = task.chr2.getLength() / task.zoom.getBinSize();
+        try {
+            unit.addBlocks(1);
+            if (task.entries != null) {
+                BlockIndexEntry entry = task.entries.get(b);
+                unit.addBytesRead(entry.getSize());
+                BlockRecords records = hicIndex.readBlock(entry);
+                unit.addRecords(records.size());
+                for (int i = 0; i < records.size(); i++) {
+                    String problem = checkRecord(records.getBinX(i), records.getBinY(i), records.getCounts(i),
+                            maxBinX, maxBinY);
+                    if (problem != null) {
+                        report.error(task.order, description + ": " + problem);
+                        return;
+                    }
+                }
+            } else {
+                Block block = reader.readNormalizedBlock(number, task.key, none, task.chr1.getIndex(),
+                        task.chr2.getIndex(), task.zoom);
+                if (block == null) {
+                    report.error(task.order, "unable to read " + description);
+                    return;
+                }
+                List<ContactRecord> records = block.getContactRecords();
+                unit.addRecords(records.size());
+                for (ContactRecord record : records) {
+                    String problem = checkRecord(record.getBinX(), record.getBinY(), record.getCounts(),
+                            maxBinX, maxBinY);
+                    if (problem != null) {
+                        report.error(task.order, description + ": " + problem);
+                        return;
+                    }
+                }
+            }
+        } catch (Exception e) {
+            report.error(task.order, "unable to read " + description + ": " + e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * @return what is wrong with the record, or null if it is valid
+     */
+    private static String checkRecord(int binX, int binY, float counts, long maxBinX, long maxBinY) {
+        if (binX < 0 || binX > maxBinX || binY < 0 || binY > maxBinY) {
+            return "bin (" + binX + ", " + binY + ") outside of the chromosomes";
+        }
+        if (Float.isNaN(counts) || Float.isInfinite(counts)) {
+            return "invalid counts " + counts + " at bin (" + binX + ", " + binY + ")";
+        }
+        return null;
+    }
+
+    private static class BlockTask {
+        private final long order;
+        private final int batch;
+        private final Chromosome chr1, chr2;
+        private final HiCZoom zoom;
+        private final String key;
+        private final List<Integer> numbers;
+        private final List<BlockIndexEntry> entries;
+
+        /**
+         * @param entries index entries of the blocks, or null if they are read through the reader
+         */
+        private BlockTask(long order, int batch, Chromosome chr1, Chromosome chr2, HiCZoom zoom, String key,
+                          List<Integer> numbers, List<BlockIndexEntry> entries) {
+            this.order = order;
+            this.batch = batch;
+            this.chr1 = chr1;
+            this.chr2 = chr2;
+            this.zoom = zoom;
+            this.key = key;
+            this.numbers = numbers;
+            this.entries = entries;
+        }
+
+        /**
+         * @return compressed bytes of the blocks, or their number if unknown
+         */
+        private long getWeight() {
+            if (entries == null) return numbers.size();
+            long total = 0;
+            for (BlockIndexEntry entry : entries) {
+                total += entry.getSize();
+            }
+            return total;
+        }
+
+        private String getDescription() {
+            return chr1.getName() + "-" + chr2.getName() + " at resolution " + zoom.getBinSize();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package emt.utils.validation;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Warnings and errors found by checks running on several threads. Each entry carries the position of the item
+ * it concerns (e.g. a chromosome pair) in the canonical order, so the report reads the same whatever the number
+ * of threads.
+ */
+public class ValidationReport {
+
+    private final ConcurrentLinkedQueue<Entry> entries = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger numErrors = new AtomicInteger(0);
+
+    /**
+     * @param order position of the item in the canonical order
+     */
+    public void warn(long order, String message) {
+        entries.add(new Entry(false, order, message));
+    }
+
+    public void error(long order, String message) {
+        entries.add(new Entry(true, order, message));
+        numErrors.incrementAndGet();
+    }
+
+    public int getNumErrors() {
+        return numErrors.get();
+    }
+
+    public int getNumWarnings() {
+        return entries.size() - numErrors.get();
+    }
+
+    public boolean hasErrors() {
+        return numErrors.get() > 0;
+    }
+
+    /**
+     * Prints the entries to stderr, warnings first, each in the canonical order
+     */
+    public void print() {
+        List<Entry> sorted = new ArrayList<>(entries);
+        sorted.sort(Comparator.comparing((Entry entry) -> entry.isError).thenComparingLong(entry -> entry.order));
+        for (Entry entry : sorted) {
+            System.err.println((entry.isError ? "Error: " : "Warning: ") + entry.message);
+        }
+        System.out.println(getNumErrors() + " errors, " + getNumWarnings() + " warnings");
+    }
+
+    private static class Entry {
+        private final boolean isError;
+        private final long order;
+        private final String message;
+
+        private Entry(boolean isError, long order, String message) {
+            this.isError = isError;
+            this.order = order;
+            this.message = message;
+        }
+    }
+}
@@ -1,202 +1,539 @@
 package emt.utils.validation;
 
+import emt.main.Fingerprint;
+import emt.main.PixelMerger;
+import emt.utils.common.ProgressMeter;
 import javastraw.reader.Dataset;
 import javastraw.reader.basics.Chromosome;
+import javastraw.reader.block.ContactRecord;
 import javastraw.reader.datastructures.ListOfDoubleArrays;
 import javastraw.reader.expected.ExpectedValueFunction;
+import javastraw.reader.mzd.Matrix;
+import javastraw.reader.mzd.MatrixZoomData;
 import javastraw.reader.norm.NormalizationVector;
 import javastraw.reader.type.HiCZoom;
 import javastraw.reader.type.NormalizationHandler;
 import javastraw.reader.type.NormalizationType;
+import javastraw.tools.ParallelizationTools;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.DoubleAdder;
 
+/**
+ * Compares two datasets: genomes, normalization types, resolutions, norm and expected vectors, and raw counts.
+ * Every difference is added to a report instead of ending the run, so one pass lists all of them. The vector and
+ * raw-count checks are split into independent tasks run on a pool of threads; each expected vector function is
+ * loaded once per normalization and resolution, not once per chromosome. With fail-fast, the first difference
+ * cancels the remaining work: running tasks stop at their next check of the flag and later checks are skipped.
+ */
 public class ValidationTools {
 
+    private static final double MAX_MEAN_ERROR = 1e-3;
 
-    public static void validateGenomes(Dataset ds1, Dataset ds2) {
-        if (ds1.getGenomeId() == null || ds2.getGenomeId() == null) {
-            System.err.println("Null genome ID");
-            System.exit(17);
-        }
+    private final Dataset ds1, ds2;
+    private final int numThreads;
+    private final boolean failFast;
+    private final ValidationReport report = new ValidationReport();
+    private final AtomicBoolean cancelled = new AtomicBoolean(false);
+    private final Chromosome[] chromosomes;
+    private final List<HiCZoom> zooms;
+    private final List<NormalizationType> norms;
+    private long nextOrder = 0;
 
-        System.out.println("Genome1 ID: " + ds1.getGenomeId());
-        System.out.println("Genome2 ID: " + ds2.getGenomeId());
+    /**
+     * @param failFast stop all the checks at the first difference
+     */
+    public ValidationTools(Dataset ds1, Dataset ds2, int numThreads, boolean failFast) {
+        this.ds1 = ds1;
+        this.ds2 = ds2;
+        this.numThreads = numThreads;
+        this.failFast = failFast;
+        chromosomes = ds1.getChromosomeHandler().getChromosomeArrayWithoutAllByAll();
+        Arrays.sort(chromosomes, Comparator.comparingInt(Chromosome::getIndex));
+        zooms = ds1.getBpZooms();
+        norms = ds1.getNormalizationTypes();
+    }
 
-        if (ds1.getChromosomeHandler().size() != ds2.getChromosomeHandler().size()) {
-            System.err.println("Mismatch in the number of chromosomes");
-            System.exit(18);
+    public ValidationReport getReport() {
+        return report;
+    }
+
+    public boolean isCancelled() {
+        return cancelled.get();
+    }
+
+    /**
+     * @return the first of n positions in the report, so the entries of each check follow those of the previous one
+     */
+    private long claimOrders(int n) {
+        long base = nextOrder;
+        nextOrder += n;
+        return base;
+    }
+
+    private void fail(long order, String message) {
+        report.error(order, message);
+        if (failFast) {
+            cancelled.set(true);
         }
+    }
 
+    public void validateGenomes() {
+        if (cancelled.get()) return;
+        int numErrors = report.getNumErrors();
         Chromosome[] chromsArray1 = ds1.getChromosomeHandler().getChromosomeArray();
         Chromosome[] chromsArray2 = ds2.getChromosomeHandler().getChromosomeArray();
-        Arrays.sort(chromsArray1, Comparator.comparing(Chromosome::getIndex));
-        Arrays.sort(chromsArray2, Comparator.comparing(Chromosome::getIndex));
+        long order = claimOrders(chromsArray1.length + 2);
+        if (ds1.getGenomeId() == null || ds2.getGenomeId() == null) {
+            fail(order, "Null genome ID");
+        } else {
+            System.out.println("Genome1 ID: " + ds1.getGenomeId());
+            System.out.println("Genome2 ID: " + ds2.getGenomeId());
+        }
 
+        if (ds1.getChromosomeHandler().size() != ds2.getChromosomeHandler().size()) {
+            fail(order + 1, "Mismatch in the number of chromosomes");
+            return;
+        }
 
+        Arrays.sort(chromsArray1, Comparator.comparing(Chromosome::getIndex));
+        Arrays.sort(chromsArray2, Comparator.comparing(Chromosome::getIndex));
         for (int c = 0; c < chromsArray1.length; c++) {
-
             if (chromsArray1[c].getIndex() != chromsArray2[c].getIndex()
                     || !(chromsArray1[c].getName().equals(chromsArray2[c].getName()))
                     || chromsArray1[c].getLength() != chromsArray2[c].getLength()) {
-                System.err.println("Chromosome mismatch");
-                System.out.println(chromsArray1[c].getIndex() + " " + chromsArray1[c].getName() + " " + chromsArray1[c].getLength());
-                System.out.println(chromsArray2[c].getIndex() + " " + chromsArray2[c].getName() + " " + chromsArray2[c].getLength());
-                System.exit(19);
+                fail(order + 2 + c, "Chromosome mismatch: " + describe(chromsArray1[c]) + " vs "
+                        + describe(chromsArray2[c]));
             }
         }
-        System.out.println("Genomes/Chromosomes are equivalent");
+        if (report.getNumErrors() == numErrors) {
+            System.out.println("Genomes/Chromosomes are equivalent");
+        }
     }
 
-    public static void validateNormalizationTypes(Dataset ds1, Dataset ds2) {
-        List<NormalizationType> norms1 = ds1.getNormalizationTypes();
-        List<NormalizationType> norms2 = ds2.getNormalizationTypes();
+    private static String describe(Chromosome chromosome) {
+        return chromosome.getIndex() + " " + chromosome.getName() + " " + chromosome.getLength();
+    }
 
+    public void validateNormalizationTypes() {
+        if (cancelled.get()) return;
+        List<NormalizationType> norms1 = new ArrayList<>(ds1.getNormalizationTypes());
+        List<NormalizationType> norms2 = new ArrayList<>(ds2.getNormalizationTypes());
+        long order = claimOrders(1);
         if (norms1.size() != norms2.size()) {
-            System.err.println("Number of norms mismatch " + norms1.size() + "  -  " + norms2.size());
-            System.exit(20);
+            fail(order, "Number of norms mismatch " + norms1.size() + "  -  " + norms2.size());
+            return;
         }
 
         norms1.sort(Comparator.comparing(NormalizationType::getLabel));
         norms2.sort(Comparator.comparing(NormalizationType::getLabel));
-
         for (int q = 0; q < norms1.size(); q++) {
             if (!norms1.get(q).getLabel().equals(norms2.get(q).getLabel())) {
-                System.err.println("Normalization mismatch");
-                System.exit(21);
+                fail(order, "Normalization mismatch: " + norms1.get(q).getLabel() + " vs "
+                        + norms2.get(q).getLabel());
+                return;
             }
         }
         System.out.println("Normalization types are equivalent");
     }
 
-    public static int validateResolutions(Dataset ds1, Dataset ds2) {
-        List<HiCZoom> zooms1 = ds1.getBpZooms();
-        List<HiCZoom> zooms2 = ds2.getBpZooms();
+    public void validateResolutions() {
+        if (cancelled.get()) return;
+        List<HiCZoom> zooms1 = new ArrayList<>(ds1.getBpZooms());
+        List<HiCZoom> zooms2 = new ArrayList<>(ds2.getBpZooms());
+        long order = claimOrders(1);
         if (zooms1.size() != zooms2.size()) {
-            System.err.println("Zoom mismatch");
-            System.exit(22);
+            fail(order, "Zoom mismatch " + zooms1.size() + "  -  " + zooms2.size());
+            return;
         }
 
         zooms1.sort(Comparator.comparing(HiCZoom::getBinSize));
         zooms2.sort(Comparator.comparing(HiCZoom::getBinSize));
-
         for (int q = 0; q < zooms1.size(); q++) {
             if (zooms1.get(q).getBinSize() != zooms2.get(q).getBinSize()) {
-                System.err.println("Resolution mismatch");
-                System.exit(23);
+                fail(order, "Resolution mismatch: " + zooms1.get(q).getBinSize() + " vs "
+                        + zooms2.get(q).getBinSize());
+                return;
             }
         }
-
-        // no need to do this given already sorted list...
         System.out.println("Resolution levels are equivalent");
-        return min(zooms1);
     }
 
-    private static int min(List<HiCZoom> zooms) {
-        int minVal = zooms.get(0).getBinSize();
-        HiCZoom zoom = zooms.get(zooms.size() - 1);
-        if (zoom.getBinSize() < minVal) {
-            minVal = zoom.getBinSize();
-        }
-        return minVal;
+    private interface ValidationTask {
+        void run(long order, ProgressMeter.Unit unit) throws Exception;
+    }
+
+    /**
+     * Runs the tasks on the pool, reporting any exception as a failure of its task
+     *
+     * @return the number of errors the tasks reported
+     */
+    private int runInParallel(List<String> descriptions, List<Long> weights, List<ValidationTask> tasks,
+                              ProgressMeter progress) {
+        int numErrors = report.getNumErrors();
+        long base = claimOrders(tasks.size());
+        AtomicInteger index = new AtomicInteger(0);
+        ParallelizationTools.launchParallelizedCode(numThreads, () -> {
+            int i = index.getAndIncrement();
+            while (i < tasks.size() && !cancelled.get()) {
+                ProgressMeter.Unit unit = progress.start(descriptions.get(i), weights.get(i));
+                try {
+                    tasks.get(i).run(base + i, unit);
+                } catch (Exception e) {
+                    fail(base + i, "Unable to compare " + descriptions.get(i) + ": " + e.getLocalizedMessage());
+                }
+                unit.finish();
+                i = index.getAndIncrement();
+            }
+        });
+        return report.getNumErrors() - numErrors;
+    }
+
+    public int getNumNormVectorTasks() {
+        return chromosomes.length * norms.size() * zooms.size();
+    }
+
+    public int getNumExpectedVectorTasks() {
+        return (norms.size() + 1) * zooms.size();
     }
 
-    public static void validateNormVectors(Dataset ds1, Dataset ds2) {
-        Chromosome[] array = ds1.getChromosomeHandler().getChromosomeArrayWithoutAllByAll();
-        List<NormalizationType> norms = ds1.getNormalizationTypes();
-        List<HiCZoom> zooms = ds1.getBpZooms();
+    /**
+     * @return total weight of the norm and expected vector tasks: each norm vector task weighs the length of
+     * its chromosome, and each expected vector task the length of the genome
+     */
+    public long getVectorCheckWeight() {
+        return (long) (2 * norms.size() + 1) * zooms.size() * getGenomeLength();
+    }
 
-        double magnitude = 0, errors = 0;
+    private long getGenomeLength() {
+        long genomeLength = 0;
+        for (Chromosome chromosome : chromosomes) {
+            genomeLength += chromosome.getLength();
+        }
+        return genomeLength;
+    }
 
-        for (Chromosome chrom : array) {
+    /**
+     * One task per chromosome, normalization and resolution, weighted by the chromosome length
+     */
+    public void validateNormVectors(ProgressMeter progress) {
+        if (cancelled.get()) return;
+        List<String> descriptions = new ArrayList<>();
+        List<Long> weights = new ArrayList<>();
+        List<ValidationTask> tasks = new ArrayList<>();
+        DoubleAdder magnitude = new DoubleAdder(), errors = new DoubleAdder();
+        for (Chromosome chrom : chromosomes) {
             for (NormalizationType norm : norms) {
                 for (HiCZoom zoom : zooms) {
-                    NormalizationVector nv1 = ds1.getNormalizationVector(chrom.getIndex(), zoom, norm);
-                    NormalizationVector nv2 = ds2.getNormalizationVector(chrom.getIndex(), zoom, norm);
-                    if (nv1 == nv2) continue;
-                    if (nv1 == null || nv2 == null) {
-                        System.err.println("NULL ERROR IN NORM " + norm.getLabel() + " at " + zoom.getBinSize() + "!!! nv1 " + nv1 + "  nv2 " + nv2);
-                        continue;
-                    }
-                    if (nv1.getData() == nv2.getData()) continue;
-                    double[] errs = VectorTools.assertAreEqual(nv1.getData(), nv2.getData(), "Norm vector " +
-                            chrom.getName() + " " + norm.getLabel() + " " + zoom.getBinSize());
-                    magnitude += errs[0];
-                    errors += errs[1];
+                    String description = "norm vector " + chrom.getName() + " " + norm.getLabel() + " "
+                            + zoom.getBinSize();
+                    descriptions.add(description);
+                    weights.add(chrom.getLength());
+                    tasks.add((order, unit) -> {
+                        NormalizationVector nv1 = ds1.getNormalizationVector(chrom.getIndex(), zoom, norm);
+                        NormalizationVector nv2 = ds2.getNormalizationVector(chrom.getIndex(), zoom, norm);
+                        ListOfDoubleArrays data1 = nv1 == null ? null : nv1.getData();
+                        ListOfDoubleArrays data2 = nv2 == null ? null : nv2.getData();
+                        compareVectors(order, description, data1, data2, unit, magnitude, errors);
+                    });
                 }
             }
         }
-        System.out.println("Normalization vectors are equivalent (magnitude=" + magnitude + " : errors=" + errors + ")");
+        if (runInParallel(descriptions, weights, tasks, progress) == 0 && !cancelled.get()) {
+            System.out.println("Normalization vectors are equivalent (magnitude=" + magnitude.sum() + " : errors="
+                    + errors.sum() + ")");
+        }
     }
 
-    public static void validateExpectedVectors(Dataset ds1, Dataset ds2) {
-        Chromosome[] array = ds1.getChromosomeHandler().getChromosomeArrayWithoutAllByAll();
-        List<NormalizationType> norms = new ArrayList<>(ds1.getNormalizationTypes());
-        norms.add(NormalizationHandler.NONE);
-        List<HiCZoom> zooms = ds1.getBpZooms();
-
-        double magnitude = 0, errors = 0;
-        int counter = 0;
-        for (Chromosome chrom : array) {
-            for (NormalizationType norm : norms) {
-                for (HiCZoom zoom : zooms) {
+    /**
+     * One task per normalization and resolution, which loads the expected values of each file once
+     * and compares them for every chromosome
+     */
+    public void validateExpectedVectors(ProgressMeter progress) {
+        if (cancelled.get()) return;
+        List<NormalizationType> expectedNorms = new ArrayList<>(norms);
+        expectedNorms.add(NormalizationHandler.NONE);
+        long genomeLength = getGenomeLength();
+        List<String> descriptions = new ArrayList<>();
+        List<Long> weights = new ArrayList<>();
+        List<ValidationTask> tasks = new ArrayList<>();
+        DoubleAdder magnitude = new DoubleAdder(), errors = new DoubleAdder();
+        AtomicInteger counter = new AtomicInteger(0);
+        for (NormalizationType norm : expectedNorms) {
+            for (HiCZoom zoom : zooms) {
+                String description = "expected vector " + norm.getLabel() + " " + zoom.getBinSize();
+                descriptions.add(description);
+                weights.add(genomeLength);
+                tasks.add((order, unit) -> {
                     ExpectedValueFunction e1 = ds1.getExpectedValues(zoom, norm, false);
                     ExpectedValueFunction e2 = ds2.getExpectedValues(zoom, norm, false);
-                    if (e1 == e2) continue;
+                    if (e1 == e2) return;
+                    if (e1 == null || e2 == null) {
+                        fail(order, "Missing " + description + " in file " + (e1 == null ? 1 : 2));
+                        return;
+                    }
+                    for (Chromosome chrom : chromosomes) {
+                        if (cancelled.get()) return;
+                        ListOfDoubleArrays d1 = e1.getExpectedValuesWithNormalization(chrom.getIndex());
+                        ListOfDoubleArrays d2 = e2.getExpectedValuesWithNormalization(chrom.getIndex());
+                        if (compareVectors(order, description + " " + chrom.getName(), d1, d2, unit,
+                                magnitude, errors)) {
+                            counter.incrementAndGet();
+                        }
+                    }
+                });
+            }
+        }
+        if (runInParallel(descriptions, weights, tasks, progress) == 0 && !cancelled.get()) {
+            System.out.println("Expected vectors are equivalent (magnitude=" + magnitude.sum() + " : counter="
+                    + counter.get() + " : errors=" + errors.sum() + ")");
+        }
+    }
 
-                    ListOfDoubleArrays d1 = e1.getExpectedValuesWithNormalization(chrom.getIndex());
-                    ListOfDoubleArrays d2 = e2.getExpectedValuesWithNormalization(chrom.getIndex());
-                    if (d1 == d2) continue;
+    /**
+     * @return true if both vectors were present and compared
+     */
+    private boolean compareVectors(long order, String description, ListOfDoubleArrays data1,
+                                   ListOfDoubleArrays data2, ProgressMeter.Unit unit, DoubleAdder magnitude,
+                                   DoubleAdder errors) {
+        if (data1 == data2) return false;
+        if (data1 == null || data2 == null) {
+            fail(order, "Missing " + description + " in file " + (data1 == null ? 1 : 2));
+            return false;
+        }
+        if (data1.getLength() != data2.getLength()) {
+            fail(order, "Vector length mismatch: " + data1.getLength() + " vs " + data2.getLength() + " "
+                    + description);
+            return false;
+        }
+        double[] errs = VectorTools.getErrors(data1, data2);
+        unit.addRecords(data1.getLength());
+        magnitude.add(errs[0]);
+        errors.add(errs[1]);
+        if (errs[1] > MAX_MEAN_ERROR) {
+            fail(order, "Vector mean error too big " + errs[1] + "  " + description);
+        }
+        return true;
+    }
+
+    public void validateRawCounts() {
+        validateRawCounts(null);
+    }
 
-                    double[] errs = VectorTools.assertAreEqual(d1, d2, "Expected vector " +
-                            chrom.getName() + " " + norm.getLabel() + " " + zoom.getBinSize());
-                    counter++;
-                    magnitude += errs[0];
-                    errors += errs[1];
+    /**
+     * Compares the raw counts of every chromosome pair at every resolution, one pair and resolution per task.
+     * The records of both files are first read in lockstep, which needs no memory when both were written in the
+     * same order; as soon as the positions diverge, both are re-read into sorted streams (spilled to disk beyond
+     * the memory budget) and merge-joined by position. Counts must agree within a relative tolerance, and a record
+     * present in only one file is a mismatch.
+     *
+     * @param matrixKeys keys of the matrices to compare (see Fingerprint.getMatrixKey), or null for all of them
+     */
+    public void validateRawCounts(Set<String> matrixKeys) {
+        if (cancelled.get()) return;
+        List<RawCountTask> tasks = new ArrayList<>();
+        for (int i = 0; i < chromosomes.length; i++) {
+            for (int j = i; j < chromosomes.length; j++) {
+                for (HiCZoom zoom : zooms) {
+                    if (matrixKeys == null || matrixKeys.contains(Fingerprint.getMatrixKey(chromosomes[i].getName(),
+                            chromosomes[j].getName(), zoom.getBinSize()))) {
+                        tasks.add(new RawCountTask(chromosomes[i], chromosomes[j], zoom));
+                    }
                 }
             }
         }
-        System.out.println("Expected vectors are equivalent (magnitude=" + magnitude + " : counter=" + counter +
-                " : errors=" + errors + ")");
+
+        long memoryBudget = Runtime.getRuntime().maxMemory() / (8L * Math.max(1, numThreads));
+        File tempFolder = new File(System.getProperty("java.io.tmpdir"));
+        List<String> descriptions = new ArrayList<>();
+        List<Long> weights = new ArrayList<>();
+        List<ValidationTask> runs = new ArrayList<>();
+        for (RawCountTask task : tasks) {
+            descriptions.add("raw counts of " + task.getDescription());
+            weights.add(0L);
+            runs.add((order, unit) -> {
+                task.compare(ds1, ds2, unit, cancelled, failFast, memoryBudget, tempFolder);
+                if (task.mismatches > 0) {
+                    fail(order, "Raw counts mismatch in " + task.getDescription() + ": " + task.mismatches
+                            + " of " + task.records + " records, first at " + task.firstMismatch);
+                }
+            });
+        }
+
+        int numErrors;
+        try (ProgressMeter progress = new ProgressMeter("raw counts", "pair resolutions", tasks.size(), 0)) {
+            numErrors = runInParallel(descriptions, weights, runs, progress);
+        }
+        long records = 0;
+        for (RawCountTask task : tasks) {
+            records += task.records;
+        }
+        if (numErrors == 0 && !cancelled.get()) {
+            System.out.println("Raw counts are equivalent (records=" + records + ")");
+        }
     }
 
-    public static void validateRawCounts(Dataset ds1, Dataset ds2, int highestRes) {
-        /*
-        NormalizationType none = ds1.getNormalizationHandler().getNormTypeFromString("NONE");
+    private static class RawCountTask {
+
+        private static final double TOLERANCE = 1e-4;
+        private static final int CANCEL_CHECK = 1 << 12;
+
+        private final Chromosome chr1, chr2;
+        private final HiCZoom zoom;
+        private long records = 0, mismatches = 0;
+        private String firstMismatch = null;
+
+        private RawCountTask(Chromosome chr1, Chromosome chr2, HiCZoom zoom) {
+            this.chr1 = chr1;
+            this.chr2 = chr2;
+            this.zoom = zoom;
+        }
+
+        private String getDescription() {
+            return chr1.getName() + "-" + chr2.getName() + " at resolution " + zoom.getBinSize();
+        }
+
+        /**
+         * @return the raw records of the pair at this resolution, none if it has no reads
+         */
+        private Iterator<ContactRecord> getIterator(Dataset ds) {
+            Matrix matrix = ds.getMatrix(chr1, chr2);
+            if (matrix == null) return Collections.emptyIterator();
+            MatrixZoomData zd = matrix.getZoomData(zoom);
+            if (zd == null) return Collections.emptyIterator();
+            return zd.getDirectIterator();
+        }
+
+        private void compare(Dataset ds1, Dataset ds2, ProgressMeter.Unit unit, AtomicBoolean cancelled,
+                             boolean earlyExit, long memoryBudget, File tempFolder) throws IOException {
+            Iterator<ContactRecord> iterator1 = unit.count(getIterator(ds1));
+            Iterator<ContactRecord> iterator2 = getIterator(ds2);
+            while (iterator1.hasNext() && iterator2.hasNext()) {
+                if (records % CANCEL_CHECK == 0 && cancelled.get()) return;
+                ContactRecord record1 = iterator1.next();
+                ContactRecord record2 = iterator2.next();
+                if (record1.getBinX() != record2.getBinX() || record1.getBinY() != record2.getBinY()) {
+                    long counted = records + 1;
+                    records = mismatches = 0;
+                    firstMismatch = null;
+                    mergeJoin(ds1, ds2, unit, counted, cancelled, earlyExit, memoryBudget, tempFolder);
+                    return;
+                }
+                if (compare(record1.getBinX(), record1.getBinY(), record1.getCounts(), record2.getCounts(),
+                        cancelled, earlyExit)) return;
+            }
+            // in the same order so far, so the records left in either file are missing from the other
+            while (iterator1.hasNext()) {
+                ContactRecord record = iterator1.next();
+                if (compare(record.getBinX(), record.getBinY(), record.getCounts(), Float.NaN,
+                        cancelled, earlyExit)) return;
+            }
+            while (iterator2.hasNext()) {
+                ContactRecord record = iterator2.next();
+                if (compare(record.getBinX(), record.getBinY(), Float.NaN, record.getCounts(),
+                        cancelled, earlyExit)) return;
+            }
+        }
+
+        /**
+         * Sorts the records of both files by position and compares them
+         *
+         * @param counted records of the first file already counted by the unit, which are not counted again
+         */
+        private void mergeJoin(Dataset ds1, Dataset ds2, ProgressMeter.Unit unit, long counted,
+                               AtomicBoolean cancelled, boolean earlyExit, long memoryBudget, File tempFolder)
+                throws IOException {
+            try (PixelMerger sorted1 = new PixelMerger(memoryBudget / 2, tempFolder);
+                 PixelMerger sorted2 = new PixelMerger(memoryBudget / 2, tempFolder)) {
+                if (!fill(sorted1, getIterator(ds1), unit, counted, cancelled)) return;
+                if (!fill(sorted2, getIterator(ds2), null, 0, cancelled)) return;
 
-        for (Chromosome chr : array) {
-                for (Chromosome chr2 : array) {
-                    System.out.print(".");
-                    Matrix matrix = ds.getMatrix(chr, chr2);
-                    if (matrix == null) {
-                        System.err.println("Warning: no reads in " + chr.getName() + "-" + chr2.getName());
+                Iterator<ContactRecord> iterator1 = sorted1.iterator();
+                Iterator<ContactRecord> iterator2 = sorted2.iterator();
+                ContactRecord record1 = next(iterator1), record2 = next(iterator2);
+                while (record1 != null || record2 != null) {
+                    if (records % CANCEL_CHECK == 0 && cancelled.get()) return;
+                    int order = record1 == null ? 1 : record2 == null ? -1 : record1.getBinX() != record2.getBinX()
+                            ? Integer.compare(record1.getBinX(), record2.getBinX())
+                            : Integer.compare(record1.getBinY(), record2.getBinY());
+                    boolean stop;
+                    if (order == 0) {
+                        stop = compare(record1.getBinX(), record1.getBinY(), record1.getCounts(),
+                                record2.getCounts(), cancelled, earlyExit);
+                        record1 = next(iterator1);
+                        record2 = next(iterator2);
+                    } else if (order < 0) {
+                        stop = compare(record1.getBinX(), record1.getBinY(), record1.getCounts(), Float.NaN,
+                                cancelled, earlyExit);
+                        record1 = next(iterator1);
                     } else {
-                        for (HiCZoom zoom : zooms) {
-                            MatrixZoomData zd = matrix.getZoomData(zoom);
-                            if (zd == null) {
-                                System.err.println("Warning: no reads in " +
-                                        chr.getName() + "-" + chr2.getName() + " at resolution " + zoom.getBinSize());
-                            } else {
-                                try {
-                                    reader.readNormalizedBlock(0, zd, none);
-                                } catch (Exception e) {
-                                    System.err.println("Unable to read block 0 in " +
-                                            getBlockDescription(chr, chr2, zoom, none) +
-                                            "\n" + e.getLocalizedMessage() + "\n");
-                                }
-                            }
-                        }
+                        stop = compare(record2.getBinX(), record2.getBinY(), Float.NaN, record2.getCounts(),
+                                cancelled, earlyExit);
+                        record2 = next(iterator2);
                     }
+                    if (stop) return;
                 }
-                System.out.println();
             }
+        }
+
+        /**
+         * @param unit    counts the records read after the first {@code counted}, if not null
+         * @return false if the comparison was cancelled
          */
-    }
+        private static boolean fill(PixelMerger merger, Iterator<ContactRecord> iterator, ProgressMeter.Unit unit,
+                                    long counted, AtomicBoolean cancelled) throws IOException {
+            long n = 0;
+            while (iterator.hasNext()) {
+                if (n % CANCEL_CHECK == 0 && cancelled.get()) return false;
+                ContactRecord record = iterator.next();
+                if (unit != null && n >= counted) {
+                    unit.addRecords(1);
+                }
+                n++;
+                merger.add(record.getBinX(), record.getBinY(), record.getCounts());
+            }
+            return true;
+        }
+
+        private static ContactRecord next(Iterator<ContactRecord> iterator) {
+            return iterator.hasNext() ? iterator.next() : null;
+        }
+
+        /**
+         * @param counts1 counts in the first file, or NaN if the record is missing from it
+         * @return true if the comparison should stop, at a mismatch with early exit
+         */
+        private boolean compare(int binX, int binY, float counts1, float counts2, AtomicBoolean cancelled,
+                                boolean earlyExit) {
+            records++;
+            if (areEqual(counts1, counts2)) return false;
+            mismatches++;
+            if (firstMismatch == null) {
+                firstMismatch = "(" + binX + ", " + binY + "): " + counts1 + " vs " + counts2;
+            }
+            if (earlyExit) {
+                cancelled.set(true);
+                return true;
+            }
+            return false;
+        }
 
-    private String getBlockDescription(Chromosome chr, Chromosome chr2, HiCZoom zoom, NormalizationType type) {
-        return chr.getName() + "-" + chr2.getName() + "-" + zoom.getBinSize() + "-" + type.toString();
+        private static boolean areEqual(float counts1, float counts2) {
+            if (Float.isNaN(counts1) || Float.isNaN(counts2)) {
+                return Float.isNaN(counts1) && Float.isNaN(counts2);
+            }
+            double scale = Math.max(1, Math.max(Math.abs(counts1), Math.abs(counts2)));
+            return Math.abs(counts1 - counts2) <= TOLERANCE * scale;
+        }
     }
 }
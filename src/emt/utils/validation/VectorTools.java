@@ -4,59 +4,30 @@ import emt.Globals;
 import javastraw.reader.datastructures.ListOfDoubleArrays;
 
 public class VectorTools {
-    public static double[] assertAreEqual(ListOfDoubleArrays data1, ListOfDoubleArrays data2, String description) {
+    /**
+     * Compares the common prefix of two vectors, ignoring the entries that are NaN in either
+     *
+     * @return {magnitude of the dot product, mean absolute error}
+     */
+    public static double[] getErrors(ListOfDoubleArrays data1, ListOfDoubleArrays data2) {
         double magnitude = 0;
         double absError = 0;
-        try {
-            if (data1.getLength() != data2.getLength()) {
-                System.err.println("Vector length mismatch: " + data1.getLength() + " vs " + data2.getLength() + " " + description);
-                //System.exit(24);
+        long n = Math.min(data1.getLength(), data2.getLength());
+        long numVals = 0;
+        for (long q = 0; q < n; q++) {
+            double err = Math.abs(data1.get(q) - data2.get(q));
+            if (!Double.isNaN(err)) {
+                magnitude += data1.get(q) * data2.get(q);
+                absError += err;
+                numVals++;
             }
-
-            long n = Math.min(data1.getLength(), data2.getLength());
-
-            double magnitude1 = 0;
-            double magnitude2 = 0;
-
-            long numVals = 0;
-            for (long q = 0; q < n; q++) {
-                double err = Math.abs(data1.get(q) - data2.get(q));
-
-                if (!Double.isNaN(data1.get(q))) {
-                    magnitude1 += data1.get(q) * data1.get(q);
-                }
-
-                if (!Double.isNaN(data2.get(q))) {
-                    magnitude2 += data2.get(q) * data2.get(q);
-                }
-
-                if (!Double.isNaN(err)) {
-                    magnitude += data1.get(q) * data2.get(q);
-                    absError += err;
-                    numVals++;
-                }
-            }
-            magnitude = Math.sqrt(magnitude);
-            magnitude1 = Math.sqrt(magnitude1);
-            magnitude2 = Math.sqrt(magnitude2);
-
-            if (numVals > 0) {
-                absError /= numVals;
-            }
-
-            if (absError > 1e-3) {
-                System.err.println("Vector mean error too big " + absError + "  " + description);
-                //System.exit(25);
-            } else {
-                if (Globals.printVerboseComments) {
-                    System.err.println("Vector difference acceptable (" + absError
-                            + ") / " + magnitude
-                            + " / " + magnitude1
-                            + " / " + magnitude2);
-                }
-            }
-        } catch (Exception e) {
-            System.exit(26);
+        }
+        magnitude = Math.sqrt(magnitude);
+        if (numVals > 0) {
+            absError /= numVals;
+        }
+        if (Globals.printVerboseComments) {
+            System.err.println("Vector difference (" + absError + ") / " + magnitude);
         }
         return new double[]{magnitude, absError};
     }